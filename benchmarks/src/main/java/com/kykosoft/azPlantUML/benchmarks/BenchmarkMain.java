@@ -0,0 +1,41 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar; accepts the usual JMH command line.
+ * <p>
+ * PlantUML writes PNG metadata through an internal JDK class, which Java 9
+ * and later only allow with {@code --add-exports}. That option is appended to
+ * the forked benchmark JVMs when needed; Java 8 (the Azure runtime) does not
+ * understand it.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class BenchmarkMain {
+
+	/** Export required by PlantUML's PNG writer on Java 9+ */
+	private static final String PNG_EXPORT = "--add-exports=java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+				|| commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!System.getProperty("java.specification.version").startsWith("1.")) {
+			options.jvmArgsAppend(PNG_EXPORT);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
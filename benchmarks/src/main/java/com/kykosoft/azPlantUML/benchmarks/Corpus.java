@@ -0,0 +1,67 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Representative diagrams used by the benchmarks, stored under
+ * {@code src/main/resources/corpus}.
+ * <p>
+ * Class and component diagrams are laid out by Graphviz; without a
+ * {@code dot} executable PlantUML renders its "cannot find Graphviz" error
+ * image instead, which makes those results meaningless.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class Corpus {
+
+	/** Small sequence diagram, similar to the typical wiki diagram */
+	public static final String SEQUENCE_SMALL = "sequence-small";
+
+	/** Sequence diagram with 40 message pairs, notes and dividers */
+	public static final String SEQUENCE_LARGE = "sequence-large";
+
+	/** Class diagram (requires Graphviz) */
+	public static final String CLASS = "class";
+
+	/** Component diagram (requires Graphviz) */
+	public static final String COMPONENT = "component";
+
+	/** Activity diagram with about 100 nodes, branches, forks and loops */
+	public static final String ACTIVITY_LARGE = "activity-large";
+
+	private Corpus() {
+	}
+
+	/**
+	 * Loads a diagram from the corpus.
+	 *
+	 * @param name	name of the diagram, without extension
+	 * @return the diagram source
+	 * @since 1.0
+	 */
+	public static String load(String name) {
+		String resource = "/corpus/" + name + ".puml";
+
+		try (InputStream in = Corpus.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IllegalArgumentException("No corpus diagram named " + name);
+			}
+
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			for (int read; (read = in.read(chunk)) != -1; ) {
+				content.write(chunk, 0, read);
+			}
+
+			return new String(content.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
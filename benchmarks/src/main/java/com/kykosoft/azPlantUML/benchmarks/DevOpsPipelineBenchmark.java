@@ -0,0 +1,101 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.DevOpsConfig;
+import com.kykosoft.azPlantUML.DevOpsDiagram;
+
+/**
+ * The DevOps fetch-and-render pipeline against a local stub of the DevOps
+ * items API, so it runs offline.
+ * <ul>
+ * <li>{@code fetchSource} - download only
+ * <li>{@code generateCached} - download, then an image cache hit
+ * <li>{@code generateUncached} - download and a full render; the stub makes
+ * every body unique so the image cache never hits
+ * </ul>
+ * Run with: {@code java -jar target/benchmarks.jar DevOpsPipelineBenchmark}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class DevOpsPipelineBenchmark {
+
+	/** Path requested from the stub; the stub ignores it */
+	private static final String PATH = "/docs/diagram.puml";
+
+	@Param({ Corpus.SEQUENCE_SMALL, Corpus.SEQUENCE_LARGE })
+	public String diagram;
+
+	/** Simulated DevOps response time in milliseconds */
+	@Param({ "0" })
+	public long serverDelay;
+
+	private StubDevOpsServer _cachedServer;
+
+	private StubDevOpsServer _uniqueServer;
+
+	private DevOpsDiagram _cached;
+
+	private DevOpsDiagram _unique;
+
+	private Logger _logger;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String source = Corpus.load(diagram);
+		_cachedServer = new StubDevOpsServer(source, serverDelay);
+		_uniqueServer = new StubDevOpsServer(source, serverDelay);
+		_uniqueServer.setUniqueBodies(true);
+
+		_logger = Logger.getLogger(DevOpsPipelineBenchmark.class.getName());
+		_logger.setLevel(java.util.logging.Level.WARNING);
+
+		_cached = new DevOpsDiagram(new DevOpsConfig(_cachedServer.getBaseUrl(), "org", "project", "repo", "pat"));
+		_unique = new DevOpsDiagram(new DevOpsConfig(_uniqueServer.getBaseUrl(), "org", "project", "repo", "pat"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_cachedServer.close();
+		_uniqueServer.close();
+	}
+
+	@Benchmark
+	public String fetchSource() throws IOException {
+		return _cached.fetchSource(PATH, _logger);
+	}
+
+	@Benchmark
+	public byte[] generateCached() throws IOException {
+		return _cached.generate(PATH, _logger);
+	}
+
+	@Benchmark
+	public byte[] generateUncached() throws IOException {
+		return _unique.generate(PATH, _logger);
+	}
+}
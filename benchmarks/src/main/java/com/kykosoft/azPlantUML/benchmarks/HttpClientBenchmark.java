@@ -0,0 +1,104 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.HttpWrapper;
+
+/**
+ * Compares the latency of fetching a diagram source with a new client per
+ * request (the original {@code HttpClients.createDefault()} behaviour) against
+ * the pooled keep-alive client used by {@link HttpWrapper}.
+ * <p>
+ * Run with: {@code java -jar target/benchmarks.jar HttpClientBenchmark}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientBenchmark {
+
+	/** Items API path that the stub answers */
+	private static final String ITEMS_PATH = "org/project/_apis/git/repositories/repo/items";
+
+	private StubDevOpsServer _server;
+
+	private HttpWrapper _wrapper;
+
+	private Map<String, String> _headers;
+
+	private Map<String, String> _params;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		_server = new StubDevOpsServer("@startuml\nBob -> Alice: Hello!\n@enduml\n", 0);
+
+		Logger logger = Logger.getLogger(HttpClientBenchmark.class.getName());
+		logger.setLevel(java.util.logging.Level.WARNING);
+		_wrapper = new HttpWrapper(logger, _server.getBaseUrl());
+
+		_headers = new HashMap<String, String>();
+		_headers.put("Authorization", "Basic OmJlbmNobWFyaw==");
+
+		_params = new HashMap<String, String>();
+		_params.put("path", "/docs/diagram.puml");
+		_params.put("api-version", "6.1-preview.1");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_server.close();
+	}
+
+	/**
+	 * Baseline: a new client, and therefore a new TCP connection, per request.
+	 */
+	@Benchmark
+	public String newClientPerRequest() throws IOException {
+		try (CloseableHttpClient client = HttpClients.createDefault()) {
+			HttpGet get = new HttpGet(_server.getBaseUrl() + "/" + ITEMS_PATH
+					+ "?path=%2Fdocs%2Fdiagram.puml&api-version=6.1-preview.1");
+			_headers.forEach(get::addHeader);
+
+			try (CloseableHttpResponse response = client.execute(get)) {
+				return EntityUtils.toString(response.getEntity());
+			}
+		}
+	}
+
+	/**
+	 * Pooled keep-alive client shared across requests.
+	 */
+	@Benchmark
+	public String pooledClient() throws IOException, URISyntaxException {
+		return _wrapper.GetStringContent(ITEMS_PATH, _headers, _params);
+	}
+}
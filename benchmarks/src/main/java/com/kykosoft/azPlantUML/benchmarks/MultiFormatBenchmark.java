@@ -0,0 +1,89 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.ParsedDiagram;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Cost of rendering one source in several formats, parsing it for every
+ * format as {@code SourceStringReader.generateImage} does, against parsing it
+ * once into a {@link ParsedDiagram} and exporting each format from that.
+ * <p>
+ * {@code parse} measures the parse alone, i.e. the most a shared parse can
+ * save per additional format; layout still runs once per export.
+ * <p>
+ * Run with: {@code java -jar target/benchmarks.jar MultiFormatBenchmark}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MultiFormatBenchmark {
+
+	/** Formats requested for every diagram, e.g. by a pre-render of PNG and SVG */
+	private static final FileFormat[] FORMATS = { FileFormat.PNG, FileFormat.SVG };
+
+	@Param({ Corpus.SEQUENCE_SMALL, Corpus.SEQUENCE_LARGE, Corpus.ACTIVITY_LARGE })
+	public String diagram;
+
+	private String _source;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		_source = Corpus.load(diagram);
+	}
+
+	@Benchmark
+	public int parsePerFormat() throws IOException {
+		int written = 0;
+		for (FileFormat format : FORMATS) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new SourceStringReader(_source).generateImage(out, new FileFormatOption(format));
+			written += out.size();
+		}
+		return written;
+	}
+
+	@Benchmark
+	public int sharedParse() throws IOException {
+		ParsedDiagram parsed = ParsedDiagram.parse(_source);
+
+		int written = 0;
+		for (FileFormat format : FORMATS) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			parsed.export(0, new FileFormatOption(format), out);
+			written += out.size();
+		}
+		return written;
+	}
+
+	@Benchmark
+	public ParsedDiagram parse() {
+		return ParsedDiagram.parse(_source);
+	}
+}
@@ -0,0 +1,105 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.DiagramGenerator;
+import com.kykosoft.azPlantUML.RenderBuffer;
+
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Measures bytes allocated per render with the original
+ * {@code ByteArrayOutputStream} + {@code toByteArray()} path against the
+ * pooled {@link RenderBuffer} path.
+ * <p>
+ * Run with the GC profiler and compare {@code gc.alloc.rate.norm}:
+ * {@code java -jar target/benchmarks.jar RenderAllocationBenchmark -prof gc}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderAllocationBenchmark {
+
+	/**
+	 * A full render; buffer handling is a small share of the total.
+	 */
+	@State(Scope.Benchmark)
+	public static class Diagram {
+		String source = "@startuml\nBob -> Alice: Hello!\nAlice --> Bob: Hi!\n@enduml\n";
+	}
+
+	/**
+	 * Only the buffering of an already encoded image, written in chunks the
+	 * way the PNG encoder does, so the difference is not hidden by layout.
+	 */
+	@State(Scope.Benchmark)
+	public static class Image {
+		@Param({ "16384", "262144", "2097152" })
+		int size;
+
+		byte[] chunk = new byte[8192];
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			new Random(42).nextBytes(chunk);
+		}
+	}
+
+	@Benchmark
+	public byte[] renderByteArrayOutputStream(Diagram diagram) throws IOException {
+		SourceStringReader reader = new SourceStringReader(diagram.source);
+		try (ByteArrayOutputStream png = new ByteArrayOutputStream()) {
+			reader.generateImage(png);
+			return png.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public byte[] renderPooledBuffer(Diagram diagram) throws IOException {
+		return DiagramGenerator.renderPng(diagram.source);
+	}
+
+	@Benchmark
+	public byte[] bufferByteArrayOutputStream(Image image) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int written = 0; written < image.size; written += image.chunk.length) {
+			out.write(image.chunk, 0, Math.min(image.chunk.length, image.size - written));
+		}
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] bufferPooled(Image image) {
+		RenderBuffer out = RenderBuffer.acquire();
+		try {
+			for (int written = 0; written < image.size; written += image.chunk.length) {
+				out.write(image.chunk, 0, Math.min(image.chunk.length, image.size - written));
+			}
+			return out.toByteArray();
+		} finally {
+			out.release();
+		}
+	}
+}
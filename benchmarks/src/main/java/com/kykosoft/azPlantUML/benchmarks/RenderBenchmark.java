@@ -0,0 +1,68 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.DiagramGenerator;
+
+/**
+ * Render throughput and latency percentiles for each diagram in the corpus.
+ * <p>
+ * {@code renderDirect} renders on the benchmark thread;
+ * {@code renderScheduled} goes through the render scheduler, negative cache
+ * and size limit exactly like a function invocation (but without the image
+ * cache). Add {@code -prof gc} for the allocation rate.
+ * <p>
+ * Run with: {@code java -jar target/benchmarks.jar RenderBenchmark}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ Corpus.SEQUENCE_SMALL, Corpus.SEQUENCE_LARGE, Corpus.CLASS, Corpus.COMPONENT, Corpus.ACTIVITY_LARGE })
+	public String diagram;
+
+	private String _source;
+
+	private Logger _logger;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		_source = Corpus.load(diagram);
+
+		_logger = Logger.getLogger(RenderBenchmark.class.getName());
+		_logger.setLevel(java.util.logging.Level.WARNING);
+	}
+
+	@Benchmark
+	public byte[] renderDirect() throws IOException {
+		return DiagramGenerator.renderPng(_source);
+	}
+
+	@Benchmark
+	public byte[] renderScheduled() throws IOException {
+		return DiagramGenerator.render(_source, _logger);
+	}
+}
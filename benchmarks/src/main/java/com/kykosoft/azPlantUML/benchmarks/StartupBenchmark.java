@@ -0,0 +1,85 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kykosoft.azPlantUML.DiagramFormat;
+import com.kykosoft.azPlantUML.DiagramGenerator;
+import com.kykosoft.azPlantUML.WarmUp;
+
+/**
+ * First-request latency of a freshly started JVM, with and without the
+ * start-up warm-up. Every measurement is a single shot in a new fork, which
+ * is what a request arriving at a new function host experiences.
+ * <ul>
+ * <li>{@code coldFirstRender} - first render with no warm-up
+ * <li>{@code warmFirstRender} - first render after {@link WarmUp#run(Logger)}
+ * <li>{@code warmUp} - the cost of the warm-up itself
+ * </ul>
+ * Run with: {@code java -jar target/benchmarks.jar StartupBenchmark}
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+
+	/** State of a JVM that has not rendered anything yet */
+	@State(Scope.Benchmark)
+	public static class ColdState {
+
+		String source;
+
+		Logger logger;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			source = Corpus.load(Corpus.SEQUENCE_SMALL);
+			logger = Logger.getLogger(StartupBenchmark.class.getName());
+			logger.setLevel(java.util.logging.Level.WARNING);
+		}
+	}
+
+	/** State of a JVM that has completed the warm-up */
+	@State(Scope.Benchmark)
+	public static class WarmState extends ColdState {
+
+		@Setup(Level.Trial)
+		public void warmUp() {
+			WarmUp.run(logger);
+		}
+	}
+
+	@Benchmark
+	public byte[] coldFirstRender(ColdState state) throws IOException {
+		return DiagramGenerator.render(state.source, DiagramFormat.PNG, state.logger);
+	}
+
+	@Benchmark
+	public byte[] warmFirstRender(WarmState state) throws IOException {
+		return DiagramGenerator.render(state.source, DiagramFormat.PNG, state.logger);
+	}
+
+	@Benchmark
+	public WarmUp.Report warmUp(ColdState state) {
+		return WarmUp.run(state.logger);
+	}
+}
@@ -0,0 +1,139 @@
+package com.kykosoft.azPlantUML.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local stand-in for the Azure DevOps items API so the fetch path can
+ * be benchmarked offline.
+ * <p>
+ * Every GET is answered with the configured diagram source, after an optional
+ * simulated server delay. With unique bodies enabled a distinct comment is
+ * appended to each response so that rendered-image caching never hits.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class StubDevOpsServer implements AutoCloseable {
+
+	static {
+		// without TCP_NODELAY the JDK server delays keep-alive responses by ~40 ms
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/** The underlying JDK HTTP server */
+	private final HttpServer _server;
+
+	/** Threads used to answer requests */
+	private final ExecutorService _executor;
+
+	/** Body returned for every request */
+	private volatile byte[] _body;
+
+	/** Simulated server processing time, in milliseconds */
+	private final long _delayMillis;
+
+	/** Whether each response gets a distinct trailing comment */
+	private volatile boolean _uniqueBodies = false;
+
+	/** Number of requests answered */
+	private final AtomicLong _requests = new AtomicLong();
+
+	/**
+	 * Starts a stub server on an ephemeral localhost port.
+	 *
+	 * @param body			diagram source returned for every request
+	 * @param delayMillis	simulated server processing time, in milliseconds
+	 * @throws IOException	if the server cannot be started
+	 * @since 1.0
+	 */
+	public StubDevOpsServer(String body, long delayMillis) throws IOException {
+		_body = body.getBytes(StandardCharsets.UTF_8);
+		_delayMillis = delayMillis;
+
+		_executor = Executors.newFixedThreadPool(16);
+		_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		_server.createContext("/", this::handle);
+		_server.setExecutor(_executor);
+		_server.start();
+	}
+
+	/**
+	 * Gets the base URL of the server, equivalent to {@code https://dev.azure.com}.
+	 *
+	 * @return base URL without a trailing slash
+	 * @since 1.0
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + _server.getAddress().getPort();
+	}
+
+	/**
+	 * Replaces the body returned for subsequent requests.
+	 *
+	 * @param body	new diagram source
+	 * @since 1.0
+	 */
+	public void setBody(String body) {
+		_body = body.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Makes each response body distinct by appending a PlantUML comment.
+	 *
+	 * @param uniqueBodies	true to append a distinct comment to every response
+	 * @since 1.0
+	 */
+	public void setUniqueBodies(boolean uniqueBodies) {
+		_uniqueBodies = uniqueBodies;
+	}
+
+	/**
+	 * @return number of requests answered
+	 * @since 1.0
+	 */
+	public long getRequestCount() {
+		return _requests.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long request = _requests.incrementAndGet();
+
+		if (_delayMillis > 0) {
+			try {
+				Thread.sleep(_delayMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		byte[] body = _body;
+		if (_uniqueBodies) {
+			byte[] comment = ("\n' request " + request + "\n").getBytes(StandardCharsets.UTF_8);
+			byte[] unique = new byte[body.length + comment.length];
+			System.arraycopy(body, 0, unique, 0, body.length);
+			System.arraycopy(comment, 0, unique, body.length, comment.length);
+			body = unique;
+		}
+		exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		_server.stop(0);
+		_executor.shutdownNow();
+	}
+}
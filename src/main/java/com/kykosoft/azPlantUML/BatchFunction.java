@@ -0,0 +1,276 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * This function renders several diagrams from an Azure DevOps git repo in a
+ * single invocation and returns them as a zip archive.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class BatchFunction {
+
+	/** Name of the environment variable that holds the maximum number of paths per request */
+	private static final String ENV_MAX_PATHS = "azuml_batchMaxPaths";
+
+
+	/**
+	 * Renders every diagram listed in the request body.
+	 * <p>
+	 * Accessed at: /api/DevOpsBatch with a JSON body that is either an array
+	 * of paths or an object with a {@code paths} array, e.g.
+	 * <code>["/docs/a.puml", "/docs/b.puml"]</code>. The response is a zip
+	 * archive with one PNG per path, named after the path; when two paths
+	 * would get the same name (e.g. {@code a.puml} and {@code a.plantuml})
+	 * the later one gets a numeric suffix. Paths with {@code ..} segments
+	 * are rejected. The optional
+	 * {@code repo} and {@code project} query parameters select the repository
+	 * as for the DevOps function.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response
+	 * @since	1.0
+	 */
+	@FunctionName("DevOpsBatch")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.POST},
+				authLevel = AuthorizationLevel.ANONYMOUS)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+
+		Set<String> paths;
+		try {
+			paths = parsePaths(request.getBody().orElse(""));
+		} catch (JsonParseException | IllegalStateException | UnsupportedOperationException | ClassCastException ex) {
+			// malformed JSON or JSON of the wrong shape
+			return textResponse(request, HttpStatus.BAD_REQUEST, "Body must be a JSON array of paths or an object with a 'paths' array");
+		} catch (IllegalArgumentException ex) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, ex.getMessage());
+		}
+
+		if (paths.isEmpty()) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, "At least one path is required");
+		}
+
+		int maxPaths = EnvironmentSettings.getInt(ENV_MAX_PATHS, 50);
+		if (paths.size() > maxPaths) {
+			return textResponse(request, HttpStatus.PAYLOAD_TOO_LARGE, "A maximum of " + maxPaths + " paths may be requested at once");
+		}
+
+		DevOpsDiagram generator = TenantRegistry.getInstance().getGenerator(
+				request.getQueryParameters().get("project"),
+				request.getQueryParameters().get("repo"));
+		if (generator == null) {
+			return textResponse(request, HttpStatus.NOT_FOUND, "No repository is configured for the requested 'project' and 'repo'");
+		}
+
+		logger.info("Received a batch request for " + paths.size() + " diagrams");
+
+		// download every source without blocking a thread and render each one as soon as it arrives
+		Map<String, CompletableFuture<byte[]>> images = new LinkedHashMap<String, CompletableFuture<byte[]>>();
+		for (String path : paths) {
+			images.put(path, generator.generateAsync(path, DiagramFormat.PNG, logger));
+		}
+
+		try {
+			byte[] archive = buildArchive(images, logger);
+
+			return request.createResponseBuilder(HttpStatus.OK)
+					.body(archive)
+					.header("Content-Type", "application/zip")
+					.header("Content-Disposition", "attachment; filename=\"diagrams.zip\"")
+					.build();
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Unable to build the batch archive", ex);
+			return textResponse(request, HttpStatus.INTERNAL_SERVER_ERROR, ex.toString());
+		}
+	}
+
+	/**
+	 * Parses the list of paths from the request body. Paths are normalized
+	 * (see {@link #normalizePath(String)}) before duplicates are removed.
+	 *
+	 * @param body	JSON request body
+	 * @return distinct paths in request order
+	 * @throws IllegalArgumentException	if a path leaves the repository root
+	 * @since 1.0
+	 */
+	static Set<String> parsePaths(String body) {
+		JsonElement json = JsonParser.parseString(body);
+		JsonArray array = json.isJsonObject()
+				? json.getAsJsonObject().getAsJsonArray("paths")
+				: json.getAsJsonArray();
+
+		Set<String> paths = new LinkedHashSet<String>();
+		if (array != null) {
+			for (JsonElement element : array) {
+				String path = element.getAsString().trim();
+				if (!path.isEmpty()) {
+					paths.add(normalizePath(path));
+				}
+			}
+		}
+
+		return paths;
+	}
+
+	/**
+	 * Normalizes a repository path: backslashes become slashes, empty and
+	 * {@code .} segments are dropped and the path is made absolute, so
+	 * {@code docs\a.puml} and {@code //docs/./a.puml} both become
+	 * {@code /docs/a.puml}.
+	 *
+	 * @param path	repository path as requested
+	 * @return the normalized path
+	 * @throws IllegalArgumentException	if the path has a {@code ..} segment
+	 * @since 1.0
+	 */
+	static String normalizePath(String path) {
+		StringBuilder normalized = new StringBuilder();
+
+		for (String segment : path.replace('\\', '/').split("/")) {
+			if (segment.isEmpty() || ".".equals(segment)) {
+				continue;
+			}
+			if ("..".equals(segment)) {
+				throw new IllegalArgumentException("'..' is not allowed in paths: " + path);
+			}
+			normalized.append('/').append(segment);
+		}
+
+		return normalized.length() == 0 ? "/" : normalized.toString();
+	}
+
+	/**
+	 * Waits for every image and writes them into a zip archive. A diagram that
+	 * failed to render is replaced by a text entry describing the error.
+	 *
+	 * @param images	pending images by repository path
+	 * @param logger	logging instance to use
+	 * @return the zip archive
+	 * @throws IOException	if the archive could not be written
+	 * @since 1.0
+	 */
+	static byte[] buildArchive(Map<String, CompletableFuture<byte[]>> images, Logger logger) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Set<String> usedNames = new HashSet<String>();
+		int failures = 0;
+
+		try (ZipOutputStream zip = new ZipOutputStream(buffer)) {
+			// PNG data is already compressed
+			zip.setLevel(Deflater.NO_COMPRESSION);
+
+			for (Map.Entry<String, CompletableFuture<byte[]>> entry : images.entrySet()) {
+				String name = uniqueName(entryName(entry.getKey()), usedNames);
+				byte[] data;
+
+				try {
+					data = entry.getValue().join();
+					name = name + ".png";
+				} catch (CompletionException ex) {
+					logger.log(Level.SEVERE, "Unable to generate " + entry.getKey(), ex.getCause());
+					failures++;
+					data = ex.getCause().toString().getBytes(StandardCharsets.UTF_8);
+					name = name + ".error.txt";
+				}
+
+				zip.putNextEntry(new ZipEntry(name));
+				zip.write(data);
+				zip.closeEntry();
+			}
+		}
+
+		logger.info("Batch completed with " + images.size() + " entries and " + failures + " failures");
+
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Converts a repository path into a zip entry name without extension,
+	 * e.g. {@code /docs/a.puml} becomes {@code docs/a}.
+	 *
+	 * @param path	repository path
+	 * @return entry name
+	 * @since 1.0
+	 */
+	static String entryName(String path) {
+		String name = path.replace('\\', '/');
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+
+		int dot = name.lastIndexOf('.');
+		if (dot > name.lastIndexOf('/')) {
+			name = name.substring(0, dot);
+		}
+
+		return name;
+	}
+
+	/**
+	 * Makes an entry name unique within an archive by appending a number.
+	 * Names are compared ignoring case, since archives are often extracted
+	 * onto case-insensitive file systems.
+	 *
+	 * @param name		entry name without extension
+	 * @param usedNames	names already used in the archive, in lower case;
+	 * 					receives the returned name
+	 * @return the name, or the name with a numeric suffix such as {@code -2}
+	 * @since 1.0
+	 */
+	static String uniqueName(String name, Set<String> usedNames) {
+		String unique = name;
+		for (int suffix = 2; !usedNames.add(unique.toLowerCase(Locale.ROOT)); suffix++) {
+			unique = name + "-" + suffix;
+		}
+
+		return unique;
+	}
+
+	private static HttpResponseMessage textResponse(
+			HttpRequestMessage<Optional<String>> request,
+			HttpStatus status,
+			String message) {
+		return request
+				.createResponseBuilder(status)
+				.body(message)
+				.header("Content-Type", "text/plain")
+				.build();
+	}
+}
@@ -0,0 +1,256 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Keeps rendered images as block blobs in an Azure Storage container, so
+ * every instance of the function app shares them.
+ * <p>
+ * The container is addressed with the Blob service REST API and authorized
+ * with a SAS token, so any service speaking that API (e.g. the Azurite
+ * emulator) can be used. Images are uploaded in the background so a render
+ * is not delayed by the upload; an upload that cannot be queued is dropped.
+ * Blobs are never deleted by the store; use a lifecycle management rule on
+ * the container to remove images that have not been read for a while.
+ * <p>
+ * A circuit breaker stops lookups while the storage account keeps failing,
+ * so an outage costs cache misses rather than slow requests.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class BlobDiagramStore implements DiagramStore {
+
+	/** Name of the environment variable that holds the URL of the blob container */
+	private static final String ENV_CONTAINER_URL = "azuml_blobContainerUrl";
+
+	/** Name of the environment variable that holds the SAS token authorizing access to the container */
+	private static final String ENV_SAS_TOKEN = "azuml_blobSasToken";
+
+	/** Blob service REST API version to use */
+	private static final String API_VERSION = "2020-10-02";
+
+	/** Name extension used for stored images */
+	private static final String BLOB_EXTENSION = ".img";
+
+	/** Maximum number of uploads waiting to be sent */
+	private static final int UPLOAD_QUEUE_SIZE = 256;
+
+	/** Logs uploads, which outlive the invocation that rendered the image */
+	private static final Logger LOGGER = Logger.getLogger(BlobDiagramStore.class.getName());
+
+
+	/** URL of the container, without a trailing slash */
+	private final String _containerUrl;
+
+	/** SAS token without the leading '?'; may be empty, e.g. for a public emulator container */
+	private final String _sasToken;
+
+	/** Client used to send requests; shared with the rest of the process */
+	private final CloseableHttpClient _httpClient;
+
+	/** Stops requests while the storage account keeps failing */
+	private final CircuitBreaker _circuitBreaker;
+
+	/** Sends uploads in the background */
+	private final Executor _uploadExecutor;
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param containerUrl		URL of the container, e.g. {@code https://account.blob.core.windows.net/diagrams}
+	 * @param sasToken			SAS token granting read, create and write access to the container, or null
+	 * @param httpClient		client used to send requests; it is not closed by this instance
+	 * @param circuitBreaker	stops requests while the storage account keeps failing
+	 * @param uploadExecutor	sends uploads
+	 * @since 1.0
+	 */
+	public BlobDiagramStore(
+			String containerUrl,
+			String sasToken,
+			CloseableHttpClient httpClient,
+			CircuitBreaker circuitBreaker,
+			Executor uploadExecutor) {
+		String url = containerUrl;
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		String token = sasToken == null ? "" : sasToken;
+		if (token.startsWith("?")) {
+			token = token.substring(1);
+		}
+
+		_containerUrl = url;
+		_sasToken = token;
+		_httpClient = httpClient;
+		_circuitBreaker = circuitBreaker;
+		_uploadExecutor = uploadExecutor;
+	}
+
+	/**
+	 * Creates a store configured from the environment.
+	 * <p>
+	 * {@code azuml_blobContainerUrl} is the URL of the container and
+	 * {@code azuml_blobSasToken} the SAS token authorizing access to it.
+	 * Requests use the process-wide pooled HTTP client.
+	 *
+	 * @return a new store, or null if no container is configured
+	 * @since 1.0
+	 */
+	public static BlobDiagramStore fromEnvironment() {
+		String containerUrl = EnvironmentSettings.getString(ENV_CONTAINER_URL, null);
+		if (containerUrl == null) {
+			return null;
+		}
+
+		ThreadPoolExecutor uploadExecutor = new ThreadPoolExecutor(
+				2,
+				2,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(UPLOAD_QUEUE_SIZE),
+				new DaemonThreadFactory("azuml-blob-upload-"),
+				new ThreadPoolExecutor.DiscardPolicy());
+		uploadExecutor.allowCoreThreadTimeOut(true);
+
+		return new BlobDiagramStore(
+				containerUrl,
+				EnvironmentSettings.getString(ENV_SAS_TOKEN, null),
+				HttpWrapper.getSharedClient(),
+				CircuitBreaker.fromEnvironment(),
+				uploadExecutor);
+	}
+
+	@Override
+	public byte[] get(String key) throws IOException {
+		if (!_circuitBreaker.allowRequest()) {
+			return null;
+		}
+
+		HttpGet request = new HttpGet(blobUrl(key));
+		addHeaders(request);
+
+		int statusCode;
+		byte[] image = null;
+		try (CloseableHttpResponse response = _httpClient.execute(request)) {
+			statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == 200) {
+				image = EntityUtils.toByteArray(response.getEntity());
+			} else {
+				EntityUtils.consume(response.getEntity());
+			}
+		} catch (IOException ex) {
+			_circuitBreaker.recordFailure();
+			throw ex;
+		}
+
+		if (statusCode == 200 || statusCode == 404) {
+			_circuitBreaker.recordSuccess();
+			return image;
+		}
+
+		// e.g. an expired SAS token; stop asking until the breaker lets a trial through
+		_circuitBreaker.recordFailure();
+		throw new IOException("Blob storage answered " + statusCode + " for " + key);
+	}
+
+	@Override
+	public void put(String key, byte[] image) {
+		_uploadExecutor.execute(() -> {
+			try {
+				upload(key, image);
+			} catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Unable to upload image " + key, ex);
+			}
+		});
+	}
+
+	/**
+	 * Uploads an image as a block blob unless the blob exists already; it
+	 * holds the same image, because the name is a content hash.
+	 *
+	 * @param key	cache key
+	 * @param image	rendered image
+	 * @throws IOException	if the image could not be uploaded
+	 * @since 1.0
+	 */
+	private void upload(String key, byte[] image) throws IOException {
+		if (!_circuitBreaker.allowRequest()) {
+			return;
+		}
+
+		HttpPut request = new HttpPut(blobUrl(key));
+		addHeaders(request);
+		request.setHeader("x-ms-blob-type", "BlockBlob");
+		request.setHeader("If-None-Match", "*");
+		request.setEntity(new ByteArrayEntity(image, ContentType.APPLICATION_OCTET_STREAM));
+
+		int statusCode;
+		try (CloseableHttpResponse response = _httpClient.execute(request)) {
+			statusCode = response.getStatusLine().getStatusCode();
+			EntityUtils.consume(response.getEntity());
+		} catch (IOException ex) {
+			_circuitBreaker.recordFailure();
+			throw ex;
+		}
+
+		// 409: another instance uploaded the same image first
+		if (statusCode == 201 || statusCode == 409) {
+			_circuitBreaker.recordSuccess();
+			return;
+		}
+
+		// e.g. an expired SAS token; stop asking until the breaker lets a trial through
+		_circuitBreaker.recordFailure();
+		throw new IOException("Blob storage answered " + statusCode + " to the upload of " + key);
+	}
+
+	/**
+	 * Adds the headers every Blob service request needs.
+	 *
+	 * @param request	request to send
+	 * @since 1.0
+	 */
+	private static void addHeaders(HttpRequestBase request) {
+		request.setHeader("x-ms-version", API_VERSION);
+	}
+
+	/**
+	 * Builds the URL of the blob holding an image, including the SAS token.
+	 *
+	 * @param key	cache key; a hex string, so it needs no encoding
+	 * @return the blob URL
+	 * @since 1.0
+	 */
+	private String blobUrl(String key) {
+		String url = _containerUrl + "/" + key + BLOB_EXTENSION;
+
+		return _sasToken.isEmpty() ? url : url + "?" + _sasToken;
+	}
+
+	/** @return the circuit breaker guarding the storage account */
+	public CircuitBreaker getCircuitBreaker() {
+		return _circuitBreaker;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BlobDiagramStore[container=%1$s, %2$s]", _containerUrl, _circuitBreaker);
+	}
+}
@@ -0,0 +1,185 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+/**
+ * Renders diagram source text through a rendered image cache.
+ * <p>
+ * Images are cached by a hash of their source text and format, so identical
+ * diagrams are rendered once however they were obtained. Concurrent requests
+ * for the same image share one render, which runs on the bounded
+ * {@link RenderScheduler}. A diagram that exceeds the render limits is
+ * replaced by an error diagram, which is not cached.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class CachedRenderer {
+
+	/** Renderer for diagram source sent directly to the function; created on first use */
+	private static volatile CachedRenderer sharedRenderer = null;
+
+
+	/** Rendered images */
+	private final DiagramCache _imageCache;
+
+	/** Coalesces concurrent renders of the same image cache key (source hash, format and page) */
+	private final SingleFlight<String, byte[]> _renderFlights = new SingleFlight<String, byte[]>();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param imageCache	cache of rendered images
+	 * @since 1.0
+	 */
+	public CachedRenderer(DiagramCache imageCache) {
+		_imageCache = imageCache;
+	}
+
+	/**
+	 * Gets the renderer used for diagram source that does not come from a
+	 * repository. Its memory cache is separate from those of the repositories,
+	 * but it shares the persistent image store with them.
+	 *
+	 * @return the shared renderer
+	 * @since 1.0
+	 */
+	public static CachedRenderer getShared() {
+		if (sharedRenderer == null) {
+			synchronized (CachedRenderer.class) {
+				if (sharedRenderer == null) {
+					sharedRenderer = new CachedRenderer(DiagramCache.fromEnvironment());
+				}
+			}
+		}
+
+		return sharedRenderer;
+	}
+
+	/**
+	 * Generates an image of the requested format from diagram source text,
+	 * using the rendered image cache when possible.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public byte[] render(String diagramSource, DiagramFormat format, Logger logger) throws IOException {
+		return render(diagramSource, format, 0, logger);
+	}
+
+	/**
+	 * Generates one page of a diagram as an image of the requested format,
+	 * using the rendered image cache when possible. Each page is rendered on
+	 * its own when it is first requested and cached separately.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param page			index of the page, starting at 0
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public byte[] render(String diagramSource, DiagramFormat format, int page, Logger logger) throws IOException {
+		String cacheKey = DiagramCache.computeKey(diagramSource, format.name(), page);
+		byte[] image = _imageCache.get(cacheKey, logger);
+
+		if (image == null) {
+			try {
+				image = _renderFlights.execute(cacheKey, () -> {
+					byte[] rendered = _imageCache.get(cacheKey, logger);
+					if (rendered == null) {
+						rendered = DiagramGenerator.render(diagramSource, format, page, logger);
+						_imageCache.put(cacheKey, rendered, logger);
+					}
+					return rendered;
+				});
+			} catch (RenderAbortedException ex) {
+				// not cached; the source is only remembered as bad for a short while
+				image = DiagramGenerator.generateErrorImage(ex.getMessage(), format);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * Generates an image of the requested format from diagram source text
+	 * without blocking the caller. Caching and coalescing work as for
+	 * {@link #render(String, DiagramFormat, Logger)}, and synchronous and
+	 * asynchronous requests for the same image share one render.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param logger		logging instance to use
+	 * @return completes with the image, or with a {@link RenderRejectedException}
+	 * 			if the render scheduler is saturated
+	 * @since 1.0
+	 */
+	public CompletableFuture<byte[]> renderAsync(String diagramSource, DiagramFormat format, Logger logger) {
+		String cacheKey = DiagramCache.computeKey(diagramSource, format.name());
+
+		// the caller may be an I/O thread of the async HTTP client, so the persistent tier is read elsewhere
+		return _imageCache.getAsync(cacheKey, logger).thenCompose(image -> {
+			if (image != null) {
+				return CompletableFuture.completedFuture(image);
+			}
+
+			return _renderFlights.executeAsync(cacheKey, () -> _imageCache.getAsync(cacheKey, logger).thenCompose(cached -> {
+				if (cached != null) {
+					return CompletableFuture.completedFuture(cached);
+				}
+
+				return DiagramGenerator.renderAsync(diagramSource, format, logger).thenApply(rendered -> {
+					_imageCache.put(cacheKey, rendered, logger);
+					return rendered;
+				});
+			}));
+		}).handle((rendered, ex) -> {
+			if (ex == null) {
+				return CompletableFuture.completedFuture(rendered);
+			}
+
+			Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+			if (cause instanceof RenderAbortedException) {
+				// not cached; the source is only remembered as bad for a short while. An exceeded
+				// deadline completes on the deadline timer, which must not be held up by a render
+				return RenderScheduler.getInstance().executeAsync(
+						() -> DiagramGenerator.generateErrorImage(cause.getMessage(), format));
+			}
+			throw new CompletionException(cause);
+		}).thenCompose(image -> image);
+	}
+
+	/**
+	 * Gets the cache of rendered images.
+	 *
+	 * @return the rendered image cache
+	 * @since 1.0
+	 */
+	public DiagramCache getImageCache() {
+		return _imageCache;
+	}
+
+	/**
+	 * Gets the coalescing statistics for renders.
+	 *
+	 * @return the render coalescer
+	 * @since 1.0
+	 */
+	public SingleFlight<String, byte[]> getRenderFlights() {
+		return _renderFlights;
+	}
+}
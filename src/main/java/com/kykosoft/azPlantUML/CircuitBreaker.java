@@ -0,0 +1,221 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to an upstream service that keeps failing.
+ * <p>
+ * After a number of consecutive failures the circuit opens and requests fail
+ * immediately, so invocations are not tied up waiting for timeouts and the
+ * upstream gets room to recover. Once the open period has passed a single
+ * trial request is let through (half-open); its outcome closes the circuit
+ * again or re-opens it for another period. A trial that is abandoned
+ * without an outcome, or that reports none within the trial timeout, does
+ * not leave the circuit half-open for good.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class CircuitBreaker {
+
+	/** Name of the environment variable that holds the number of consecutive failures that open the circuit */
+	private static final String ENV_FAILURE_THRESHOLD = "azuml_circuitFailureThreshold";
+
+	/** Name of the environment variable that holds how long the circuit stays open, in seconds */
+	private static final String ENV_OPEN_SECONDS = "azuml_circuitOpenSeconds";
+
+	/** Name of the environment variable that holds how long a trial request may take, in seconds */
+	private static final String ENV_TRIAL_SECONDS = "azuml_circuitTrialSeconds";
+
+	/** Default time, in milliseconds, a trial request may take before the circuit re-opens */
+	private static final long DEFAULT_TRIAL_MILLIS = 60000;
+
+
+	/**
+	 * State of the circuit.
+	 *
+	 * @since 1.0
+	 */
+	public enum State {
+		/** Requests are sent normally */
+		CLOSED,
+		/** Requests fail immediately */
+		OPEN,
+		/** A single trial request is in progress */
+		HALF_OPEN
+	}
+
+
+	/** Number of consecutive failures that open the circuit */
+	private final int _failureThreshold;
+
+	/** How long, in milliseconds, the circuit stays open */
+	private final long _openMillis;
+
+	/** How long, in milliseconds, a trial request may take before the circuit re-opens */
+	private final long _trialMillis;
+
+	/** Current state */
+	private State _state = State.CLOSED;
+
+	/** Number of consecutive failures */
+	private int _failures = 0;
+
+	/** Time (epoch millis) the open period ends */
+	private long _openUntil = 0;
+
+	/** Time (epoch millis) the current trial request was let through */
+	private long _trialStartedAt = 0;
+
+	/** Number of requests refused while the circuit was open */
+	private final AtomicLong _rejected = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param failureThreshold	number of consecutive failures that open the circuit
+	 * @param openMillis		how long the circuit stays open
+	 * @since 1.0
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this(failureThreshold, openMillis, DEFAULT_TRIAL_MILLIS);
+	}
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param failureThreshold	number of consecutive failures that open the circuit
+	 * @param openMillis		how long the circuit stays open
+	 * @param trialMillis		how long a trial request may take before the
+	 * 							circuit re-opens
+	 * @since 1.0
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis, long trialMillis) {
+		_failureThreshold = failureThreshold;
+		_openMillis = openMillis;
+		_trialMillis = trialMillis;
+	}
+
+	/**
+	 * Creates a circuit breaker configured from the environment.
+	 * <p>
+	 * {@code azuml_circuitFailureThreshold} sets the number of consecutive
+	 * failures (default 5), {@code azuml_circuitOpenSeconds} how long the
+	 * circuit stays open (default 30) and {@code azuml_circuitTrialSeconds}
+	 * how long a trial request may take (default 60).
+	 *
+	 * @return a new circuit breaker
+	 * @since 1.0
+	 */
+	public static CircuitBreaker fromEnvironment() {
+		return new CircuitBreaker(
+				EnvironmentSettings.getInt(ENV_FAILURE_THRESHOLD, 5),
+				EnvironmentSettings.getLong(ENV_OPEN_SECONDS, 30) * 1000,
+				EnvironmentSettings.getLong(ENV_TRIAL_SECONDS, DEFAULT_TRIAL_MILLIS / 1000) * 1000);
+	}
+
+	/**
+	 * Determines whether a request may be sent. When the open period has
+	 * passed the caller becomes the half-open trial request and must report
+	 * its outcome, or call {@link #recordAbandoned()}. A trial that has not
+	 * reported within the trial timeout counts as failed.
+	 *
+	 * @return true if the request may be sent
+	 * @since 1.0
+	 */
+	public synchronized boolean allowRequest() {
+		long now = System.currentTimeMillis();
+
+		if (_state == State.HALF_OPEN && now - _trialStartedAt >= _trialMillis) {
+			// the trial is hung or was lost without an outcome
+			open(now);
+		}
+
+		switch (_state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (now >= _openUntil) {
+					_state = State.HALF_OPEN;
+					_trialStartedAt = now;
+					return true;
+				}
+				break;
+			default:
+				break;
+		}
+
+		_rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Records a request that reached the upstream and got a usable answer.
+	 *
+	 * @since 1.0
+	 */
+	public synchronized void recordSuccess() {
+		_state = State.CLOSED;
+		_failures = 0;
+	}
+
+	/**
+	 * Records a request that failed after its retries.
+	 *
+	 * @since 1.0
+	 */
+	public synchronized void recordFailure() {
+		_failures++;
+		if (_state == State.HALF_OPEN || _failures >= _failureThreshold) {
+			open(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Records a request that ended without an outcome, e.g. because it was
+	 * cancelled or interrupted. It tells nothing about the upstream, so a
+	 * closed circuit is unaffected; an abandoned trial lets the next request
+	 * become the trial.
+	 *
+	 * @since 1.0
+	 */
+	public synchronized void recordAbandoned() {
+		if (_state == State.HALF_OPEN) {
+			_state = State.OPEN;
+			_openUntil = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Opens the circuit for another period.
+	 *
+	 * @param now	current time in epoch millis
+	 * @since 1.0
+	 */
+	private void open(long now) {
+		_state = State.OPEN;
+		_openUntil = now + _openMillis;
+	}
+
+	/** @return current state of the circuit */
+	public synchronized State getState() {
+		return _state;
+	}
+
+	/** @return number of milliseconds until the open period ends; 0 unless the circuit is open */
+	public synchronized long getRemainingOpenMillis() {
+		return _state == State.OPEN ? Math.max(0, _openUntil - System.currentTimeMillis()) : 0;
+	}
+
+	/** @return number of requests refused while the circuit was open */
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CircuitBreaker[state=%1$s, rejected=%2$d]", getState(), getRejected());
+	}
+}
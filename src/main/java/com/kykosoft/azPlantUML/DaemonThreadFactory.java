@@ -0,0 +1,39 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so background pools never keep the function
+ * host process alive.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	/** Prefix of every thread name */
+	private final String _prefix;
+
+	/** Number of threads created so far */
+	private final AtomicInteger _count = new AtomicInteger();
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param prefix	prefix of every thread name, e.g. {@code azuml-render-}
+	 * @since 1.0
+	 */
+	public DaemonThreadFactory(String prefix) {
+		_prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, _prefix + _count.incrementAndGet());
+		thread.setDaemon(true);
+
+		return thread;
+	}
+}
@@ -0,0 +1,139 @@
+package com.kykosoft.azPlantUML;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Connection settings for an Azure DevOps git repository, read and prepared
+ * once so that requests do no configuration work.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class DevOpsConfig {
+
+	/** Name of environment variable that holds the DevOps organization name */
+	private static final String ENV_ORGANIZATION = "azuml_devopsOrg";
+
+	/** Name of the environment variable that holds the DevOps project name */
+	private static final String ENV_PROJECT = "azuml_devopsProject";
+
+	/** Name of the environment variable that holds the DevOps Repository Guid/Uuid */
+	private static final String ENV_REPOSITORY_ID = "azuml_devopsRepoId";
+
+	/** Name of the environment variable that holds the Personal Access Toekn for accessing DevOps */
+	private static final String ENV_PAT = "azuml_devopsPAT";
+
+	/** Format string for error message when looking for environment variables */
+	private static final String ENV_ERROR_FORMAT = "Unable to retrieve '%1$s' environment variable";
+
+	/** The base URI for the DevOps service */
+	public static final String DEFAULT_BASE_URI = "https://dev.azure.com";
+
+
+	/** The base URI of the DevOps service */
+	private final String _baseUri;
+
+	/** The name of the DevOps organization to access */
+	private final String _organization;
+
+	/** The name of the DevOps project to access */
+	private final String _project;
+
+	/** The GUID/UUID of the source DevOps repository */
+	private final String _repositoryId;
+
+	/** The authorization header to send to DevOps REST API */
+	private final String _authHeader;
+
+
+	/**
+	 * Initializes a new instance with explicit connection settings.
+	 *
+	 * @param baseUri		base URI of the DevOps service, e.g. {@code https://dev.azure.com}
+	 * @param organization	DevOps organization name
+	 * @param project		DevOps project name
+	 * @param repositoryId	GUID/UUID of the DevOps git repository
+	 * @param pat			Personal Access Token used to access DevOps
+	 * @since 1.0
+	 */
+	public DevOpsConfig(String baseUri, String organization, String project, String repositoryId, String pat) {
+		_baseUri = baseUri;
+		_organization = organization;
+		_project = project;
+		_repositoryId = repositoryId;
+
+		// encode the Basic Authorization header value once; only the header is kept
+		_authHeader = "Basic " + Base64.getEncoder().encodeToString((":" + pat).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the connection settings from the environment variables.
+	 *
+	 * @return the settings
+	 * @throws ExceptionInInitializerError	if a required variable is not set
+	 * @since 1.0
+	 */
+	public static DevOpsConfig fromEnvironment() {
+		return new DevOpsConfig(
+				DEFAULT_BASE_URI,
+				requireEnvironmentVariable(ENV_ORGANIZATION),
+				requireEnvironmentVariable(ENV_PROJECT),
+				requireEnvironmentVariable(ENV_REPOSITORY_ID),
+				requireEnvironmentVariable(ENV_PAT));
+	}
+
+	/**
+	 * Determines whether a repository is configured with the single-repository
+	 * environment variables.
+	 *
+	 * @return true if {@code azuml_devopsOrg} is set
+	 * @since 1.0
+	 */
+	public static boolean isConfiguredInEnvironment() {
+		return EnvironmentSettings.getString(ENV_ORGANIZATION, null) != null;
+	}
+
+	/**
+	 * Reads a required environment variable.
+	 *
+	 * @param name	name of the environment variable
+	 * @return the value of the variable
+	 * @throws ExceptionInInitializerError	if the variable is not set
+	 * @since 1.0
+	 */
+	private static String requireEnvironmentVariable(String name) {
+		String value = System.getenv(name);
+		if (value == null || value.isEmpty()) {
+			throw new ExceptionInInitializerError(String.format(ENV_ERROR_FORMAT, name));
+		}
+
+		return value;
+	}
+
+	/** @return base URI of the DevOps service */
+	public String getBaseUri() {
+		return _baseUri;
+	}
+
+	/** @return name of the DevOps organization */
+	public String getOrganization() {
+		return _organization;
+	}
+
+	/** @return name of the DevOps project */
+	public String getProject() {
+		return _project;
+	}
+
+	/** @return GUID/UUID of the DevOps git repository */
+	public String getRepositoryId() {
+		return _repositoryId;
+	}
+
+	/** @return value of the Authorization header sent to the DevOps REST API */
+	public String getAuthHeader() {
+		return _authHeader;
+	}
+}
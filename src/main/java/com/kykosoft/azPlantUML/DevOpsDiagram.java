@@ -1,16 +1,31 @@
 package com.kykosoft.azPlantUML;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
-import net.sourceforge.plantuml.SourceStringReader;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 /**
  * Generates a PlantUML diagram from source text.
@@ -21,27 +36,6 @@ import net.sourceforge.plantuml.SourceStringReader;
  */
 public class DevOpsDiagram {
 
-	/** Name of environment variable that holds the DevOps organization name */
-	private static final String ENV_ORGANIZATION = "azuml_devopsOrg";
-
-	/** Name of the environment variable that holds the DevOps project name */
-	private static final String ENV_PROJECT = "azuml_devopsProject";
-
-	/** Name of the environment variable that holds the DevOps Repository Guid/Uuid */
-	private static final String ENV_REPOSITORY_ID = "azuml_devopsRepoId";
-
-	/** Name of the environment variable that holds the Personal Access Toekn for accessing DevOps */
-	private static final String ENV_PAT = "azuml_devopsPAT";
-
-	/** Format string for error message when looking for environment variables */
-	private static final String ENV_ERROR_FORMAT = "Unable to retrieve '%1$s' environment variable";
-
-	/** format string for generating an error diagram */
-	private static final String ERROR_DIAGRAM_FORMAT = "@startuml\nparticipant Error #red\nnote over Error\n\t%1$s\nend note\n@enduml";
-
-	/** The base URI for the DevOps service */
-	private static final String DevOpsBaseUri = "https://dev.azure.com";
-
 	/**
 	 * Format string for building the DevOps REST API request for the contents
 	 * of a file in the GIT repository.
@@ -61,77 +55,215 @@ public class DevOpsDiagram {
 	 */
 	private static final String PathFormat = "%1$s/%2$s/_apis/git/repositories/%3$s/items";
 
+	/**
+	 * Format string for building the DevOps REST API request for the files
+	 * changed between two commits; same positional parameters as
+	 * {@link #PathFormat}.
+	 */
+	private static final String DiffPathFormat = "%1$s/%2$s/_apis/git/repositories/%3$s/diffs/commits";
+
+	/** Path of a lightweight DevOps REST API resource used to open a connection; '%1$s' = organization */
+	private static final String ConnectionDataPathFormat = "%1$s/_apis/connectionData";
+
+	/** Number of changes requested per page of a diff */
+	private static final int DiffPageSize = 500;
+
+	/** Maximum number of diff pages read for one push */
+	private static final int DiffMaxPages = 20;
+
 	/**
 	 * Name of the parameter used to identify the path to the diagram source
 	 * file in the DevOps GIT repository.
 	 */
 	private static final String FilePathParam = "path";
 
+	/** Name of the parameter selecting the folder whose items are listed. */
+	private static final String ScopePathParam = "scopePath";
+
+	/** Name of the parameter selecting how deep items are listed. */
+	private static final String RecursionLevelParam = "recursionLevel";
+
 	/** Name of the DevOps REST API version parameter. */
 	private static final String ApiVersionParam = "api-version";
 
+	/** Name of the parameter selecting the version of the file to read. */
+	private static final String VersionParam = "versionDescriptor.version";
+
+	/** Name of the parameter selecting how the version parameter is interpreted. */
+	private static final String VersionTypeParam = "versionDescriptor.versionType";
+
+	/** Version type used for commit-pinned requests. */
+	private static final String CommitVersionType = "commit";
+
+	/** Full or abbreviated git commit id */
+	private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-fA-F]{7,40}");
+
 	/** DevOps REST API version to use. */
 	private static final String ApiVersion = "6.1-preview.1";
 
+	/** Name of the environment variable that holds the number of concurrent include downloads */
+	private static final String ENV_INCLUDE_THREADS = "azuml_includeFetchThreads";
 
-	/** The name of the DevOps organization to access */
-	private final String _organization;
+	/** Name of the environment variable that holds the maximum number of files one diagram may include */
+	private static final String ENV_MAX_INCLUDES = "azuml_maxIncludes";
 
-	/** The name of the DevOps project to access */
-	private final String _project;
+	/** Maximum number of distinct files one diagram may include */
+	private static final int MAX_INCLUDES = EnvironmentSettings.getInt(ENV_MAX_INCLUDES, IncludeResolver.DEFAULT_MAX_INCLUDES);
 
-	/** The GUID/UUID of the source DevOps repository */
-	private final String _repositoryId;
+	/** Name of the environment variable that holds the maximum length of a diagram with its includes expanded */
+	private static final String ENV_MAX_EXPANDED_LENGTH = "azuml_maxExpandedLength";
 
-	/** The Personal Access Token (PAT) used to access DevOps */
-	private final String _pat;
+	/** Maximum length, in characters, of a diagram with its includes expanded */
+	private static final int MAX_EXPANDED_LENGTH = EnvironmentSettings.getInt(ENV_MAX_EXPANDED_LENGTH, IncludeResolver.DEFAULT_MAX_LENGTH);
 
-	/** The authorization header to send to DevOps REST API */
-	private final String _authHeader;
+	/** Revalidates expired source files after a stale copy has been served */
+	private static final ExecutorService REVALIDATE_EXECUTOR = Executors.newFixedThreadPool(
+			2, new DaemonThreadFactory("azuml-revalidate-"));
 
-	/** Logging instance to use */
-	private final Logger _logger;
+	/** Logs background revalidations, which outlive the invocation that started them */
+	private static final Logger BACKGROUND_LOGGER = Logger.getLogger(DevOpsDiagram.class.getName());
 
-	/** Used to make http requests against the DevOps API */
-	private final HttpWrapper _httpClient;
+	/**
+	 * Downloads included files in parallel, and reads and writes the disk
+	 * copies of files at a commit for asynchronous requests
+	 */
+	private static final ExecutorService INCLUDE_EXECUTOR = Executors.newFixedThreadPool(
+			EnvironmentSettings.getInt(ENV_INCLUDE_THREADS, 8), new DaemonThreadFactory("azuml-include-"));
 
 
 	/**
-	 * Initializes a new instance.
+	 * A file changed between two commits.
 	 *
-	 * @param logger	logging instance to use
 	 * @since 1.0
 	 */
-	public DevOpsDiagram(Logger logger)
-	{
-		_logger = logger;
+	public static class Change {
 
-		// read environment variables
-		_organization = System.getenv(ENV_ORGANIZATION);
-		if (_organization == null || _organization.isEmpty()) {
-			throw new ExceptionInInitializerError(String.format(ENV_ERROR_FORMAT, ENV_ORGANIZATION));
+		/** Path of the file after the change */
+		private final String _path;
+
+		/** Path of the file before a rename; null otherwise */
+		private final String _originalPath;
+
+		/** DevOps change type, e.g. {@code edit}, {@code delete} or {@code edit, rename} */
+		private final String _changeType;
+
+		Change(String path, String originalPath, String changeType) {
+			_path = path;
+			_originalPath = originalPath;
+			_changeType = changeType == null ? "" : changeType;
 		}
 
-		_project = System.getenv(ENV_PROJECT);
-		if (_project == null || _project.isEmpty()) {
-			throw new ExceptionInInitializerError(String.format(ENV_ERROR_FORMAT, ENV_PROJECT));
+		/** @return path of the file after the change */
+		public String getPath() {
+			return _path;
 		}
 
-		_repositoryId = System.getenv(ENV_REPOSITORY_ID);
-		if (_repositoryId == null || _repositoryId.isEmpty()) {
-			throw new ExceptionInInitializerError(String.format(ENV_ERROR_FORMAT, ENV_REPOSITORY_ID));
+		/** @return path of the file before a rename or null */
+		public String getOriginalPath() {
+			return _originalPath;
 		}
 
-		_pat = System.getenv(ENV_PAT);
-		if (_pat == null || _pat.isEmpty()) {
-			throw new ExceptionInInitializerError(String.format(ENV_ERROR_FORMAT, ENV_PAT));
+		/** @return DevOps change type */
+		public String getChangeType() {
+			return _changeType;
 		}
 
-		// encode the Basic Authorization header value
-		_authHeader = generateAuthHeaderValue();
+		/** @return true if the file no longer exists */
+		public boolean isDelete() {
+			return _changeType.contains("delete");
+		}
+
+		/** @return every path whose content changed, including the old path of a rename */
+		public List<String> getPaths() {
+			List<String> paths = new ArrayList<String>();
+			paths.add(_path);
+			if (_originalPath != null && !_originalPath.equals(_path)) {
+				paths.add(_originalPath);
+			}
+
+			return paths;
+		}
+	}
+
+
+	/** Connection settings of the DevOps repository */
+	private final DevOpsConfig _config;
+
+	/** Path of the items API of the repository */
+	private final String _itemsPath;
+
+	/** Path of the commit diffs API of the repository */
+	private final String _diffPath;
+
+	/** Used to make http requests against the DevOps API */
+	private final HttpWrapper _httpClient;
+
+	/** Renders images of this repository through its image cache */
+	private final CachedRenderer _renderer;
+
+	/** Downloaded source files of this repository */
+	private final SourceCache _sourceCache;
+
+	/** Coalesces concurrent downloads of the same repository path */
+	private final SingleFlight<String, String> _sourceFlights = new SingleFlight<String, String>();
+
+	/** Diagrams on the default branch that include each file, by included path */
+	private final ConcurrentHashMap<String, Set<String>> _includeDependents = new ConcurrentHashMap<String, Set<String>>();
+
+	/** Include closure of each diagram on the default branch, by diagram path */
+	private final ConcurrentHashMap<String, Set<String>> _includeClosures = new ConcurrentHashMap<String, Set<String>>();
+
+	/** Source cache keys of the files currently revalidated in the background */
+	private final Set<String> _revalidating = ConcurrentHashMap.newKeySet();
+
+
+	/**
+	 * Initializes a new instance that uses the process-wide pooled HTTP client
+	 * and caches configured from the environment.
+	 *
+	 * @param config	connection settings of the DevOps repository
+	 * @since 1.0
+	 */
+	public DevOpsDiagram(DevOpsConfig config)
+	{
+		this(config, new HttpWrapper(config.getBaseUri()));
+	}
+
+	/**
+	 * Initializes a new instance with caches configured from the environment.
+	 *
+	 * @param config		connection settings of the DevOps repository
+	 * @param httpClient	used to make requests against the DevOps API
+	 * @since 1.0
+	 */
+	public DevOpsDiagram(DevOpsConfig config, HttpWrapper httpClient)
+	{
+		this(config, httpClient, DiagramCache.fromEnvironment(), SourceCache.fromEnvironment());
+	}
+
+	/**
+	 * Initializes a new instance.
+	 * <p>
+	 * An instance holds no per-request state and is safe to share between
+	 * concurrent invocations; the invocation's logger is passed to each call.
+	 * The caches belong to the instance, so instances for different
+	 * repositories cannot evict each other's entries.
+	 *
+	 * @param config		connection settings of the DevOps repository
+	 * @param httpClient	used to make requests against the DevOps API
+	 * @param imageCache	cache of rendered images
+	 * @param sourceCache	cache of downloaded source files
+	 * @since 1.0
+	 */
+	public DevOpsDiagram(DevOpsConfig config, HttpWrapper httpClient, DiagramCache imageCache, SourceCache sourceCache)
+	{
+		_config = config;
+		_httpClient = httpClient;
+		_renderer = new CachedRenderer(imageCache);
+		_sourceCache = sourceCache;
 
-		// create the HTTP Client
-		_httpClient = new HttpWrapper(logger, DevOpsBaseUri);
+		_itemsPath = String.format(PathFormat, config.getOrganization(), config.getProject(), config.getRepositoryId());
+		_diffPath = String.format(DiffPathFormat, config.getOrganization(), config.getProject(), config.getRepositoryId());
 	}
 
 
@@ -140,91 +272,932 @@ public class DevOpsDiagram {
 	 * a PNG image from it.
 	 *
 	 * @param path path to the source file in DevOps repo.
+	 * @param logger	logging instance to use
 	 * @return PNG image as a byte[]
 	 * @since 1.0
 	 */
-	public byte[] generate(String path) throws IOException {
-		String diagramSource = retrieveSourceText(path);
+	public byte[] generate(String path, Logger logger) throws IOException {
+		return generate(path, DiagramFormat.PNG, logger);
+	}
+
+	/**
+	 * Retrieves the diagram source text from the DevOps git repo and generates
+	 * an image of the requested format from it.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param format	output format
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws IOException	if the request could not be completed
+	 * @since 1.0
+	 */
+	public byte[] generate(String path, DiagramFormat format, Logger logger) throws IOException {
+		return generate(path, null, format, logger);
+	}
+
+	/**
+	 * Retrieves the diagram source text as of a commit from the DevOps git repo
+	 * and generates an image of the requested format from it.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param format	output format
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws IOException	if the request could not be completed
+	 * @since 1.0
+	 */
+	public byte[] generate(String path, String commit, DiagramFormat format, Logger logger) throws IOException {
+		String diagramSource = fetchSource(path, commit, logger);
+
+		return render(diagramSource, format, logger);
+	}
+
+	/**
+	 * Retrieves the diagram source text from the DevOps git repo and generates
+	 * an image of the requested format from it, without blocking the caller.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param format	output format
+	 * @param logger	logging instance to use
+	 * @return completes with the image
+	 * @since 1.0
+	 * @see #generateAsync(String, String, DiagramFormat, Logger)
+	 */
+	public CompletableFuture<byte[]> generateAsync(String path, DiagramFormat format, Logger logger) {
+		return generateAsync(path, null, format, logger);
+	}
 
-		byte[] image = generateDiagram(diagramSource);
+	/**
+	 * Retrieves the diagram source text as of a commit from the DevOps git repo
+	 * and generates an image of the requested format from it, without
+	 * blocking the caller.
+	 * <p>
+	 * No thread waits while the diagram and its includes are downloaded; the
+	 * render is queued on the {@link RenderScheduler} as soon as the source is
+	 * complete. Many requests can therefore be in flight at once, their
+	 * downloads overlapping with the renders of others, while only the
+	 * renders occupy threads.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param format	output format
+	 * @param logger	logging instance to use
+	 * @return completes with the image, or with a {@link RenderRejectedException}
+	 * 			or the {@link IOException} that prevented it
+	 * @since 1.0
+	 */
+	public CompletableFuture<byte[]> generateAsync(String path, String commit, DiagramFormat format, Logger logger) {
+		return fetchSourceAsync(path, commit, logger).thenCompose(diagramSource -> renderAsync(diagramSource, format, logger));
+	}
 
-		return image;
+	/**
+	 * Retrieves the diagram source text from the DevOps git repo.
+	 * <p>
+	 * Concurrent requests for the same file share one download. When the file
+	 * (or a file it includes) cannot be retrieved the source of an error
+	 * diagram is returned instead.
+	 *
+	 * @param path path to the source file in DevOps repo.
+	 * @param logger	logging instance to use
+	 * @return source text of the diagram
+	 * @throws IOException	if the request could not be completed
+	 * @since 1.0
+	 */
+	public String fetchSource(String path, Logger logger) throws IOException {
+		return fetchSource(path, null, logger);
 	}
 
 	/**
-	 * Creates the basic auth header value.
+	 * Retrieves the diagram source text as of a commit from the DevOps git repo.
+	 * <p>
+	 * A file read at a commit never changes, so once downloaded it is served
+	 * from memory (or the cache directory) without contacting DevOps again.
+	 * <p>
+	 * {@code !include} directives are expanded with files from the same
+	 * commit (or branch). Included files are cached and revalidated like any
+	 * other source file, and the expanded text is what the image cache is
+	 * keyed on.
 	 *
-	 * @return	Base64 encoded Basic auth token value
-	 * @since	1.0
+	 * @param path		path to the source file in DevOps repo.
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param logger		logging instance to use
+	 * @return source text of the diagram
+	 * @throws IOException	if the request could not be completed
+	 * @since 1.0
 	 */
-	private String generateAuthHeaderValue() {
-		String plainText = ":" + _pat;
-		String header = null;
+	public String fetchSource(String path, String commit, Logger logger) throws IOException {
+		String diagramSource = _sourceFlights.execute(sourceKey(path, commit), () -> retrieveSourceText(path, commit, logger));
+		if (diagramSource == null) {
+			return String.format(DiagramGenerator.ERROR_DIAGRAM_FORMAT, "Unable to retrieve " + path);
+		}
 
 		try {
-			header = "Basic " + Base64.getEncoder().encodeToString(
-					plainText.getBytes(StandardCharsets.UTF_8.toString()));
-		} catch (UnsupportedEncodingException ex) {
-			// what to do here?
+			IncludeResolver resolver = new IncludeResolver(
+					include -> _sourceFlights.execute(sourceKey(include, commit), () -> retrieveSourceText(include, commit, logger)),
+					INCLUDE_EXECUTOR,
+					MAX_INCLUDES,
+					MAX_EXPANDED_LENGTH);
+			long startedAt = System.nanoTime();
+			IncludeResolver.Result resolved = resolver.resolve(diagramSource, path);
+			recordIncludeTime(diagramSource, startedAt);
+			recordIncludes(path, commit, resolved);
+
+			return resolved.getSource();
+		} catch (IncludeException ex) {
+			logger.log(Level.WARNING, ex.getMessage());
+			return String.format(DiagramGenerator.ERROR_DIAGRAM_FORMAT, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieves the diagram source text as of a commit from the DevOps git
+	 * repo without blocking the caller. Caching, coalescing and include
+	 * expansion work as for {@link #fetchSource(String, String, Logger)};
+	 * the files of each include level are requested together.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param logger	logging instance to use
+	 * @return completes with the source text of the diagram
+	 * @since 1.0
+	 */
+	public CompletableFuture<String> fetchSourceAsync(String path, String commit, Logger logger) {
+		return _sourceFlights.executeAsync(sourceKey(path, commit), () -> retrieveSourceTextAsync(path, commit, logger)).thenCompose(diagramSource -> {
+			if (diagramSource == null) {
+				return CompletableFuture.completedFuture(
+						String.format(DiagramGenerator.ERROR_DIAGRAM_FORMAT, "Unable to retrieve " + path));
+			}
+
+			IncludeResolver resolver = new IncludeResolver(
+					include -> _sourceFlights.executeAsync(sourceKey(include, commit), () -> retrieveSourceTextAsync(include, commit, logger)),
+					MAX_INCLUDES,
+					MAX_EXPANDED_LENGTH);
+
+			long startedAt = System.nanoTime();
+			return resolver.resolveAsync(diagramSource, path).handle((resolved, ex) -> {
+				recordIncludeTime(diagramSource, startedAt);
+				if (ex == null) {
+					recordIncludes(path, commit, resolved);
+					return resolved.getSource();
+				}
+
+				Throwable cause = unwrap(ex);
+				if (cause instanceof IncludeException) {
+					logger.log(Level.WARNING, cause.getMessage());
+					return String.format(DiagramGenerator.ERROR_DIAGRAM_FORMAT, cause.getMessage());
+				}
+				throw new CompletionException(cause);
+			});
+		});
+	}
+
+	/**
+	 * Records the time spent expanding the includes of a diagram that has any.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param startedAt		time ({@link System#nanoTime()}) the expansion started
+	 * @since 1.0
+	 */
+	private static void recordIncludeTime(String diagramSource, long startedAt) {
+		if (diagramSource.indexOf("!include") >= 0) {
+			PipelineMetrics.record(PipelineMetrics.Stage.INCLUDES, System.nanoTime() - startedAt);
+		}
+	}
+
+	/**
+	 * Remembers which files a diagram on the default branch includes,
+	 * replacing what was remembered when it was last expanded.
+	 *
+	 * @param path		path to the diagram in DevOps repo.
+	 * @param commit	commit id the diagram was read at, or null for the default branch
+	 * @param resolved	the expanded diagram
+	 * @since 1.0
+	 */
+	private void recordIncludes(String path, String commit, IncludeResolver.Result resolved) {
+		if (commit == null) {
+			synchronized (_includeClosures) {
+				forgetIncludes(path);
+				if (!resolved.getIncludes().isEmpty()) {
+					_includeClosures.put(path, resolved.getIncludes());
+				}
+				for (String include : resolved.getIncludes()) {
+					_includeDependents.computeIfAbsent(include, key -> ConcurrentHashMap.newKeySet()).add(path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets which files a diagram on the default branch includes.
+	 * <p>
+	 * Must be called while holding the lock of {@link #_includeClosures}.
+	 *
+	 * @param path	path to the diagram in DevOps repo.
+	 * @since 1.0
+	 */
+	private void forgetIncludes(String path) {
+		Set<String> includes = _includeClosures.remove(path);
+		if (includes != null) {
+			for (String include : includes) {
+				_includeDependents.computeIfPresent(include, (key, dependents) -> {
+					dependents.remove(path);
+					return dependents.isEmpty() ? null : dependents;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Gets the diagrams on the default branch known to include a file,
+	 * directly or indirectly.
+	 *
+	 * @param path	path to the included file in DevOps repo.
+	 * @return paths of the dependent diagrams
+	 * @since 1.0
+	 */
+	public Set<String> getDependents(String path) {
+		Set<String> dependents = _includeDependents.get(path);
+
+		return dependents == null ? Collections.<String>emptySet() : new HashSet<String>(dependents);
+	}
+
+	/**
+	 * Generates a PNG image from diagram source text, using the rendered image
+	 * cache when possible.
+	 * <p>
+	 * Concurrent requests for the same source and format share one render,
+	 * which runs on the bounded {@link RenderScheduler}. A diagram that
+	 * exceeds the render limits is replaced by an error diagram.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param logger	logging instance to use
+	 * @return PNG image as a byte[]
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public byte[] render(String diagramSource, Logger logger) throws IOException {
+		return render(diagramSource, DiagramFormat.PNG, logger);
+	}
+
+	/**
+	 * Generates an image of the requested format from diagram source text,
+	 * using the rendered image cache when possible. Each format is cached
+	 * separately.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public byte[] render(String diagramSource, DiagramFormat format, Logger logger) throws IOException {
+		return render(diagramSource, format, 0, logger);
+	}
+
+	/**
+	 * Generates one page of a diagram as an image of the requested format,
+	 * using the rendered image cache when possible. Only the requested page
+	 * is rendered, and each page is cached separately.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param page			index of the page, starting at 0
+	 * @param logger		logging instance to use
+	 * @return image as a byte[]
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public byte[] render(String diagramSource, DiagramFormat format, int page, Logger logger) throws IOException {
+		return _renderer.render(diagramSource, format, page, logger);
+	}
+
+	/**
+	 * Generates an image of the requested format from diagram source text
+	 * without blocking the caller. Caching and coalescing work as for
+	 * {@link #render(String, DiagramFormat, Logger)}, and synchronous and
+	 * asynchronous requests for the same image share one render.
+	 *
+	 * @param diagramSource	source text of the diagram
+	 * @param format		output format
+	 * @param logger		logging instance to use
+	 * @return completes with the image, or with a {@link RenderRejectedException}
+	 * 			if the render scheduler is saturated
+	 * @since 1.0
+	 */
+	public CompletableFuture<byte[]> renderAsync(String diagramSource, DiagramFormat format, Logger logger) {
+		return _renderer.renderAsync(diagramSource, format, logger);
+	}
+
+	/**
+	 * Gets the time the source of a diagram was last seen to change.
+	 * <p>
+	 * DevOps does not report modification times for items, so this is the
+	 * time the current content was downloaded. For a diagram that includes
+	 * other files it is the latest such time across the whole include
+	 * closure, so a change to an included file is not answered with 304.
+	 *
+	 * @param path	path to the source file in DevOps repo.
+	 * @return time in epoch millis or -1 if the file has not been downloaded
+	 * @since 1.0
+	 */
+	public long getLastModified(String path) {
+		return getLastModified(path, null);
+	}
+
+	/**
+	 * Gets the time the source of a diagram was last seen to change.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param commit	commit id the file was read at, or null for the default branch
+	 * @return time in epoch millis or -1 if the file has not been downloaded
+	 * @since 1.0
+	 * @see #getLastModified(String)
+	 */
+	public long getLastModified(String path, String commit) {
+		SourceCache.Entry cached = _sourceCache.get(sourceKey(path, commit));
+		if (cached == null) {
+			return -1;
+		}
+
+		long lastModified = cached.getModifiedAt();
+		Set<String> includes = commit == null ? _includeClosures.get(path) : null;
+		if (includes != null) {
+			for (String include : includes) {
+				SourceCache.Entry included = _sourceCache.get(sourceKey(include, null));
+				if (included == null) {
+					return -1;
+				}
+				lastModified = Math.max(lastModified, included.getModifiedAt());
+			}
 		}
 
-		return header;
+		return lastModified;
+	}
+
+	/**
+	 * Makes a lightweight request to DevOps so a kept-alive (TLS) connection
+	 * is waiting in the connection pool for the first real request.
+	 *
+	 * @param logger	logging instance to use
+	 * @return HTTP status DevOps answered with
+	 * @throws IOException	if DevOps could not be reached
+	 * @since 1.0
+	 */
+	public int primeConnection(Logger logger) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Authorization", _config.getAuthHeader());
+
+		try {
+			return _httpClient.GetContent(
+					String.format(ConnectionDataPathFormat, _config.getOrganization()),
+					headers,
+					new HashMap<String, String>(),
+					logger).getStatusCode();
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Forgets the downloaded source of a file on the default branch, so the
+	 * next request downloads it again instead of revalidating or reusing it.
+	 * The files it includes are forgotten too; they are remembered again when
+	 * it is next expanded. Diagrams that include the file are still known to
+	 * {@link #getDependents(String)}.
+	 *
+	 * @param path	path to the source file in DevOps repo.
+	 * @since 1.0
+	 */
+	public void invalidateSource(String path) {
+		_sourceCache.invalidate(sourceKey(path, null));
+		synchronized (_includeClosures) {
+			forgetIncludes(path);
+		}
+	}
+
+	/**
+	 * Gets the files changed between two commits.
+	 *
+	 * @param baseCommit	commit before the change
+	 * @param targetCommit	commit after the change
+	 * @param logger		logging instance to use
+	 * @return changed files; folders are not included
+	 * @throws IOException	if DevOps could not be queried
+	 * @since 1.0
+	 */
+	public List<Change> getChanges(String baseCommit, String targetCommit, Logger logger) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Authorization", _config.getAuthHeader());
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(ApiVersionParam, ApiVersion);
+		params.put("baseVersion", baseCommit);
+		params.put("baseVersionType", CommitVersionType);
+		params.put("targetVersion", targetCommit);
+		params.put("targetVersionType", CommitVersionType);
+		params.put("$top", Integer.toString(DiffPageSize));
+
+		List<Change> changes = new ArrayList<Change>();
+
+		for (int page = 0; page < DiffMaxPages; page++) {
+			params.put("$skip", Integer.toString(page * DiffPageSize));
+
+			HttpContent response;
+			try {
+				response = _httpClient.GetContent(_diffPath, headers, params, logger);
+			} catch (URISyntaxException ex) {
+				throw new IOException(ex);
+			}
+
+			if (response.getStatusCode() != 200) {
+				throw new IOException("DevOps answered " + response.getStatusCode() + " for the diff of " + targetCommit);
+			}
+
+			if (parseChanges(response.getContent(), changes)) {
+				return changes;
+			}
+		}
+
+		logger.warning("Diff of " + targetCommit + " has more than " + (DiffMaxPages * DiffPageSize) + " changes; the rest are ignored");
+
+		return changes;
+	}
+
+	/**
+	 * Lists the files in a folder of the repository, and in all of its
+	 * subfolders, on the default branch.
+	 *
+	 * @param scopePath	folder to list, e.g. "/"
+	 * @param logger	logging instance to use
+	 * @return paths of the files; folders are not included
+	 * @throws IOException	if DevOps could not be queried
+	 * @since 1.0
+	 */
+	public List<String> listFiles(String scopePath, Logger logger) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Authorization", _config.getAuthHeader());
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(ScopePathParam, scopePath);
+		params.put(RecursionLevelParam, "Full");
+		params.put(ApiVersionParam, ApiVersion);
+
+		HttpContent response;
+		try {
+			response = _httpClient.GetContent(_itemsPath, headers, params, logger);
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+
+		if (response.getStatusCode() != 200) {
+			throw new IOException("DevOps answered " + response.getStatusCode() + " for the items under " + scopePath);
+		}
+
+		return parseItems(response.getContent());
+	}
+
+	/**
+	 * Reads the file paths from a DevOps items listing.
+	 *
+	 * @param json	response of the items API
+	 * @return paths of the files; folders are skipped
+	 * @since 1.0
+	 */
+	static List<String> parseItems(String json) {
+		List<String> paths = new ArrayList<String>();
+		JsonArray items = JsonParser.parseString(json).getAsJsonObject().getAsJsonArray("value");
+
+		if (items != null) {
+			for (JsonElement element : items) {
+				JsonObject item = element.getAsJsonObject();
+				if (!getBoolean(item, "isFolder") && !"tree".equals(getString(item, "gitObjectType"))) {
+					paths.add(getString(item, "path"));
+				}
+			}
+		}
+
+		return paths;
+	}
+
+	/**
+	 * Reads the changed files from one page of a DevOps commit diff.
+	 *
+	 * @param json		response of the diffs API
+	 * @param changes	receives the changed files; folders are skipped
+	 * @return true if the response was the last page
+	 * @since 1.0
+	 */
+	static boolean parseChanges(String json, List<Change> changes) {
+		JsonObject diff = JsonParser.parseString(json).getAsJsonObject();
+		JsonArray entries = diff.getAsJsonArray("changes");
+
+		if (entries != null) {
+			for (JsonElement element : entries) {
+				JsonObject entry = element.getAsJsonObject();
+				JsonObject item = entry.getAsJsonObject("item");
+				if (item == null || getBoolean(item, "isFolder") || "tree".equals(getString(item, "gitObjectType"))) {
+					continue;
+				}
+
+				String originalPath = getString(entry, "originalPath");
+				if (originalPath == null) {
+					originalPath = getString(entry, "sourceServerItem");
+				}
+
+				changes.add(new Change(getString(item, "path"), originalPath, getString(entry, "changeType")));
+			}
+		}
+
+		return entries == null || entries.size() == 0 || getBoolean(diff, "allChangesIncluded");
+	}
+
+	/** @return GUID/UUID of the DevOps git repository diagrams are read from */
+	public String getRepositoryId() {
+		return _config.getRepositoryId();
+	}
+
+	/**
+	 * Determines whether a value is a full or abbreviated git commit id.
+	 *
+	 * @param value	value to check
+	 * @return true if the value is 7 to 40 hex digits
+	 * @since 1.0
+	 */
+	public static boolean isCommitId(String value) {
+		return value != null && COMMIT_ID.matcher(value).matches();
+	}
+
+	/**
+	 * Gets the instance for the default repository, shared by all functions in
+	 * this host process.
+	 *
+	 * @return the shared instance
+	 * @throws ExceptionInInitializerError	if no repository is configured
+	 * @since 1.0
+	 * @see TenantRegistry#getDefault()
+	 */
+	public static DevOpsDiagram getInstance() {
+		return TenantRegistry.getInstance().getDefault();
+	}
+
+	/** @return client used to make requests against the DevOps API */
+	public HttpWrapper getHttpClient() {
+		return _httpClient;
+	}
+
+	/** @return connection settings of the DevOps repository */
+	public DevOpsConfig getConfig() {
+		return _config;
+	}
+
+	/**
+	 * Gets the cache of rendered images of this repository.
+	 *
+	 * @return the rendered image cache
+	 * @since 1.0
+	 */
+	public DiagramCache getImageCache() {
+		return _renderer.getImageCache();
+	}
+
+	/**
+	 * Gets the cache of downloaded source files of this repository.
+	 *
+	 * @return the source cache
+	 * @since 1.0
+	 */
+	public SourceCache getSourceCache() {
+		return _sourceCache;
+	}
+
+	/**
+	 * Gets the coalescing statistics for source downloads.
+	 *
+	 * @return the source download coalescer
+	 * @since 1.0
+	 */
+	public SingleFlight<String, String> getSourceFlights() {
+		return _sourceFlights;
+	}
+
+	/**
+	 * Gets the coalescing statistics for renders.
+	 *
+	 * @return the render coalescer
+	 * @since 1.0
+	 */
+	public SingleFlight<String, byte[]> getRenderFlights() {
+		return _renderer.getRenderFlights();
 	}
 
 	/**
 	 * Retrieves the diagram source text from the DevOps repo.
+	 * <p>
+	 * A previously downloaded copy is revalidated with a conditional request
+	 * and reused when DevOps reports it has not changed. A copy that expired
+	 * only recently is served straight away and revalidated in the background
+	 * (see {@code azuml_sourceStaleWhileRevalidateSeconds}).
 	 *
 	 * @param path	path to source file in the git repository
-	 * @return source text used to generate the diagram
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param logger	logging instance to use
+	 * @return source text used to generate the diagram, or null if the file
+	 * 			could not be retrieved
 	 * @since 1.0
 	 */
-	private String retrieveSourceText(String path) {
-		// build query params list
+	private String retrieveSourceText(String path, String commit, Logger logger) {
+		SourceCache.Entry cached = commit == null ? _sourceCache.get(sourceKey(path, null)) : null;
+
+		String content = getServableSource(path, commit, cached, logger);
+		if (content != null) {
+			return content;
+		}
+
+		return downloadSourceText(path, commit, cached, logger);
+	}
+
+	/**
+	 * Retrieves the diagram source text from the DevOps repo without blocking
+	 * the caller; see {@link #retrieveSourceText(String, String, Logger)}.
+	 *
+	 * @param path	path to source file in the git repository
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param logger	logging instance to use
+	 * @return completes with the source text used to generate the diagram
+	 * @since 1.0
+	 */
+	private CompletableFuture<String> retrieveSourceTextAsync(String path, String commit, Logger logger) {
+		if (commit != null) {
+			// a file at a commit may be read from disk, which must not happen on an I/O thread of the HTTP client
+			return CompletableFuture.supplyAsync(() -> getServableSource(path, commit, null, logger), INCLUDE_EXECUTOR).thenCompose(content -> {
+				if (content != null) {
+					return CompletableFuture.completedFuture(content);
+				}
+				return downloadSourceTextAsync(path, commit, null, logger);
+			});
+		}
+
+		SourceCache.Entry cached = _sourceCache.get(sourceKey(path, null));
+
+		String content = getServableSource(path, null, cached, logger);
+		if (content != null) {
+			return CompletableFuture.completedFuture(content);
+		}
+
+		return downloadSourceTextAsync(path, null, cached, logger);
+	}
+
+	/**
+	 * Downloads the diagram source text from the DevOps repo, or revalidates
+	 * a cached copy, without blocking the caller; see
+	 * {@link #downloadSourceText(String, String, SourceCache.Entry, Logger)}.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param cached	previously downloaded copy or null
+	 * @param logger	logging instance to use
+	 * @return completes with the source text used to generate the diagram
+	 * @since 1.0
+	 */
+	private CompletableFuture<String> downloadSourceTextAsync(String path, String commit, SourceCache.Entry cached, Logger logger) {
+		BiFunction<HttpContent, Throwable, String> handler = (response, ex) -> {
+			if (ex == null) {
+				try {
+					return handleSourceResponse(path, commit, cached, response, logger);
+				} catch (RuntimeException handleEx) {
+					return handleSourceError(path, cached, handleEx, logger);
+				}
+			}
+
+			return handleSourceError(path, cached, unwrap(ex), logger);
+		};
+
+		CompletableFuture<HttpContent> response = _httpClient.GetContentAsync(
+				_itemsPath, buildSourceHeaders(cached), buildSourceParams(path, commit), logger);
+
+		// a file at a commit is written to disk, which must not happen on an I/O thread of the HTTP client
+		return commit == null ? response.handle(handler) : response.handleAsync(handler, INCLUDE_EXECUTOR);
+	}
+
+	/**
+	 * Gets a copy of a source file that may be served without contacting
+	 * DevOps: a file at a commit, a fresh copy, or a recently expired copy,
+	 * which is then revalidated in the background.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param cached	previously downloaded copy of a file on the default branch or null
+	 * @param logger	logging instance to use
+	 * @return the source text, or null if it has to be downloaded or revalidated
+	 * @since 1.0
+	 */
+	private String getServableSource(String path, String commit, SourceCache.Entry cached, Logger logger) {
+		// a file at a commit never changes; never ask DevOps twice
+		if (commit != null) {
+			SourceCache.Entry pinned = _sourceCache.getImmutable(sourceKey(path, commit), logger);
+
+			return pinned == null ? null : pinned.getContent();
+		}
+
+		// serve recently validated content without asking DevOps again
+		if (_sourceCache.isFresh(cached)) {
+			return cached.getContent();
+		}
+
+		if (_sourceCache.isStaleWhileRevalidate(cached)) {
+			revalidateInBackground(path, sourceKey(path, null), cached);
+			return cached.getContent();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Downloads the diagram source text from the DevOps repo, or revalidates
+	 * a cached copy.
+	 * <p>
+	 * When DevOps cannot be reached, is throttling or answers with a server
+	 * error (after the retries of the {@link HttpWrapper}), the cached copy is
+	 * served instead for up to {@code azuml_sourceStaleIfErrorSeconds}.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @param cached	previously downloaded copy or null
+	 * @param logger	logging instance to use
+	 * @return source text used to generate the diagram, or null if the file
+	 * 			could not be retrieved
+	 * @since 1.0
+	 */
+	private String downloadSourceText(String path, String commit, SourceCache.Entry cached, Logger logger) {
+		try {
+			HttpContent response = _httpClient.GetContent(_itemsPath, buildSourceHeaders(cached), buildSourceParams(path, commit), logger);
+
+			return handleSourceResponse(path, commit, cached, response, logger);
+		} catch (Exception ex) {
+			return handleSourceError(path, cached, ex, logger);
+		}
+	}
+
+	/**
+	 * Builds the query parameters of a request for a source file.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id to read the file at, or null for the default branch
+	 * @return the query parameters
+	 * @since 1.0
+	 */
+	private static Map<String, String> buildSourceParams(String path, String commit) {
 		Map<String, String> params = new HashMap<String, String>();
 		// TODO: Use java.net.URI type to validate the path??
 		params.put(FilePathParam, path);
 		params.put(ApiVersionParam, ApiVersion);
+		if (commit != null) {
+			params.put(VersionParam, commit);
+			params.put(VersionTypeParam, CommitVersionType);
+		}
 
-		String formattedPath = String.format(PathFormat, _organization, _project, _repositoryId);
+		return params;
+	}
 
-		// configure headers
+	/**
+	 * Builds the headers of a request for a source file.
+	 *
+	 * @param cached	previously downloaded copy to revalidate or null
+	 * @return the headers
+	 * @since 1.0
+	 */
+	private Map<String, String> buildSourceHeaders(SourceCache.Entry cached) {
 		Map<String, String> headers = new HashMap<String, String>();
-		headers.put("Authorization", _authHeader);
+		headers.put("Authorization", _config.getAuthHeader());
+		if (cached != null) {
+			// the ETag is the git object id, so DevOps answers 304 when the file is unchanged
+			headers.put("If-None-Match", cached.getEtag());
+		}
 
+		return headers;
+	}
+
+	/**
+	 * Caches the answer of DevOps to a request for a source file and gets the
+	 * source text to use.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id the file was read at, or null for the default branch
+	 * @param cached	previously downloaded copy or null
+	 * @param response	the answer of DevOps
+	 * @param logger	logging instance to use
+	 * @return source text used to generate the diagram, or null if the file was not found
+	 * @since 1.0
+	 */
+	private String handleSourceResponse(String path, String commit, SourceCache.Entry cached, HttpContent response, Logger logger) {
 		String diagramContent = null;
-		try {
-			diagramContent = _httpClient.GetStringContent(formattedPath, headers, params);
-		} catch (Exception ex) {
-			_logger.log(Level.SEVERE, "Execpected error occurred", ex);
-			diagramContent = String.format(ERROR_DIAGRAM_FORMAT, ex.toString());
+
+		if (response.getStatusCode() == 304 && cached != null) {
+			_sourceCache.markNotModified(cached);
+			diagramContent = cached.getContent();
+		} else if (response.getStatusCode() == 200) {
+			diagramContent = response.getContent();
+			if (commit != null) {
+				_sourceCache.putImmutable(sourceKey(path, commit), diagramContent, logger);
+			} else {
+				_sourceCache.put(sourceKey(path, commit), response.getHeader("ETag"), diagramContent);
+			}
+		} else if (RetryPolicy.isRetryableStatus(response.getStatusCode()) && _sourceCache.isUsableOnError(cached)) {
+			logger.warning("DevOps answered " + response.getStatusCode() + " for " + path + "; serving the last good copy");
+			diagramContent = cached.getContent();
+		} else {
+			logger.warning("DevOps answered " + response.getStatusCode() + " for " + path);
 		}
 
 		return diagramContent;
 	}
 
 	/**
-	 * Generates a PlantUML diagram image from source text.
+	 * Gets the source text to use when a source file could not be requested.
+	 * <p>
+	 * Without a usable copy the failure is reported as null, like a missing
+	 * file, so an include that cannot be fetched fails the expansion instead
+	 * of inlining the text of an error diagram into its parent.
 	 *
-	 * @param source	source text for the diagram
-	 * @return a PNG byte array of the generated diagram.
+	 * @param path		path to source file in the git repository
+	 * @param cached	previously downloaded copy or null
+	 * @param ex		reason the request failed
+	 * @param logger	logging instance to use
+	 * @return the cached copy if it may still be served, otherwise null
 	 * @since 1.0
 	 */
-	private byte[] generateDiagram(String source) throws IOException {
-		ByteArrayOutputStream png = null;
-		byte[] pngBytes = null;
+	private String handleSourceError(String path, SourceCache.Entry cached, Throwable ex, Logger logger) {
+		if (_sourceCache.isUsableOnError(cached)) {
+			logger.warning("Unable to reach DevOps for " + path + " (" + ex.getMessage() + "); serving the last good copy");
+			return cached.getContent();
+		}
 
-		try {
-			SourceStringReader reader = new SourceStringReader(source);
-			png = new ByteArrayOutputStream();
-			String desc = reader.generateImage(png);	// desc would contain what?
-			pngBytes = png.toByteArray();
-		} catch (IOException ex) {
-			_logger.log(Level.SEVERE, "Unexpected error generating the diagram", ex);
-			throw ex;
-		} finally {
-			png.close();
+		logger.log(Level.SEVERE, "Unexpected error occurred", ex);
+		return null;
+	}
+
+	/**
+	 * Revalidates a cached file on a background thread, unless a
+	 * revalidation of that file is already running.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param key		source cache key of the file
+	 * @param cached	the cached copy being served meanwhile
+	 * @since 1.0
+	 */
+	private void revalidateInBackground(String path, String key, SourceCache.Entry cached) {
+		if (!_revalidating.add(key)) {
+			return;
 		}
 
-		return pngBytes;
+		REVALIDATE_EXECUTOR.execute(() -> {
+			try {
+				downloadSourceText(path, null, cached, BACKGROUND_LOGGER);
+			} finally {
+				_revalidating.remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Builds the key identifying a source file (and commit) in the source
+	 * cache and the download coalescer.
+	 *
+	 * @param path		path to source file in the git repository
+	 * @param commit	commit id or null for the default branch
+	 * @return the key
+	 * @since 1.0
+	 */
+	private static String sourceKey(String path, String commit) {
+		return commit == null ? path : path + "@" + commit.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Gets the failure behind an exception raised by a completion stage.
+	 *
+	 * @param ex	exception a stage completed with
+	 * @return the original exception
+	 * @since 1.0
+	 */
+	private static Throwable unwrap(Throwable ex) {
+		return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+	}
+
+	private static String getString(JsonObject object, String name) {
+		JsonElement value = object.get(name);
+
+		return (value == null || value.isJsonNull()) ? null : value.getAsString();
+	}
+
+	private static boolean getBoolean(JsonObject object, String name) {
+		JsonElement value = object.get(name);
+
+		return value != null && !value.isJsonNull() && value.getAsBoolean();
 	}
-}
\ No newline at end of file
+}
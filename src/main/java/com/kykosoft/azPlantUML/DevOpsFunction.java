@@ -1,6 +1,7 @@
 package com.kykosoft.azPlantUML;
 
 import java.io.IOException;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +29,29 @@ public class DevOpsFunction {
 	 * Generates an image using the contents of a file in an Azure DevOps repository.
 	 * <p>
 	 * Accessed at: /api/DevOps?path=%2Fpath%2Fto%2Ffile.puml
+	 * <p>
+	 * The optional {@code format} parameter selects {@code png} (default),
+	 * {@code svg} or {@code svgz} output.
+	 * <p>
+	 * Images carry an {@code ETag} derived from the source hash. A request
+	 * whose {@code If-None-Match} still matches is answered with 304 without
+	 * rendering; DevOps is not contacted either while the downloaded source is
+	 * fresh (see {@code azuml_sourceMaxAgeSeconds}).
+	 * <p>
+	 * The optional {@code version} parameter pins the file to a commit id.
+	 * Pinned images never change and are served as immutable.
+	 * <p>
+	 * The optional {@code page} parameter selects one page (starting at 1) of
+	 * a file with several {@code @startuml} blocks or {@code newpage}
+	 * sections; only that page is rendered, and it is cached on its own. The
+	 * DevOpsPages function reports how many pages a file has.
+	 * <p>
+	 * The optional {@code repo} (tenant name, repository name or id) and
+	 * {@code project} parameters select one of the repositories configured in
+	 * {@code azuml_tenants}; without them the default repository is used.
+	 * <p>
+	 * Each request logs one JSON event with the time spent in each stage (see
+	 * {@link PipelineMetrics.Trace}).
 	 *
 	 * @param request	incoming HTTP request
 	 * @param context	Azure Function execution context
@@ -44,6 +68,27 @@ public class DevOpsFunction {
 			final ExecutionContext context ) {
 
 		Logger logger = context.getLogger();
+		PipelineMetrics.Trace trace = PipelineMetrics.startTrace("DevOps");
+
+		HttpResponseMessage response = generate(request, trace, logger);
+		trace.finish(response.getStatusCode(), logger);
+
+		return response;
+	}
+
+	/**
+	 * Validates the request and generates the image.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param trace		receives the timings of the request
+	 * @param logger	logging instance of the invocation
+	 * @return	HTTP Response
+	 * @since	1.0
+	 */
+	private HttpResponseMessage generate(
+			HttpRequestMessage<Optional<String>> request,
+			PipelineMetrics.Trace trace,
+			Logger logger) {
 		HttpResponseMessage response = null;
 
 		// check request parameters
@@ -58,14 +103,107 @@ public class DevOpsFunction {
 					.build();
 		}
 
-		DevOpsDiagram generator = new DevOpsDiagram(logger);
+		DiagramFormat format;
+		try {
+			format = DiagramFormat.fromParameter(request.getQueryParameters().get("format"));
+		} catch (IllegalArgumentException ex) {
+			logger.log(Level.SEVERE, ex.getMessage());
+
+			return request
+					.createResponseBuilder(HttpStatus.BAD_REQUEST)
+					.body(ex.getMessage())
+					.header("Content-Type", "text/plain")
+					.build();
+		}
+
+		String commit = request.getQueryParameters().get("version");
+		if (commit != null && !DevOpsDiagram.isCommitId(commit)) {
+			String errMessage = "'version' must be a commit id";
+			logger.log(Level.SEVERE, errMessage);
+
+			return request
+					.createResponseBuilder(HttpStatus.BAD_REQUEST)
+					.body(errMessage)
+					.header("Content-Type", "text/plain")
+					.build();
+		}
+
+		int page;
+		try {
+			page = parsePage(request.getQueryParameters().get("page"));
+		} catch (IllegalArgumentException ex) {
+			logger.log(Level.SEVERE, ex.getMessage());
+
+			return request
+					.createResponseBuilder(HttpStatus.BAD_REQUEST)
+					.body(ex.getMessage())
+					.header("Content-Type", "text/plain")
+					.build();
+		}
+
+		DevOpsDiagram generator = TenantRegistry.getInstance().getGenerator(
+				request.getQueryParameters().get("project"),
+				request.getQueryParameters().get("repo"));
+		if (generator == null) {
+			String errMessage = "No repository is configured for the requested 'project' and 'repo'";
+			logger.log(Level.WARNING, errMessage);
+
+			return request
+					.createResponseBuilder(HttpStatus.NOT_FOUND)
+					.body(errMessage)
+					.header("Content-Type", "text/plain")
+					.build();
+		}
+
+		String path = request.getQueryParameters().get("path");
+		trace.put("path", path)
+			.put("format", format.name().toLowerCase(Locale.ROOT))
+			.put("repository", generator.getRepositoryId())
+			.put("page", page + 1)
+			.mark(PipelineMetrics.Stage.CONFIG);
 
 		try {
-			byte[] diagramImage = generator.generate(request.getQueryParameters().get("path"));
+			String diagramSource = generator.fetchSource(path, commit, logger);
+			String etag = HttpCaching.entityTag(DiagramCache.computeKey(diagramSource, format.name(), page));
+			long lastModified = generator.getLastModified(path, commit);
+
+			// only a successfully downloaded pinned file is immutable, never an error diagram
+			String cacheControl = (commit != null && lastModified >= 0)
+					? HttpCaching.immutableCacheControl()
+					: HttpCaching.cacheControl();
+			trace.mark(PipelineMetrics.Stage.FETCH);
+
+			if (HttpCaching.isNotModified(request.getHeaders(), etag, lastModified)) {
+				logger.info("Client copy of " + path + " is current");
+				response = cachingHeaders(request.createResponseBuilder(HttpStatus.NOT_MODIFIED), etag, lastModified, cacheControl)
+					.build();
+				trace.mark(PipelineMetrics.Stage.RESPONSE);
 
-			response = request.createResponseBuilder(HttpStatus.OK)
+				return response;
+			}
+
+			byte[] diagramImage = generator.render(diagramSource, format, page, logger);
+			trace.put("bytes", diagramImage.length).mark(PipelineMetrics.Stage.RENDER);
+
+			HttpResponseMessage.Builder builder = request.createResponseBuilder(HttpStatus.OK)
 				.body(diagramImage)
-				.header("Content-Type", "image/png")
+				.header("Content-Type", format.getContentType());
+			if (format.isCompressed()) {
+				builder.header("Content-Encoding", "gzip");
+			}
+			response = cachingHeaders(builder, etag, lastModified, cacheControl).build();
+			trace.mark(PipelineMetrics.Stage.RESPONSE);
+		} catch (PageNotFoundException ex) {
+			response = request.createResponseBuilder(HttpStatus.NOT_FOUND)
+				.body(ex.getMessage())
+				.header("Content-Type", "text/plain")
+				.build();
+		} catch (RenderRejectedException ex) {
+			logger.log(Level.WARNING, "Diagram rejected: " + ex.getMessage());
+			response = request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+				.body(ex.getMessage())
+				.header("Content-Type", "text/plain")
+				.header("Retry-After", Integer.toString(ex.getRetryAfterSeconds()))
 				.build();
 		} catch (IOException ex) {
 			response = request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -76,4 +214,53 @@ public class DevOpsFunction {
 
 		return response;
 	}
+
+	/**
+	 * Reads the {@code page} parameter, which numbers pages from 1.
+	 *
+	 * @param value	value of the parameter or null
+	 * @return index of the page, starting at 0; 0 if the parameter is missing
+	 * @throws IllegalArgumentException	if the value is not a positive number
+	 * @since 1.0
+	 */
+	static int parsePage(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return 0;
+		}
+
+		try {
+			int page = Integer.parseInt(value.trim());
+			if (page >= 1) {
+				return page - 1;
+			}
+		} catch (NumberFormatException ex) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException("'page' must be a page number starting at 1");
+	}
+
+	/**
+	 * Adds the caching headers for a diagram image to a response.
+	 *
+	 * @param builder		response being built
+	 * @param etag			entity tag of the image
+	 * @param lastModified	time the source last changed or a negative value if unknown
+	 * @param cacheControl	value of the Cache-Control header
+	 * @return the builder
+	 * @since 1.0
+	 */
+	private static HttpResponseMessage.Builder cachingHeaders(
+			HttpResponseMessage.Builder builder,
+			String etag,
+			long lastModified,
+			String cacheControl) {
+		builder.header("ETag", etag)
+			.header("Cache-Control", cacheControl);
+		if (lastModified >= 0) {
+			builder.header("Last-Modified", HttpCaching.formatHttpDate(lastModified));
+		}
+
+		return builder;
+	}
 }
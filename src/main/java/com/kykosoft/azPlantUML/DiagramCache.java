@@ -0,0 +1,423 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sourceforge.plantuml.version.Version;
+
+/**
+ * Content-addressed cache of rendered diagram images.
+ * <p>
+ * Images are keyed by a SHA-256 hash of the diagram source, the output format
+ * and the PlantUML version, so an unchanged source never has to be rendered
+ * twice. Entries are held in a size-bounded, in-memory LRU tier and can
+ * optionally be written through to a persistent {@link DiagramStore}, a local
+ * directory or a blob container, that survives function host restarts and
+ * can be shared by every instance of the function app.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class DiagramCache {
+
+	/** Name of the environment variable that holds the in-memory cache size limit (in bytes) */
+	private static final String ENV_MAX_BYTES = "azuml_cacheMaxBytes";
+
+	/** Name of the environment variable that holds the directory used for the disk tier */
+	private static final String ENV_DIRECTORY = "azuml_cacheDir";
+
+	/** Name of the environment variable that holds the size limit (in bytes) of the disk tier */
+	private static final String ENV_DIRECTORY_MAX_BYTES = "azuml_cacheDirMaxBytes";
+
+	/** Name of the environment variable that holds the number of persistent tier lookups run at once for asynchronous requests */
+	private static final String ENV_STORE_THREADS = "azuml_cacheStoreThreads";
+
+	/** Default size limit of the in-memory tier; 64 MB */
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** Default size limit of the disk tier; 1 GB */
+	private static final long DEFAULT_DIRECTORY_MAX_BYTES = 1024L * 1024 * 1024;
+
+	/** Hex digits used when encoding hashes */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Persistent tier shared by every cache in this host process */
+	private static volatile DiagramStore sharedStore = null;
+
+	/** Whether the shared persistent tier has been created from the environment */
+	private static volatile boolean sharedStoreCreated = false;
+
+	/** Looks up the persistent tier for asynchronous requests, whose threads must not block on it */
+	private static final ExecutorService STORE_EXECUTOR = Executors.newFixedThreadPool(
+			EnvironmentSettings.getInt(ENV_STORE_THREADS, 8), new DaemonThreadFactory("azuml-image-store-"));
+
+
+	/** Maximum number of image bytes held by the in-memory tier */
+	private final long _maxBytes;
+
+	/** Persistent tier; null when it is disabled */
+	private final DiagramStore _store;
+
+	/** In-memory entries in least-recently-used order */
+	private final LinkedHashMap<String, byte[]> _entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	/** Number of image bytes currently held by the in-memory tier */
+	private long _currentBytes = 0;
+
+	/** Number of lookups answered from either tier */
+	private final AtomicLong _hits = new AtomicLong();
+
+	/** Number of lookups answered from the persistent tier */
+	private final AtomicLong _diskHits = new AtomicLong();
+
+	/** Number of lookups that found nothing */
+	private final AtomicLong _misses = new AtomicLong();
+
+	/** Number of entries pushed out of the in-memory tier */
+	private final AtomicLong _evictions = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance whose persistent tier is a directory without
+	 * a size limit.
+	 *
+	 * @param maxBytes	maximum number of image bytes to hold in memory
+	 * @param directory	directory for the disk tier or null to disable it
+	 * @since 1.0
+	 */
+	public DiagramCache(long maxBytes, Path directory) {
+		this(directory == null ? null : new FileDiagramStore(directory, 0), maxBytes);
+	}
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param store		persistent tier or null to disable it; may be shared with other caches
+	 * @param maxBytes	maximum number of image bytes to hold in memory
+	 * @since 1.0
+	 */
+	public DiagramCache(DiagramStore store, long maxBytes) {
+		_store = store;
+		_maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates a cache configured from the environment.
+	 * <p>
+	 * {@code azuml_cacheMaxBytes} sets the in-memory limit (default 64 MB). The
+	 * persistent tier is the blob container {@code azuml_blobContainerUrl}
+	 * when set, otherwise the directory {@code azuml_cacheDir} when set.
+	 *
+	 * @return a new cache instance
+	 * @since 1.0
+	 */
+	public static DiagramCache fromEnvironment() {
+		return fromEnvironment(getDefaultMaxBytes());
+	}
+
+	/**
+	 * Creates a cache with its own in-memory size limit, e.g. for one tenant's
+	 * partition. The persistent tier is shared: its entries are addressed by
+	 * content, so they are the same for every tenant.
+	 *
+	 * @param maxBytes	maximum number of image bytes to hold in memory
+	 * @return a new cache instance
+	 * @since 1.0
+	 */
+	public static DiagramCache fromEnvironment(long maxBytes) {
+		return new DiagramCache(getSharedStore(), maxBytes);
+	}
+
+	/**
+	 * Gets the persistent tier shared by every cache in this host process,
+	 * creating it from the environment settings on first use.
+	 * <p>
+	 * {@code azuml_blobContainerUrl} selects a {@link BlobDiagramStore};
+	 * otherwise {@code azuml_cacheDir} selects a {@link FileDiagramStore}
+	 * limited to {@code azuml_cacheDirMaxBytes} (default 1 GB).
+	 *
+	 * @return the shared store or null if none is configured
+	 * @since 1.0
+	 */
+	public static DiagramStore getSharedStore() {
+		if (!sharedStoreCreated) {
+			synchronized (DiagramCache.class) {
+				if (!sharedStoreCreated) {
+					DiagramStore store = BlobDiagramStore.fromEnvironment();
+					if (store == null) {
+						String directory = EnvironmentSettings.getString(ENV_DIRECTORY, null);
+						if (directory != null) {
+							store = new FileDiagramStore(
+									Paths.get(directory),
+									EnvironmentSettings.getLong(ENV_DIRECTORY_MAX_BYTES, DEFAULT_DIRECTORY_MAX_BYTES));
+						}
+					}
+
+					sharedStore = store;
+					sharedStoreCreated = true;
+				}
+			}
+		}
+
+		return sharedStore;
+	}
+
+	/**
+	 * Gets the configured in-memory size limit ({@code azuml_cacheMaxBytes},
+	 * default 64 MB).
+	 *
+	 * @return size limit in bytes
+	 * @since 1.0
+	 */
+	public static long getDefaultMaxBytes() {
+		return EnvironmentSettings.getLong(ENV_MAX_BYTES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Computes the cache key for a diagram.
+	 *
+	 * @param source	source text of the diagram
+	 * @param format	name of the output format
+	 * @return hex encoded SHA-256 hash identifying the rendered image
+	 * @since 1.0
+	 */
+	public static String computeKey(String source, String format) {
+		return hash(Version.versionString() + "\n" + format + "\n" + source);
+	}
+
+	/**
+	 * Computes the cache key for one page of a diagram. The first page has the
+	 * same key as the whole diagram, so single page diagrams are unaffected.
+	 *
+	 * @param source	source text of the diagram
+	 * @param format	name of the output format
+	 * @param page		index of the page, starting at 0
+	 * @return hex encoded SHA-256 hash identifying the rendered image
+	 * @since 1.0
+	 */
+	public static String computeKey(String source, String format, int page) {
+		return page == 0 ? computeKey(source, format) : computeKey(source, format + "#" + page);
+	}
+
+	/**
+	 * Computes the hex encoded SHA-256 hash of a string.
+	 *
+	 * @param text	text to hash
+	 * @return hex encoded hash value
+	 * @since 1.0
+	 */
+	public static String hash(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+
+			char[] hex = new char[hash.length * 2];
+			for (int i = 0; i < hash.length; i++) {
+				hex[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+				hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+			}
+
+			return new String(hex);
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Looks up a rendered image, checking memory first and then the persistent
+	 * tier. A failing persistent tier counts as a miss.
+	 *
+	 * @param key		cache key from {@link #computeKey(String, String)}
+	 * @param logger	logging instance to use
+	 * @return the cached image or null if it is not cached
+	 * @since 1.0
+	 */
+	public byte[] get(String key, Logger logger) {
+		byte[] image = getFromMemory(key);
+		if (image == null && _store != null) {
+			image = getFromStore(key, logger);
+		}
+
+		return count(image);
+	}
+
+	/**
+	 * Looks up a rendered image without blocking the caller. Memory is
+	 * checked on the calling thread; the persistent tier, which may be a
+	 * remote blob container, is read on a separate executor.
+	 *
+	 * @param key		cache key from {@link #computeKey(String, String)}
+	 * @param logger	logging instance to use
+	 * @return completes with the cached image, or null if it is not cached
+	 * @since 1.0
+	 * @see #get(String, Logger)
+	 */
+	public CompletableFuture<byte[]> getAsync(String key, Logger logger) {
+		byte[] image = getFromMemory(key);
+		if (image != null || _store == null) {
+			return CompletableFuture.completedFuture(count(image));
+		}
+
+		return CompletableFuture.supplyAsync(() -> count(getFromStore(key, logger)), STORE_EXECUTOR);
+	}
+
+	/**
+	 * Looks up a rendered image in the in-memory tier.
+	 *
+	 * @param key	cache key
+	 * @return the cached image or null if it is not in memory
+	 * @since 1.0
+	 */
+	private byte[] getFromMemory(String key) {
+		synchronized (_entries) {
+			return _entries.get(key);
+		}
+	}
+
+	/**
+	 * Looks up a rendered image in the persistent tier and keeps a found
+	 * image in memory. A failing persistent tier counts as a miss.
+	 *
+	 * @param key		cache key
+	 * @param logger	logging instance to use
+	 * @return the stored image or null if it is not stored
+	 * @since 1.0
+	 */
+	private byte[] getFromStore(String key, Logger logger) {
+		try {
+			byte[] image = _store.get(key);
+			if (image != null) {
+				_diskHits.incrementAndGet();
+				putInMemory(key, image);
+			}
+			return image;
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Unable to read cached image " + key, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Counts the outcome of a lookup.
+	 *
+	 * @param image	image found by the lookup, or null
+	 * @return the image
+	 * @since 1.0
+	 */
+	private byte[] count(byte[] image) {
+		if (image != null) {
+			_hits.incrementAndGet();
+		} else {
+			_misses.incrementAndGet();
+		}
+
+		return image;
+	}
+
+	/**
+	 * Adds a rendered image to the cache and writes it through to the
+	 * persistent tier.
+	 *
+	 * @param key		cache key from {@link #computeKey(String, String)}
+	 * @param image		rendered image
+	 * @param logger	logging instance to use
+	 * @since 1.0
+	 */
+	public void put(String key, byte[] image, Logger logger) {
+		putInMemory(key, image);
+
+		if (_store != null) {
+			try {
+				_store.put(key, image);
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Unable to write cached image " + key, ex);
+			}
+		}
+	}
+
+	/**
+	 * Adds an image to the in-memory tier, evicting the least recently used
+	 * entries until the tier fits within its size limit.
+	 *
+	 * @param key	cache key
+	 * @param image	rendered image
+	 * @since 1.0
+	 */
+	private void putInMemory(String key, byte[] image) {
+		if (image.length > _maxBytes) {
+			return;
+		}
+
+		synchronized (_entries) {
+			byte[] previous = _entries.put(key, image);
+			if (previous != null) {
+				_currentBytes -= previous.length;
+			}
+			_currentBytes += image.length;
+
+			Iterator<Map.Entry<String, byte[]>> eldest = _entries.entrySet().iterator();
+			while (_currentBytes > _maxBytes && eldest.hasNext()) {
+				Map.Entry<String, byte[]> entry = eldest.next();
+				_currentBytes -= entry.getValue().length;
+				eldest.remove();
+				_evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/** @return number of lookups answered from either tier */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/** @return number of lookups answered from the persistent tier */
+	public long getDiskHits() {
+		return _diskHits.get();
+	}
+
+	/** @return number of lookups that found nothing */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	/** @return number of entries evicted from the in-memory tier */
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	/** @return number of entries currently held in memory */
+	public int getEntryCount() {
+		synchronized (_entries) {
+			return _entries.size();
+		}
+	}
+
+	/** @return number of image bytes currently held in memory */
+	public long getCurrentBytes() {
+		synchronized (_entries) {
+			return _currentBytes;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"DiagramCache[hits=%1$d, diskHits=%2$d, misses=%3$d, evictions=%4$d, entries=%5$d, bytes=%6$d/%7$d]",
+				getHits(), getDiskHits(), getMisses(), getEvictions(), getEntryCount(), getCurrentBytes(), _maxBytes);
+	}
+}
@@ -0,0 +1,76 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.Locale;
+
+import net.sourceforge.plantuml.FileFormat;
+
+/**
+ * Output formats a diagram can be rendered in.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public enum DiagramFormat {
+
+	/** Raster image; the default */
+	PNG(FileFormat.PNG, "image/png", false),
+
+	/** Vector image; smaller and cheaper to produce than PNG for most diagrams */
+	SVG(FileFormat.SVG, "image/svg+xml", false),
+
+	/** Gzip compressed SVG, served with {@code Content-Encoding: gzip} */
+	SVGZ(FileFormat.SVG, "image/svg+xml", true);
+
+
+	/** PlantUML format used to render the image */
+	private final FileFormat _fileFormat;
+
+	/** Value of the Content-Type response header */
+	private final String _contentType;
+
+	/** Whether the rendered image is gzip compressed */
+	private final boolean _compressed;
+
+
+	DiagramFormat(FileFormat fileFormat, String contentType, boolean compressed) {
+		_fileFormat = fileFormat;
+		_contentType = contentType;
+		_compressed = compressed;
+	}
+
+	/**
+	 * Parses the value of a {@code format} request parameter.
+	 *
+	 * @param value	format name, case insensitive; null or empty selects PNG
+	 * @return the matching format
+	 * @throws IllegalArgumentException	if the value does not name a format
+	 * @since 1.0
+	 */
+	public static DiagramFormat fromParameter(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return PNG;
+		}
+
+		try {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Unsupported format '" + value + "'; expected png, svg or svgz");
+		}
+	}
+
+	/** @return PlantUML format used to render the image */
+	public FileFormat getFileFormat() {
+		return _fileFormat;
+	}
+
+	/** @return value of the Content-Type response header */
+	public String getContentType() {
+		return _contentType;
+	}
+
+	/** @return true if the rendered image is gzip compressed */
+	public boolean isCompressed() {
+		return _compressed;
+	}
+}
@@ -1,11 +1,13 @@
 package com.kykosoft.azPlantUML;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
-import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.FileFormatOption;
 
 /**
  * Generates a PlantUML diagram from source text.
@@ -16,8 +18,33 @@ import net.sourceforge.plantuml.SourceStringReader;
  */
 public class DiagramGenerator {
 
+	/** format string for generating an error diagram */
+	static final String ERROR_DIAGRAM_FORMAT = "@startuml\nparticipant Error #red\nnote over Error\n\t%1$s\nend note\n@enduml";
+
+	/** Name of the environment variable that holds the maximum size of a rendered image (in bytes) */
+	private static final String ENV_MAX_OUTPUT_BYTES = "azuml_renderMaxBytes";
+
+	/** Name of the environment variable that holds how long a failed source is remembered */
+	private static final String ENV_NEGATIVE_CACHE_SECONDS = "azuml_negativeCacheSeconds";
+
+	/** Maximum size of a rendered image; 16 MB unless configured */
+	private static final long MAX_OUTPUT_BYTES = EnvironmentSettings.getLong(ENV_MAX_OUTPUT_BYTES, 16L * 1024 * 1024);
+
+	/** Recently parsed sources, so the formats of one diagram share a parse */
+	private static final ParseCache PARSED_DIAGRAMS = ParseCache.fromEnvironment();
+
+	/**
+	 * Sources that recently exceeded a render limit, by image cache key, and
+	 * sources whose render timed out, by source hash
+	 */
+	private static final NegativeCache FAILED_RENDERS = new NegativeCache(
+			EnvironmentSettings.getLong(ENV_NEGATIVE_CACHE_SECONDS, 300) * 1000, 1000);
+
 	/**
 	 * Generates a PlantUML diagram as a png from source text.
+	 * <p>
+	 * The render runs on the bounded {@link RenderScheduler}. A diagram that
+	 * exceeds the render limits is replaced by an error diagram.
 	 *
 	 * @param source	text contents of the diagram
 	 * @param logger	logger instance to use
@@ -26,15 +53,21 @@ public class DiagramGenerator {
 	 */
 	public static byte[] generate(String source, Logger logger) {
 		logger.info("Received a reuqest to generate an image");
-		SourceStringReader reader = new SourceStringReader(source);
 
-		try (ByteArrayOutputStream png = new ByteArrayOutputStream()) {
-			String desc = reader.generateImage(png);	// desc would contain what?
-			byte[] pngBytes = png.toByteArray();
+		try {
+			byte[] pngBytes = render(source, logger);
 
 			logger.info("Image successfully generated from the source content");
 
 			return pngBytes;
+		} catch (RenderAbortedException ex) {
+			try {
+				return generateErrorImage(ex.getMessage());
+			} catch (IOException errorEx) {
+				logger.log(Level.SEVERE, "Unable to generate the error diagram", errorEx);
+			}
+		} catch (RenderRejectedException ex) {
+			logger.log(Level.WARNING, "The diagram was not rendered: " + ex.getMessage());
 		} catch (IOException ex) {
 			logger.log(
 				Level.SEVERE,
@@ -44,4 +77,342 @@ public class DiagramGenerator {
 
 		return null;
 	}
+
+	/**
+	 * Renders source text into a PNG on the {@link RenderScheduler}, enforcing
+	 * the render deadline and the output size limit.
+	 * <p>
+	 * A source that exceeds a limit is remembered for a short while (see
+	 * {@code azuml_negativeCacheSeconds}) and repeat requests fail straight
+	 * away with the original reason instead of rendering again. A timeout is
+	 * remembered for every format and page of the source, since the layout
+	 * that overran may still be running.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param logger	logger instance to use
+	 * @return generated diagram as a png byte array
+	 * @throws RenderAbortedException	if the diagram exceeded, or recently exceeded, a render limit
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException				if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] render(String source, Logger logger) throws IOException {
+		return render(source, DiagramFormat.PNG, logger);
+	}
+
+	/**
+	 * Renders source text into an image of the requested format on the
+	 * {@link RenderScheduler}, enforcing the render deadline and the output
+	 * size limit.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param logger	logger instance to use
+	 * @return generated diagram image
+	 * @throws RenderAbortedException	if the diagram exceeded, or recently exceeded, a render limit
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException				if the diagram could not be rendered
+	 * @since 1.0
+	 * @see #render(String, Logger)
+	 */
+	public static byte[] render(String source, DiagramFormat format, Logger logger) throws IOException {
+		return render(source, format, 0, logger);
+	}
+
+	/**
+	 * Renders one page of source text into an image of the requested format
+	 * on the {@link RenderScheduler}. Only the requested page is laid out.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param page		index of the page, starting at 0
+	 * @param logger	logger instance to use
+	 * @return generated diagram image
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws RenderAbortedException	if the diagram exceeded, or recently exceeded, a render limit
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException				if the diagram could not be rendered
+	 * @since 1.0
+	 * @see #render(String, DiagramFormat, Logger)
+	 */
+	public static byte[] render(String source, DiagramFormat format, int page, Logger logger) throws IOException {
+		String failureKey = DiagramCache.computeKey(source, format.name(), page);
+		String failure = getRecentFailure(source, failureKey);
+		if (failure != null) {
+			logger.info("Skipping a diagram that recently failed to render: " + failure);
+			throw new RenderAbortedException(failure);
+		}
+
+		try {
+			return RenderScheduler.getInstance().execute(() -> renderImage(source, format, page));
+		} catch (RenderAbortedException ex) {
+			logger.log(Level.WARNING, "Render aborted: " + ex.getMessage());
+			rememberFailure(source, failureKey, ex);
+			throw ex;
+		} catch (RenderRejectedException | PageNotFoundException ex) {
+			throw ex;
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Unexpected error generating the diagram", ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Renders source text into an image of the requested format on the
+	 * {@link RenderScheduler} without blocking the caller. Limits and the
+	 * memory of failed sources work as for
+	 * {@link #render(String, DiagramFormat, Logger)}.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param logger	logger instance to use
+	 * @return completes with the generated diagram image, or with a
+	 * 			{@link RenderAbortedException}, {@link RenderRejectedException}
+	 * 			or the failure of the render
+	 * @since 1.0
+	 */
+	public static CompletableFuture<byte[]> renderAsync(String source, DiagramFormat format, Logger logger) {
+		String failureKey = DiagramCache.computeKey(source, format.name());
+		String failure = getRecentFailure(source, failureKey);
+		if (failure != null) {
+			logger.info("Skipping a diagram that recently failed to render: " + failure);
+			CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+			failed.completeExceptionally(new RenderAbortedException(failure));
+			return failed;
+		}
+
+		CompletableFuture<byte[]> result = RenderScheduler.getInstance().executeAsync(() -> renderImage(source, format));
+		result.whenComplete((image, ex) -> {
+			if (ex instanceof RenderAbortedException) {
+				logger.log(Level.WARNING, "Render aborted: " + ex.getMessage());
+				rememberFailure(source, failureKey, (RenderAbortedException) ex);
+			} else if (ex != null && !(ex instanceof RenderRejectedException) && !(ex instanceof PageNotFoundException)) {
+				logger.log(Level.SEVERE, "Unexpected error generating the diagram", ex);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Gets the remembered failure of a source, if any.
+	 *
+	 * @param source		text contents of the diagram
+	 * @param failureKey	image cache key of the requested format and page
+	 * @return the failure message or null
+	 * @since 1.0
+	 */
+	private static String getRecentFailure(String source, String failureKey) {
+		String failure = FAILED_RENDERS.get(DiagramCache.hash(source));
+
+		return failure != null ? failure : FAILED_RENDERS.get(failureKey);
+	}
+
+	/**
+	 * Remembers a render that exceeded a limit. A timeout is remembered by
+	 * source hash, so no other format or page of the source starts another
+	 * layout while the first may still be running.
+	 *
+	 * @param source		text contents of the diagram
+	 * @param failureKey	image cache key of the requested format and page
+	 * @param ex			the failure
+	 * @since 1.0
+	 */
+	private static void rememberFailure(String source, String failureKey, RenderAbortedException ex) {
+		FAILED_RENDERS.put(ex instanceof RenderTimeoutException ? DiagramCache.hash(source) : failureKey, ex.getMessage());
+	}
+
+	/**
+	 * Renders a small diagram describing an error on the calling thread.
+	 *
+	 * @param message	description of the error
+	 * @return generated diagram as a png byte array
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] generateErrorImage(String message) throws IOException {
+		return generateErrorImage(message, DiagramFormat.PNG);
+	}
+
+	/**
+	 * Renders a small diagram describing an error in the requested format on
+	 * the calling thread.
+	 *
+	 * @param message	description of the error
+	 * @param format	output format
+	 * @return generated diagram image
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] generateErrorImage(String message, DiagramFormat format) throws IOException {
+		return renderImage(String.format(ERROR_DIAGRAM_FORMAT, message), format);
+	}
+
+	/**
+	 * Counts the pages of a diagram, i.e. its {@code newpage} sections and
+	 * {@code @startuml} blocks, by parsing it on the {@link RenderScheduler}.
+	 * The parse is kept, so rendering a page afterwards does not parse again.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return number of pages; at least 1
+	 * @throws RenderRejectedException	if the render scheduler is saturated
+	 * @throws IOException				if the diagram could not be parsed in time
+	 * @since 1.0
+	 */
+	public static int countPages(String source) throws IOException {
+		return RenderScheduler.getInstance().execute(() -> PARSED_DIAGRAMS.get(source).getPageCount());
+	}
+
+	/**
+	 * Gets the cache of parsed sources shared by all renders.
+	 *
+	 * @return the parse cache
+	 * @since 1.0
+	 */
+	public static ParseCache getParseCache() {
+		return PARSED_DIAGRAMS;
+	}
+
+	/**
+	 * Renders source text into a PNG on the calling thread.
+	 * <p>
+	 * The image is rendered into a pooled {@link RenderBuffer}; the returned
+	 * array is the only per-render copy.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return generated diagram as a png byte array
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] renderPng(String source) throws IOException {
+		return renderImage(source, DiagramFormat.PNG);
+	}
+
+	/**
+	 * Renders source text into an image of the requested format on the
+	 * calling thread, using a pooled {@link RenderBuffer}.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @return generated diagram image
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] renderImage(String source, DiagramFormat format) throws IOException {
+		return renderImage(source, format, 0);
+	}
+
+	/**
+	 * Renders one page of source text into an image of the requested format
+	 * on the calling thread, using a pooled {@link RenderBuffer}.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param page		index of the page, starting at 0
+	 * @return generated diagram image
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static byte[] renderImage(String source, DiagramFormat format, int page) throws IOException {
+		RenderBuffer buffer = RenderBuffer.acquire();
+
+		try {
+			renderTo(source, format, page, buffer);
+			return buffer.toByteArray();
+		} finally {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Renders source text as a PNG directly into an output sink on the calling
+	 * thread, enforcing the output size limit.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param sink		stream receiving the image; it is not closed
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static void renderTo(String source, OutputStream sink) throws IOException {
+		renderTo(source, DiagramFormat.PNG, sink);
+	}
+
+	/**
+	 * Renders source text in the requested format directly into an output sink
+	 * on the calling thread, enforcing the output size limit. The limit
+	 * applies to the bytes written to the sink, i.e. after compression.
+	 * <p>
+	 * The source is parsed once and kept in a small {@link ParseCache}, so
+	 * rendering it again in another format skips the parse. The parsed
+	 * diagram is taken out of the cache while it is exported, so concurrent
+	 * renders of one source never wait for each other. The time until
+	 * PlantUML writes the first byte is recorded as the layout stage, the rest
+	 * as the encode stage.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param sink		stream receiving the image; it is not closed
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 */
+	public static void renderTo(String source, DiagramFormat format, OutputStream sink) throws IOException {
+		renderTo(source, format, 0, sink);
+	}
+
+	/**
+	 * Renders one page of source text in the requested format directly into
+	 * an output sink on the calling thread, enforcing the output size limit.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param format	output format
+	 * @param page		index of the page, starting at 0
+	 * @param sink		stream receiving the image; it is not closed
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws RenderLimitException	if the image is larger than the size limit
+	 * @throws IOException	if the diagram could not be rendered
+	 * @since 1.0
+	 * @see #renderTo(String, DiagramFormat, OutputStream)
+	 */
+	public static void renderTo(String source, DiagramFormat format, int page, OutputStream sink) throws IOException {
+		ParsedDiagram diagram = PARSED_DIAGRAMS.take(source);
+		if (page < 0 || page >= diagram.getPageCount()) {
+			PARSED_DIAGRAMS.release(source, diagram);
+			throw new PageNotFoundException(page, diagram.getPageCount());
+		}
+
+		long startedAt = System.nanoTime();
+		LimitedOutputStream limited = new LimitedOutputStream(sink, MAX_OUTPUT_BYTES);
+		FileFormatOption option = new FileFormatOption(format.getFileFormat());
+
+		// a diagram whose export failed part way is dropped rather than returned to the cache
+		if (format.isCompressed()) {
+			try (GZIPOutputStream compressed = new GZIPOutputStream(limited, 8192) {
+				@Override
+				public void close() {
+					// releases the native zlib memory, also after a failed export, but leaves the
+					// sink open; it belongs to the caller
+					def.end();
+				}
+			}) {
+				diagram.export(page, option, compressed);
+				compressed.finish();
+			}
+		} else {
+			diagram.export(page, option, limited);
+		}
+		limited.flush();
+		PARSED_DIAGRAMS.release(source, diagram);
+
+		long finishedAt = System.nanoTime();
+		long firstWriteAt = limited.getFirstWriteAt() == 0 ? finishedAt : limited.getFirstWriteAt();
+		PipelineMetrics.record(PipelineMetrics.Stage.LAYOUT, firstWriteAt - startedAt);
+		PipelineMetrics.record(PipelineMetrics.Stage.ENCODE, finishedAt - firstWriteAt);
+		PipelineMetrics.recordOutput(format, limited.getWritten());
+	}
 }
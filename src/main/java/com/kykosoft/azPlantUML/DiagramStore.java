@@ -0,0 +1,40 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Persistent tier of the {@link DiagramCache}.
+ * <p>
+ * A store keeps rendered images outside the process, so they survive host
+ * restarts and, when the storage is shared, are rendered once for every
+ * instance of the function app. Keys are content hashes, so an entry never
+ * changes once written and any instance may write it.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ * @see FileDiagramStore
+ * @see BlobDiagramStore
+ */
+public interface DiagramStore {
+
+	/**
+	 * Reads a rendered image.
+	 *
+	 * @param key	cache key from {@link DiagramCache#computeKey(String, String)}
+	 * @return the image or null if it is not stored
+	 * @throws IOException	if the store could not be read
+	 * @since 1.0
+	 */
+	byte[] get(String key) throws IOException;
+
+	/**
+	 * Writes a rendered image.
+	 *
+	 * @param key	cache key from {@link DiagramCache#computeKey(String, String)}
+	 * @param image	rendered image
+	 * @throws IOException	if the store could not be written
+	 * @since 1.0
+	 */
+	void put(String key, byte[] image) throws IOException;
+}
@@ -0,0 +1,90 @@
+package com.kykosoft.azPlantUML;
+
+/**
+ * Reads optional configuration values from environment variables (the
+ * Function App's application settings).
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class EnvironmentSettings {
+
+	/** Format string for error message when a setting cannot be parsed */
+	private static final String PARSE_ERROR_FORMAT = "Invalid value '%2$s' for the '%1$s' environment variable";
+
+	private EnvironmentSettings() {
+	}
+
+	/**
+	 * Gets a string setting.
+	 *
+	 * @param name			name of the environment variable
+	 * @param defaultValue	value to use when the variable is not set
+	 * @return the configured or default value
+	 * @since 1.0
+	 */
+	public static String getString(String name, String defaultValue) {
+		String value = System.getenv(name);
+
+		return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Gets an integer setting.
+	 *
+	 * @param name			name of the environment variable
+	 * @param defaultValue	value to use when the variable is not set
+	 * @return the configured or default value
+	 * @throws IllegalArgumentException	if the variable is not a valid integer
+	 * @since 1.0
+	 */
+	public static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(String.format(PARSE_ERROR_FORMAT, name, value), ex);
+		}
+	}
+
+	/**
+	 * Gets a long integer setting.
+	 *
+	 * @param name			name of the environment variable
+	 * @param defaultValue	value to use when the variable is not set
+	 * @return the configured or default value
+	 * @throws IllegalArgumentException	if the variable is not a valid long integer
+	 * @since 1.0
+	 */
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(String.format(PARSE_ERROR_FORMAT, name, value), ex);
+		}
+	}
+
+	/**
+	 * Gets a boolean setting.
+	 *
+	 * @param name			name of the environment variable
+	 * @param defaultValue	value to use when the variable is not set
+	 * @return the configured or default value
+	 * @since 1.0
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,255 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps rendered images as files in a local (or mounted) directory.
+ * <p>
+ * Images are written to a temporary file and moved into place, so readers
+ * never see a partial image. When the directory grows beyond its size limit
+ * the least recently used images are deleted. Images are moved into place and
+ * deleted while holding the lock of the instance, so the index never lists an
+ * image whose file an eviction removed.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class FileDiagramStore implements DiagramStore {
+
+	/** Default file extension used for stored images */
+	private static final String FILE_EXTENSION = ".img";
+
+	/** Logs evictions, which are not tied to a request */
+	private static final Logger LOGGER = Logger.getLogger(FileDiagramStore.class.getName());
+
+
+	/** Directory holding the images */
+	private final Path _directory;
+
+	/** File extension of the stored files */
+	private final String _extension;
+
+	/** Maximum number of image bytes kept in the directory; 0 for no limit */
+	private final long _maxBytes;
+
+	/** Size of each stored image by key, least recently used first; null until the directory has been scanned */
+	private LinkedHashMap<String, Long> _index = null;
+
+	/** Number of image bytes currently in the directory */
+	private long _currentBytes = 0;
+
+	/** Number of images deleted to stay within the size limit */
+	private final AtomicLong _evictions = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param directory	directory holding the images; created on the first write
+	 * @param maxBytes	maximum number of image bytes kept in the directory; 0 for no limit
+	 * @since 1.0
+	 */
+	public FileDiagramStore(Path directory, long maxBytes) {
+		this(directory, maxBytes, FILE_EXTENSION);
+	}
+
+	/**
+	 * Initializes a new instance whose files have their own extension, e.g.
+	 * to keep other content than images with the same size limit and
+	 * eviction.
+	 *
+	 * @param directory	directory holding the files; created on the first write
+	 * @param maxBytes	maximum number of bytes kept in the directory; 0 for no limit
+	 * @param extension	file extension of the stored files, including the dot
+	 * @since 1.0
+	 */
+	public FileDiagramStore(Path directory, long maxBytes, String extension) {
+		_directory = directory;
+		_maxBytes = maxBytes;
+		_extension = extension;
+	}
+
+	@Override
+	public byte[] get(String key) throws IOException {
+		byte[] image;
+
+		try (FileChannel channel = FileChannel.open(file(key), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Stored image " + key + " is too large");
+			}
+
+			image = new byte[(int) size];
+			int read = 0;
+			while (read < image.length) {
+				int count = channel.read(ByteBuffer.wrap(image, read, image.length - read));
+				if (count < 0) {
+					throw new IOException("Stored image " + key + " was truncated");
+				}
+				read += count;
+			}
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+
+		synchronized (this) {
+			// moves the image to the most recently used end; another instance may have written it,
+			// and an eviction may have deleted it since it was read
+			if (Files.exists(file(key)) && getIndex().put(key, (long) image.length) == null) {
+				_currentBytes += image.length;
+			}
+		}
+
+		return image;
+	}
+
+	@Override
+	public void put(String key, byte[] image) throws IOException {
+		Files.createDirectories(_directory);
+		// write to a temporary file first so readers never see a partial image
+		Path temp = Files.createTempFile(_directory, key, ".tmp");
+		try {
+			Files.write(temp, image);
+		} catch (IOException ex) {
+			Files.deleteIfExists(temp);
+			throw ex;
+		}
+
+		synchronized (this) {
+			// moved while holding the lock so a concurrent eviction of the same key cannot
+			// delete the fresh image after the index has listed it
+			try {
+				Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				Files.deleteIfExists(temp);
+				throw ex;
+			}
+
+			Long previous = getIndex().put(key, (long) image.length);
+			_currentBytes += image.length - (previous == null ? 0 : previous);
+
+			Iterator<Map.Entry<String, Long>> eldest = _index.entrySet().iterator();
+			while (_maxBytes > 0 && _currentBytes > _maxBytes && eldest.hasNext()) {
+				Map.Entry<String, Long> entry = eldest.next();
+				if (entry.getKey().equals(key)) {
+					break;
+				}
+				_currentBytes -= entry.getValue();
+				eldest.remove();
+
+				try {
+					Files.deleteIfExists(file(entry.getKey()));
+					_evictions.incrementAndGet();
+				} catch (IOException ex) {
+					// e.g. still open by a reader on Windows; it is picked up again by the next scan
+					LOGGER.log(Level.FINE, "Unable to evict stored image " + entry.getKey(), ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the index of stored images, scanning the directory on first use so
+	 * images written before a restart count towards the size limit. They are
+	 * ordered by the time they were written.
+	 * <p>
+	 * Must be called while holding the lock of this instance.
+	 *
+	 * @return the index
+	 * @since 1.0
+	 */
+	private LinkedHashMap<String, Long> getIndex() {
+		if (_index != null) {
+			return _index;
+		}
+
+		_index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		if (!Files.isDirectory(_directory)) {
+			return _index;
+		}
+
+		List<Path> files = new ArrayList<Path>();
+		final Map<Path, Long> modified = new LinkedHashMap<Path, Long>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(_directory, "*" + _extension)) {
+			for (Path file : stream) {
+				files.add(file);
+				modified.put(file, Files.getLastModifiedTime(file).toMillis());
+			}
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Unable to scan the image directory " + _directory, ex);
+		}
+
+		Collections.sort(files, (a, b) -> Long.compare(modified.get(a), modified.get(b)));
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			try {
+				long size = Files.size(file);
+				_index.put(name.substring(0, name.length() - _extension.length()), size);
+				_currentBytes += size;
+			} catch (IOException ex) {
+				// deleted meanwhile
+			}
+		}
+
+		return _index;
+	}
+
+	/**
+	 * Gets the file holding an image.
+	 *
+	 * @param key	cache key
+	 * @return path of the file
+	 * @since 1.0
+	 */
+	private Path file(String key) {
+		return _directory.resolve(key + _extension);
+	}
+
+	/**
+	 * Gets the time a stored image was written.
+	 *
+	 * @param key	cache key
+	 * @return time (epoch millis) the image was written
+	 * @throws IOException	if the image is not stored
+	 * @since 1.0
+	 */
+	public long getWrittenAt(String key) throws IOException {
+		return Files.getLastModifiedTime(file(key)).toMillis();
+	}
+
+	/** @return number of image bytes currently in the directory */
+	public synchronized long getCurrentBytes() {
+		getIndex();
+		return _currentBytes;
+	}
+
+	/** @return number of images deleted to stay within the size limit */
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"FileDiagramStore[directory=%1$s, bytes=%2$d/%3$d, evictions=%4$d]",
+				_directory, getCurrentBytes(), _maxBytes, getEvictions());
+	}
+}
@@ -0,0 +1,155 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. durations or sizes, that
+ * reports percentiles.
+ * <p>
+ * Values are counted in buckets that are eight to a power of two, so a
+ * reported percentile is at most 12.5% above the true value while the
+ * histogram stays a fixed, small size however many values are recorded.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class Histogram {
+
+	/** Number of bits of a value kept below its leading bit */
+	private static final int SUB_BITS = 3;
+
+	/** Number of buckets per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Number of buckets needed to cover every positive long */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+
+	/** Number of values in each bucket */
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+	/** Number of values recorded */
+	private final LongAdder _count = new LongAdder();
+
+	/** Sum of the values recorded */
+	private final LongAdder _sum = new LongAdder();
+
+	/** Largest value recorded */
+	private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+
+	/**
+	 * Records a value; negative values are recorded as 0.
+	 *
+	 * @param value	value to record
+	 * @since 1.0
+	 */
+	public void record(long value) {
+		long recorded = Math.max(0, value);
+
+		_counts.incrementAndGet(bucketOf(recorded));
+		_count.increment();
+		_sum.add(recorded);
+		_max.accumulate(recorded);
+	}
+
+	/**
+	 * Gets the value below which the given percentage of the recorded values
+	 * fall.
+	 *
+	 * @param percentile	percentage between 0 and 100
+	 * @return upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+	 * @since 1.0
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/** @return number of values recorded */
+	public long getCount() {
+		return _count.sum();
+	}
+
+	/** @return sum of the values recorded */
+	public long getSum() {
+		return _sum.sum();
+	}
+
+	/** @return largest value recorded */
+	public long getMax() {
+		return _max.get();
+	}
+
+	/** @return average of the values recorded, or 0 if nothing was recorded */
+	public double getMean() {
+		long count = getCount();
+
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Gets the bucket counting a value.
+	 *
+	 * @param value	non-negative value
+	 * @return index of the bucket
+	 * @since 1.0
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value counted by a bucket.
+	 *
+	 * @param bucket	index of the bucket
+	 * @return the largest value of the bucket
+	 * @since 1.0
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+		return lower + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"Histogram[count=%1$d, p50=%2$d, p99=%3$d, max=%4$d]",
+				getCount(), getPercentile(50), getPercentile(99), getMax());
+	}
+}
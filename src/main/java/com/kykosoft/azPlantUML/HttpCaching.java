@@ -0,0 +1,175 @@
+package com.kykosoft.azPlantUML;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Helpers for the HTTP caching headers ({@code ETag}, {@code Cache-Control},
+ * {@code Last-Modified}) sent with rendered diagrams and for evaluating the
+ * conditional request headers sent back by browsers and CDNs.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class HttpCaching {
+
+	/** Name of the environment variable that holds how long clients may reuse an image without revalidating */
+	private static final String ENV_MAX_AGE = "azuml_clientMaxAgeSeconds";
+
+	/** Default number of seconds clients may reuse an image without revalidating */
+	private static final int DEFAULT_MAX_AGE = 60;
+
+	/** Format of HTTP dates, e.g. {@code Sun, 06 Nov 1994 08:49:37 GMT} */
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+			.withZone(ZoneOffset.UTC);
+
+	private HttpCaching() {
+	}
+
+	/**
+	 * Builds a strong entity tag from an image cache key. The key already
+	 * covers the diagram source, the output format and the PlantUML version,
+	 * so the tag changes whenever the rendered image could.
+	 *
+	 * @param cacheKey	key from {@link DiagramCache#computeKey(String, String)}
+	 * @return quoted entity tag
+	 * @since 1.0
+	 */
+	public static String entityTag(String cacheKey) {
+		return "\"" + cacheKey + "\"";
+	}
+
+	/**
+	 * Builds the {@code Cache-Control} value from {@code azuml_clientMaxAgeSeconds}
+	 * (default 60). A value of 0 makes clients revalidate on every use.
+	 *
+	 * @return value of the Cache-Control header
+	 * @since 1.0
+	 */
+	public static String cacheControl() {
+		int maxAge = EnvironmentSettings.getInt(ENV_MAX_AGE, DEFAULT_MAX_AGE);
+
+		return maxAge > 0 ? "public, max-age=" + maxAge : "no-cache";
+	}
+
+	/**
+	 * Builds the {@code Cache-Control} value for images that can never change,
+	 * such as diagrams read at a specific commit.
+	 *
+	 * @return value of the Cache-Control header
+	 * @since 1.0
+	 */
+	public static String immutableCacheControl() {
+		return "public, max-age=31536000, immutable";
+	}
+
+	/**
+	 * Determines whether the client's copy is current, following RFC 7232:
+	 * {@code If-None-Match} is evaluated when present and
+	 * {@code If-Modified-Since} only otherwise.
+	 *
+	 * @param requestHeaders	headers of the incoming request
+	 * @param etag				entity tag of the current image
+	 * @param lastModified		time (epoch millis) the source last changed, or a negative value if unknown
+	 * @return true if a 304 Not Modified response can be sent
+	 * @since 1.0
+	 */
+	public static boolean isNotModified(Map<String, String> requestHeaders, String etag, long lastModified) {
+		String ifNoneMatch = getHeader(requestHeaders, "If-None-Match");
+		if (ifNoneMatch != null) {
+			return matches(ifNoneMatch, etag);
+		}
+
+		String ifModifiedSince = getHeader(requestHeaders, "If-Modified-Since");
+		if (ifModifiedSince != null && lastModified >= 0) {
+			long since = parseHttpDate(ifModifiedSince);
+			// HTTP dates have a resolution of one second
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Evaluates an {@code If-None-Match} header value against an entity tag
+	 * using the weak comparison function.
+	 *
+	 * @param ifNoneMatch	header value; {@code *} or a list of entity tags
+	 * @param etag			entity tag of the current image
+	 * @return true if the header matches the entity tag
+	 * @since 1.0
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch.trim().equals("*")) {
+			return true;
+		}
+
+		String current = stripWeak(etag);
+		for (String candidate : ifNoneMatch.split(",")) {
+			if (stripWeak(candidate.trim()).equals(current)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Formats a time as an HTTP date.
+	 *
+	 * @param epochMillis	time to format
+	 * @return the HTTP date
+	 * @since 1.0
+	 */
+	public static String formatHttpDate(long epochMillis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(epochMillis));
+	}
+
+	/**
+	 * Parses an HTTP date.
+	 *
+	 * @param value	HTTP date
+	 * @return time in epoch millis or -1 if the value is not a valid date
+	 * @since 1.0
+	 */
+	public static long parseHttpDate(String value) {
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets a request header, ignoring the case of its name.
+	 *
+	 * @param headers	request headers
+	 * @param name		header name
+	 * @return the header value or null
+	 * @since 1.0
+	 */
+	public static String getHeader(Map<String, String> headers, String name) {
+		if (headers == null) {
+			return null;
+		}
+
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey())) {
+				return header.getValue();
+			}
+		}
+
+		return null;
+	}
+
+	private static String stripWeak(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+}
@@ -0,0 +1,78 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The status, headers and body of a completed HTTP request.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class HttpContent {
+
+	/** HTTP status code of the response. */
+	private final int statusCode;
+
+	/** Response headers, keyed case-insensitively. */
+	private final Map<String, String> headers;
+
+	/** Response body as a string; null when the response had no body. */
+	private final String content;
+
+	/**
+	 * Instantiates a new instance.
+	 *
+	 * @param	statusCode	HTTP status code of the response.
+	 * @param	headers		Response headers.
+	 * @param	content		Response body or null.
+	 * @since	1.0
+	 */
+	public HttpContent(int statusCode, Map<String, String> headers, String content) {
+		this.statusCode = statusCode;
+		this.content = content;
+
+		Map<String, String> copy = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		if (headers != null) {
+			copy.putAll(headers);
+		}
+		this.headers = Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * @return	HTTP status code of the response.
+	 * @since	1.0
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Gets a response header.
+	 *
+	 * @param	name	Header name; case is ignored.
+	 * @return	The header value or null if it was not present.
+	 * @since	1.0
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * @return	All response headers, keyed case-insensitively.
+	 * @since	1.0
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return	Response body or null if the response had no body.
+	 * @since	1.0
+	 */
+	public String getContent() {
+		return content;
+	}
+}
@@ -1,16 +1,33 @@
 package com.kykosoft.azPlantUML;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.util.EntityUtils;
 
 /**
@@ -22,22 +39,334 @@ import org.apache.http.util.EntityUtils;
  */
 public class HttpWrapper {
 
+	/** Name of the environment variable that holds the maximum number of pooled connections */
+	private static final String ENV_MAX_TOTAL = "azuml_httpMaxTotal";
+
+	/** Name of the environment variable that holds the maximum number of pooled connections per host */
+	private static final String ENV_MAX_PER_ROUTE = "azuml_httpMaxPerRoute";
+
+	/** Name of the environment variable that holds the connect timeout in milliseconds */
+	private static final String ENV_CONNECT_TIMEOUT = "azuml_httpConnectTimeoutMs";
+
+	/** Name of the environment variable that holds the socket (read) timeout in milliseconds */
+	private static final String ENV_SOCKET_TIMEOUT = "azuml_httpSocketTimeoutMs";
+
+	/** Name of the environment variable that holds how long an idle connection is kept, in seconds */
+	private static final String ENV_IDLE_EVICT = "azuml_httpIdleEvictSeconds";
+
+	/**
+	 * HTTP client shared by every instance in this host process so that
+	 * connections (and their TLS sessions) are kept alive between requests.
+	 */
+	private static volatile CloseableHttpClient sharedClient = null;
+
+	/**
+	 * Non-blocking HTTP client shared by every instance in this host process;
+	 * created on the first asynchronous request.
+	 */
+	private static volatile CloseableHttpAsyncClient sharedAsyncClient = null;
+
+	/** Number of I/O threads of a non-blocking client; each serves many connections */
+	private static final int ASYNC_IO_THREADS = 2;
+
+	/**
+	 * Delays retries of asynchronous requests and closes idle non-blocking
+	 * connections, without holding a thread per request.
+	 */
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new DaemonThreadFactory("azuml-http-timer-"));
+
 	/** The base url address for all HTTP requests made from this instance. */
 	private String baseUrl = null;
 
 	/** Logging instance to use. */
 	private Logger logger;
 
+	/** The pooled client used to execute requests. */
+	private final CloseableHttpClient httpClient;
+
+	/** The non-blocking client used to execute asynchronous requests; null to use the shared client. */
+	private final CloseableHttpAsyncClient asyncClient;
+
+	/** Decides whether and when failed requests are retried. */
+	private final RetryPolicy retryPolicy;
+
+	/** Stops requests to the base URL while it keeps failing. */
+	private final CircuitBreaker circuitBreaker;
+
 	/**
-	 * Instantiates a new instance.
+	 * Instantiates a new instance that uses the process-wide pooled client.
 	 *
 	 * @param	logger	The logging instance to use.
 	 * @param	baseUrl	The base URL to use for all requests.
 	 * @since	1.0
 	 */
 	public HttpWrapper(Logger logger, String baseUrl) {
+		this(logger, baseUrl, getSharedClient());
+	}
+
+	/**
+	 * Instantiates a new instance that uses the process-wide pooled client and
+	 * logs to the class logger unless a logger is passed with each request.
+	 *
+	 * @param	baseUrl	The base URL to use for all requests.
+	 * @since	1.0
+	 */
+	public HttpWrapper(String baseUrl) {
+		this(Logger.getLogger(HttpWrapper.class.getName()), baseUrl, getSharedClient());
+	}
+
+	/**
+	 * Instantiates a new instance that uses the supplied client and logs to
+	 * the class logger unless a logger is passed with each request.
+	 *
+	 * @param	baseUrl		The base URL to use for all requests.
+	 * @param	httpClient	The client used to execute requests; it is not closed by this instance.
+	 * @since	1.0
+	 */
+	public HttpWrapper(String baseUrl, CloseableHttpClient httpClient) {
+		this(Logger.getLogger(HttpWrapper.class.getName()), baseUrl, httpClient);
+	}
+
+	/**
+	 * Instantiates a new instance that uses the supplied blocking and
+	 * non-blocking clients, e.g. the connection pools of one tenant.
+	 *
+	 * @param	baseUrl		The base URL to use for all requests.
+	 * @param	httpClient	The client used to execute requests; it is not closed by this instance.
+	 * @param	asyncClient	The started client used to execute asynchronous requests; it is not closed by this instance.
+	 * @since	1.0
+	 */
+	public HttpWrapper(String baseUrl, CloseableHttpClient httpClient, CloseableHttpAsyncClient asyncClient) {
+		this(
+				Logger.getLogger(HttpWrapper.class.getName()),
+				baseUrl,
+				httpClient,
+				asyncClient,
+				RetryPolicy.fromEnvironment(),
+				CircuitBreaker.fromEnvironment());
+	}
+
+	/**
+	 * Instantiates a new instance that uses the supplied client.
+	 *
+	 * @param	logger		The logging instance to use.
+	 * @param	baseUrl		The base URL to use for all requests.
+	 * @param	httpClient	The client used to execute requests; it is not closed by this instance.
+	 * @since	1.0
+	 */
+	public HttpWrapper(Logger logger, String baseUrl, CloseableHttpClient httpClient) {
+		this(logger, baseUrl, httpClient, RetryPolicy.fromEnvironment(), CircuitBreaker.fromEnvironment());
+	}
+
+	/**
+	 * Instantiates a new instance that uses the supplied client, retry policy
+	 * and circuit breaker.
+	 *
+	 * @param	logger			The logging instance to use.
+	 * @param	baseUrl			The base URL to use for all requests.
+	 * @param	httpClient		The client used to execute requests; it is not closed by this instance.
+	 * @param	retryPolicy		Decides whether and when failed requests are retried.
+	 * @param	circuitBreaker	Stops requests to the base URL while it keeps failing.
+	 * @since	1.0
+	 */
+	public HttpWrapper(
+			Logger logger,
+			String baseUrl,
+			CloseableHttpClient httpClient,
+			RetryPolicy retryPolicy,
+			CircuitBreaker circuitBreaker) {
+		this(logger, baseUrl, httpClient, null, retryPolicy, circuitBreaker);
+	}
+
+	/**
+	 * Instantiates a new instance that uses the supplied blocking and
+	 * non-blocking clients, retry policy and circuit breaker.
+	 *
+	 * @param	logger			The logging instance to use.
+	 * @param	baseUrl			The base URL to use for all requests.
+	 * @param	httpClient		The client used to execute requests; it is not closed by this instance.
+	 * @param	asyncClient		The started client used to execute asynchronous requests, or null to use the shared one.
+	 * @param	retryPolicy		Decides whether and when failed requests are retried.
+	 * @param	circuitBreaker	Stops requests to the base URL while it keeps failing.
+	 * @since	1.0
+	 */
+	public HttpWrapper(
+			Logger logger,
+			String baseUrl,
+			CloseableHttpClient httpClient,
+			CloseableHttpAsyncClient asyncClient,
+			RetryPolicy retryPolicy,
+			CircuitBreaker circuitBreaker) {
 		this.logger = logger;
 		this.baseUrl = baseUrl;
+		this.httpClient = httpClient;
+		this.asyncClient = asyncClient;
+		this.retryPolicy = retryPolicy;
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Gets the process-wide pooled client, creating it from the environment
+	 * settings on first use.
+	 *
+	 * @return	The shared HTTP client.
+	 * @since	1.0
+	 */
+	public static CloseableHttpClient getSharedClient() {
+		CloseableHttpClient client = sharedClient;
+		if (client == null) {
+			synchronized (HttpWrapper.class) {
+				client = sharedClient;
+				if (client == null) {
+					client = createPooledClient(
+							EnvironmentSettings.getInt(ENV_MAX_TOTAL, 50),
+							EnvironmentSettings.getInt(ENV_MAX_PER_ROUTE, 20));
+					sharedClient = client;
+				}
+			}
+		}
+
+		return client;
+	}
+
+	/**
+	 * Creates a keep-alive client backed by a connection pool of the given
+	 * size, using the timeouts configured in the environment.
+	 *
+	 * @param	maxTotal	Maximum number of pooled connections.
+	 * @param	maxPerRoute	Maximum number of pooled connections per host.
+	 * @return	A new pooled HTTP client.
+	 * @since	1.0
+	 */
+	public static CloseableHttpClient createPooledClient(int maxTotal, int maxPerRoute) {
+		return createPooledClient(
+				maxTotal,
+				maxPerRoute,
+				EnvironmentSettings.getInt(ENV_CONNECT_TIMEOUT, 5000),
+				EnvironmentSettings.getInt(ENV_SOCKET_TIMEOUT, 30000),
+				EnvironmentSettings.getInt(ENV_IDLE_EVICT, 60));
+	}
+
+	/**
+	 * Gets the process-wide non-blocking client, creating and starting it
+	 * from the environment settings on first use.
+	 *
+	 * @return	The shared non-blocking HTTP client.
+	 * @since	1.0
+	 */
+	public static CloseableHttpAsyncClient getSharedAsyncClient() {
+		CloseableHttpAsyncClient client = sharedAsyncClient;
+		if (client == null) {
+			synchronized (HttpWrapper.class) {
+				client = sharedAsyncClient;
+				if (client == null) {
+					client = createPooledAsyncClient(
+							EnvironmentSettings.getInt(ENV_MAX_TOTAL, 50),
+							EnvironmentSettings.getInt(ENV_MAX_PER_ROUTE, 20));
+					sharedAsyncClient = client;
+				}
+			}
+		}
+
+		return client;
+	}
+
+	/**
+	 * Creates and starts a non-blocking keep-alive client backed by a
+	 * connection pool of the given size, using the timeouts configured in the
+	 * environment. A waiting request holds a pooled connection but no thread.
+	 *
+	 * @param	maxTotal	Maximum number of pooled connections.
+	 * @param	maxPerRoute	Maximum number of pooled connections per host.
+	 * @return	A new, started, non-blocking HTTP client.
+	 * @since	1.0
+	 */
+	public static CloseableHttpAsyncClient createPooledAsyncClient(int maxTotal, int maxPerRoute) {
+		int connectTimeoutMs = EnvironmentSettings.getInt(ENV_CONNECT_TIMEOUT, 5000);
+		int socketTimeoutMs = EnvironmentSettings.getInt(ENV_SOCKET_TIMEOUT, 30000);
+		int idleEvictSeconds = EnvironmentSettings.getInt(ENV_IDLE_EVICT, 60);
+
+		IOReactorConfig ioConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ASYNC_IO_THREADS)
+				.setConnectTimeout(connectTimeoutMs)
+				.setSoTimeout(socketTimeoutMs)
+				.build();
+
+		PoolingNHttpClientConnectionManager connectionManager;
+		try {
+			connectionManager = new PoolingNHttpClientConnectionManager(
+					new DefaultConnectingIOReactor(ioConfig, new DaemonThreadFactory("azuml-http-io-")));
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Unable to start the non-blocking HTTP client", ex);
+		}
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		// the non-blocking pool has no eviction thread of its own
+		TIMER.scheduleWithFixedDelay(() -> {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(idleEvictSeconds, TimeUnit.SECONDS);
+		}, idleEvictSeconds, idleEvictSeconds, TimeUnit.SECONDS);
+
+		CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(createRequestConfig(connectTimeoutMs, socketTimeoutMs))
+				.setThreadFactory(new DaemonThreadFactory("azuml-http-reactor-"))
+				.build();
+		client.start();
+
+		return client;
+	}
+
+	/**
+	 * Creates the per-request timeouts shared by the blocking and
+	 * non-blocking clients.
+	 *
+	 * @param	connectTimeoutMs	Timeout for establishing a connection, in milliseconds.
+	 * @param	socketTimeoutMs		Timeout waiting for data, in milliseconds.
+	 * @return	The request configuration.
+	 * @since	1.0
+	 */
+	private static RequestConfig createRequestConfig(int connectTimeoutMs, int socketTimeoutMs) {
+		return RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMs)
+				.setSocketTimeout(socketTimeoutMs)
+				.setConnectionRequestTimeout(connectTimeoutMs)
+				.build();
+	}
+
+	/**
+	 * Creates a keep-alive client backed by a connection pool.
+	 *
+	 * @param	maxTotal			Maximum number of pooled connections.
+	 * @param	maxPerRoute			Maximum number of pooled connections per host.
+	 * @param	connectTimeoutMs	Timeout for establishing a connection, in milliseconds.
+	 * @param	socketTimeoutMs		Timeout waiting for data, in milliseconds.
+	 * @param	idleEvictSeconds	Idle time after which pooled connections are closed, in seconds.
+	 * @return	A new pooled HTTP client.
+	 * @since	1.0
+	 */
+	public static CloseableHttpClient createPooledClient(
+			int maxTotal,
+			int maxPerRoute,
+			int connectTimeoutMs,
+			int socketTimeoutMs,
+			int idleEvictSeconds) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		// re-check connections that sat idle long enough for the server to have dropped them
+		connectionManager.setValidateAfterInactivity(2000);
+
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(createRequestConfig(connectTimeoutMs, socketTimeoutMs))
+				// retries are made by the RetryPolicy of each wrapper, with backoff
+				.disableAutomaticRetries()
+				.evictExpiredConnections()
+				.evictIdleConnections(idleEvictSeconds, TimeUnit.SECONDS)
+				.build();
 	}
 
 	/**
@@ -56,30 +385,354 @@ public class HttpWrapper {
 			final Map<String, String> queryParams)
 	throws URISyntaxException, IOException {
 
+		HttpContent response = GetContent(path, headers, queryParams);
+
+		return response.getStatusCode() == 200 ? response.getContent() : null;
+	}
+
+	/**
+	 * Retrieves the status, headers and string content from the specified
+	 * endpoint.
+	 * <p>
+	 * Unlike {@link #GetStringContent(String, Map, Map)} every status code is
+	 * returned to the caller, which allows conditional requests (e.g.
+	 * {@code If-None-Match}) to observe a {@code 304 Not Modified}.
+	 *
+	 * @param	path		Path relative to the base URL.
+	 * @param	headers		Collection of headers to add to the request
+	 * @param	queryParams	Collection of query parameters to add to the request
+	 * @return	The response of the http request.
+	 * @throws	URISyntaxException	if the provided path results in an invalid URI
+	 * @throws	IOException			if the request could not be completed
+	 * @since	1.0
+	 */
+	public HttpContent GetContent(
+			final String path,
+			final Map<String, String> headers,
+			final Map<String, String> queryParams)
+	throws URISyntaxException, IOException {
+
+		return GetContent(path, headers, queryParams, logger);
+	}
+
+	/**
+	 * Retrieves the status, headers and string content from the specified
+	 * endpoint, logging to the supplied logger. Shared instances use this so
+	 * log entries end up with the invocation that made the request.
+	 * <p>
+	 * Connection failures, timeouts, throttling ({@code 429}) and server
+	 * errors are retried according to the {@link RetryPolicy}. A response
+	 * that is still failing after the retries is returned (or its exception
+	 * thrown) and counts against the {@link CircuitBreaker}; while the
+	 * circuit is open no request is sent at all.
+	 *
+	 * @param	path		Path relative to the base URL.
+	 * @param	headers		Collection of headers to add to the request
+	 * @param	queryParams	Collection of query parameters to add to the request
+	 * @param	logger		Logging instance to use for this request.
+	 * @return	The response of the http request.
+	 * @throws	URISyntaxException	if the provided path results in an invalid URI
+	 * @throws	UpstreamUnavailableException	if the circuit breaker is open
+	 * @throws	IOException			if the request could not be completed
+	 * @since	1.0
+	 */
+	public HttpContent GetContent(
+			final String path,
+			final Map<String, String> headers,
+			final Map<String, String> queryParams,
+			final Logger logger)
+	throws URISyntaxException, IOException {
+
 		String url = String.format("%1$s/%2$s", baseUrl, path);
 		logger.fine("Making request to: " + url);
-		String content = null;
 
-		try (final CloseableHttpClient httpClient = HttpClients.createDefault()) {
-			final HttpGet httpGet = buildGetRequest( url, queryParams, headers);
+		final HttpGet httpGet = buildGetRequest( url, queryParams, headers);
 
-			try (final CloseableHttpResponse response = httpClient.execute(httpGet))			 {
-				logger.info("Received a response with status: " + response.getStatusLine().getStatusCode());
+		if (!circuitBreaker.allowRequest()) {
+			throw new UpstreamUnavailableException(
+					"Requests to " + baseUrl + " are suspended after repeated failures",
+					circuitBreaker.getRemainingOpenMillis());
+		}
+
+		// an interrupted retry or an unexpected exception must not leave a trial request unreported
+		boolean recorded = false;
+		try {
+			for (int attempt = 1; ; attempt++) {
+				long delay;
+				try {
+					HttpContent response = execute(httpGet, logger);
+					if (!RetryPolicy.isRetryableStatus(response.getStatusCode())) {
+						recorded = true;
+						circuitBreaker.recordSuccess();
+						return response;
+					}
+
+					delay = retryPolicy.getDelayMillis(attempt, response.getHeader("Retry-After"));
+					if (delay < 0) {
+						recorded = true;
+						circuitBreaker.recordFailure();
+						return response;
+					}
+					logger.warning("Received status " + response.getStatusCode() + "; retrying in " + delay + " ms");
+				} catch (IOException ex) {
+					delay = retryPolicy.getDelayMillis(attempt, null);
+					if (delay < 0) {
+						recorded = true;
+						circuitBreaker.recordFailure();
+						logger.log(
+								Level.SEVERE,
+								"Error while retrieving content from server",
+								ex);
+						throw ex;
+					}
+					logger.warning("Request failed with " + ex + "; retrying in " + delay + " ms");
+				}
 
-				int statusCode = response.getStatusLine().getStatusCode();
-				if (statusCode == 200) {
-					content = EntityUtils.toString(response.getEntity());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry " + url);
 				}
 			}
+		} finally {
+			if (!recorded) {
+				circuitBreaker.recordAbandoned();
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the status, headers and string content from the specified
+	 * endpoint without blocking the calling thread.
+	 * <p>
+	 * The request is sent with the non-blocking client; no thread waits for
+	 * the response or during the delay before a retry. Retries and the
+	 * circuit breaker work as for
+	 * {@link #GetContent(String, Map, Map, Logger)}. Callbacks attached to the
+	 * returned future run on an I/O thread of the client unless an executor
+	 * is given, so they must not block. Cancelling the returned future
+	 * aborts the request.
+	 *
+	 * @param	path		Path relative to the base URL.
+	 * @param	headers		Collection of headers to add to the request
+	 * @param	queryParams	Collection of query parameters to add to the request
+	 * @param	logger		Logging instance to use for this request.
+	 * @return	Completes with the response of the http request, or with the
+	 * 			{@link URISyntaxException}, {@link UpstreamUnavailableException}
+	 * 			or {@link IOException} that prevented it.
+	 * @since	1.0
+	 */
+	public CompletableFuture<HttpContent> GetContentAsync(
+			final String path,
+			final Map<String, String> headers,
+			final Map<String, String> queryParams,
+			final Logger logger) {
+
+		CompletableFuture<HttpContent> result = new CompletableFuture<HttpContent>();
+
+		String url = String.format("%1$s/%2$s", baseUrl, path);
+		logger.fine("Making asynchronous request to: " + url);
+
+		final HttpGet httpGet;
+		try {
+			httpGet = buildGetRequest( url, queryParams, headers);
+		} catch (URISyntaxException ex) {
+			result.completeExceptionally(ex);
+			return result;
+		}
+
+		if (!circuitBreaker.allowRequest()) {
+			result.completeExceptionally(new UpstreamUnavailableException(
+					"Requests to " + baseUrl + " are suspended after repeated failures",
+					circuitBreaker.getRemainingOpenMillis()));
+			return result;
+		}
+
+		// stops the request in flight and any scheduled retry
+		result.whenComplete((content, ex) -> {
+			if (result.isCancelled()) {
+				httpGet.abort();
+			}
+		});
+
+		executeAsync(httpGet, 1, result, logger);
+
+		return result;
+	}
+
+	/**
+	 * Sends one attempt of an asynchronous request and schedules the next
+	 * attempt if it failed.
+	 *
+	 * @param	httpGet	The request to execute.
+	 * @param	attempt	Number of the attempt, starting at 1.
+	 * @param	result	Completed with the final outcome.
+	 * @param	logger	Logging instance to use for this request.
+	 * @since	1.0
+	 */
+	private void executeAsync(
+			final HttpGet httpGet,
+			final int attempt,
+			final CompletableFuture<HttpContent> result,
+			final Logger logger) {
+		if (result.isDone()) {
+			// cancelled while waiting to retry
+			circuitBreaker.recordAbandoned();
+			return;
+		}
+
+		CloseableHttpAsyncClient client = asyncClient != null ? asyncClient : getSharedAsyncClient();
+
+		final long startedAt = System.nanoTime();
+
+		try {
+			client.execute(httpGet, new FutureCallback<HttpResponse>() {
+				@Override
+				public void completed(HttpResponse response) {
+					HttpContent content;
+					try {
+						content = toContent(response);
+						logger.info("Received a response with status: " + content.getStatusCode());
+					} catch (IOException ex) {
+						failed(ex);
+						return;
+					}
+					PipelineMetrics.record(PipelineMetrics.Stage.UPSTREAM, System.nanoTime() - startedAt);
+					PipelineMetrics.recordUpstreamStatus(content.getStatusCode());
+
+					if (!RetryPolicy.isRetryableStatus(content.getStatusCode())) {
+						circuitBreaker.recordSuccess();
+						result.complete(content);
+						return;
+					}
+
+					long delay = retryPolicy.getDelayMillis(attempt, content.getHeader("Retry-After"));
+					if (delay < 0) {
+						circuitBreaker.recordFailure();
+						result.complete(content);
+						return;
+					}
+
+					logger.warning("Received status " + content.getStatusCode() + "; retrying in " + delay + " ms");
+					retryAsync(httpGet, attempt, delay, result, logger);
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					if (result.isCancelled()) {
+						circuitBreaker.recordAbandoned();
+						return;
+					}
+
+					PipelineMetrics.record(PipelineMetrics.Stage.UPSTREAM, System.nanoTime() - startedAt);
+					PipelineMetrics.recordUpstreamStatus(0);
+
+					long delay = retryPolicy.getDelayMillis(attempt, null);
+					if (delay < 0) {
+						circuitBreaker.recordFailure();
+						logger.log(
+								Level.SEVERE,
+								"Error while retrieving content from server",
+								ex);
+						result.completeExceptionally(ex);
+						return;
+					}
+
+					logger.warning("Request failed with " + ex + "; retrying in " + delay + " ms");
+					retryAsync(httpGet, attempt, delay, result, logger);
+				}
+
+				@Override
+				public void cancelled() {
+					circuitBreaker.recordAbandoned();
+					result.cancel(false);
+				}
+			});
+		} catch (RuntimeException ex) {
+			// e.g. the client was shut down; no callback will report the outcome
+			circuitBreaker.recordAbandoned();
+			result.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Sends the next attempt of an asynchronous request after a delay.
+	 *
+	 * @param	httpGet	The request to execute.
+	 * @param	attempt	Number of the attempt that failed.
+	 * @param	delay	Delay before the next attempt, in milliseconds.
+	 * @param	result	Completed with the final outcome.
+	 * @param	logger	Logging instance to use for this request.
+	 * @since	1.0
+	 */
+	private void retryAsync(
+			final HttpGet httpGet,
+			final int attempt,
+			final long delay,
+			final CompletableFuture<HttpContent> result,
+			final Logger logger) {
+		TIMER.schedule(() -> executeAsync(httpGet, attempt + 1, result, logger), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Executes a single attempt of a request.
+	 *
+	 * @param	httpGet	The request to execute.
+	 * @param	logger	Logging instance to use for this request.
+	 * @return	The response of the http request.
+	 * @throws	IOException	if the request could not be completed
+	 * @since	1.0
+	 */
+	private HttpContent execute(final HttpGet httpGet, final Logger logger) throws IOException {
+		long startedAt = System.nanoTime();
+
+		try (final CloseableHttpResponse response = httpClient.execute(httpGet)) {
+			HttpContent content = toContent(response);
+			logger.info("Received a response with status: " + content.getStatusCode());
+			PipelineMetrics.recordUpstreamStatus(content.getStatusCode());
+
+			return content;
 		} catch (IOException ex) {
-			logger.log(
-					Level.SEVERE,
-					"Error while retrieving content from server",
-					ex);
+			PipelineMetrics.recordUpstreamStatus(0);
 			throw ex;
+		} finally {
+			PipelineMetrics.record(PipelineMetrics.Stage.UPSTREAM, System.nanoTime() - startedAt);
 		}
+	}
+
+	/**
+	 * Reads the status, headers and body of a response. The body is only
+	 * kept for a 200 response; otherwise it is discarded so the connection can
+	 * go back to the pool.
+	 *
+	 * @param	response	The response to read.
+	 * @return	The status, headers and body.
+	 * @throws	IOException	if the body could not be read
+	 * @since	1.0
+	 */
+	private static HttpContent toContent(final HttpResponse response) throws IOException {
+		int statusCode = response.getStatusLine().getStatusCode();
+
+		Map<String, String> responseHeaders = new HashMap<String, String>();
+		for (Header header : response.getAllHeaders()) {
+			responseHeaders.put(header.getName(), header.getValue());
+		}
+
+		String content = null;
+		if (statusCode == 200) {
+			content = EntityUtils.toString(response.getEntity());
+		} else {
+			// fully read the body so the connection can go back to the pool
+			EntityUtils.consume(response.getEntity());
+		}
+
+		return new HttpContent(statusCode, responseHeaders, content);
+	}
 
-		return content;
+	/** @return	The circuit breaker guarding the base URL. */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
 	}
 
 
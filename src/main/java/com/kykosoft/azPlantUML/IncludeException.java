@@ -0,0 +1,26 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the {@code !include} directives of a diagram cannot be
+ * resolved, e.g. an included file is missing or includes form a cycle.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class IncludeException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message	description of the problem
+	 * @since 1.0
+	 */
+	public IncludeException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,404 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands the {@code !include} directives of a diagram with the contents of
+ * other files in the repository.
+ * <p>
+ * PlantUML can only include files from the local file system, so included
+ * files are fetched from the repository and inlined before rendering. All
+ * files referenced at one nesting level are fetched in parallel, either on an
+ * executor or with non-blocking requests. As in PlantUML, {@code !include}
+ * and {@code !include_once} inline a file only once per diagram; only
+ * {@code !include_many} repeats it, and the expanded text is limited in
+ * length so repeated includes cannot blow it up. Because the
+ * rendered-image cache is keyed on the expanded text, a change to a shared
+ * include changes the key of exactly the diagrams that use it.
+ * <p>
+ * Standard library ({@code <...>}) and URL includes, as well as includes of a
+ * single block ({@code file!id}), are left for PlantUML to handle.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class IncludeResolver {
+
+	/** Matches an include directive; group 1 is the directive, group 2 the target */
+	private static final Pattern INCLUDE = Pattern.compile("^\\s*!(include|include_once|include_many)\\s+(.+?)\\s*$");
+
+	/** Default maximum number of distinct files included by one diagram */
+	public static final int DEFAULT_MAX_INCLUDES = 100;
+
+	/** Default maximum length, in characters, of the expanded text of one diagram */
+	public static final int DEFAULT_MAX_LENGTH = 1000000;
+
+
+	/**
+	 * Reads an included file.
+	 *
+	 * @since 1.0
+	 */
+	@FunctionalInterface
+	public interface Fetcher {
+		/**
+		 * Reads a file from the repository.
+		 *
+		 * @param path	absolute repository path
+		 * @return the file contents or null if it does not exist
+		 * @throws IOException	if the file could not be read
+		 */
+		String fetch(String path) throws IOException;
+	}
+
+	/**
+	 * Reads an included file without blocking the caller.
+	 *
+	 * @since 1.0
+	 */
+	@FunctionalInterface
+	public interface AsyncFetcher {
+		/**
+		 * Starts reading a file from the repository.
+		 *
+		 * @param path	absolute repository path
+		 * @return completes with the file contents, or null if it does not exist
+		 */
+		CompletableFuture<String> fetch(String path);
+	}
+
+	/**
+	 * A diagram with its includes expanded.
+	 *
+	 * @since 1.0
+	 */
+	public static class Result {
+
+		/** Source text with every include inlined */
+		private final String _source;
+
+		/** Repository paths of every file in the include closure */
+		private final Set<String> _includes;
+
+		Result(String source, Set<String> includes) {
+			_source = source;
+			_includes = Collections.unmodifiableSet(includes);
+		}
+
+		/** @return source text with every include inlined */
+		public String getSource() {
+			return _source;
+		}
+
+		/** @return repository paths of every file in the include closure */
+		public Set<String> getIncludes() {
+			return _includes;
+		}
+	}
+
+
+	/** Reads included files */
+	private final AsyncFetcher _fetcher;
+
+	/** Maximum number of distinct files included by one diagram */
+	private final int _maxIncludes;
+
+	/** Maximum length, in characters, of the expanded text */
+	private final int _maxLength;
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param fetcher		reads included files
+	 * @param executor		runs the parallel fetches
+	 * @param maxIncludes	maximum number of distinct files included by one diagram
+	 * @param maxLength		maximum length, in characters, of the expanded text
+	 * @since 1.0
+	 */
+	public IncludeResolver(Fetcher fetcher, Executor executor, int maxIncludes, int maxLength) {
+		this(include -> CompletableFuture.supplyAsync(() -> {
+			try {
+				return fetcher.fetch(include);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}, executor), maxIncludes, maxLength);
+	}
+
+	/**
+	 * Initializes a new instance that reads included files asynchronously;
+	 * all files of a nesting level are requested at once.
+	 *
+	 * @param fetcher		starts reading included files
+	 * @param maxIncludes	maximum number of distinct files included by one diagram
+	 * @param maxLength		maximum length, in characters, of the expanded text
+	 * @since 1.0
+	 */
+	public IncludeResolver(AsyncFetcher fetcher, int maxIncludes, int maxLength) {
+		_fetcher = fetcher;
+		_maxIncludes = maxIncludes;
+		_maxLength = maxLength;
+	}
+
+	/**
+	 * Expands the includes of a diagram.
+	 *
+	 * @param source	source text of the diagram
+	 * @param path		repository path of the diagram; relative includes are resolved against it
+	 * @return the expanded diagram
+	 * @throws IncludeException	if an include is missing, cyclic or the include or length limit is exceeded
+	 * @throws IOException		if an included file could not be read
+	 * @since 1.0
+	 */
+	public Result resolve(String source, String path) throws IOException {
+		return await(resolveAsync(source, path));
+	}
+
+	/**
+	 * Expands the includes of a diagram without blocking the caller.
+	 *
+	 * @param source	source text of the diagram
+	 * @param path		repository path of the diagram; relative includes are resolved against it
+	 * @return completes with the expanded diagram, or with an {@link IncludeException}
+	 * 			if an include is missing, cyclic or the include or length limit is exceeded
+	 * @since 1.0
+	 * @see #resolve(String, String)
+	 */
+	public CompletableFuture<Result> resolveAsync(String source, String path) {
+		if (source.indexOf("!include") < 0) {
+			return CompletableFuture.completedFuture(new Result(source, Collections.<String>emptySet()));
+		}
+
+		return fetchClosure(new LinkedHashMap<String, String>(), includeTargets(source, path), path).thenApply(files -> {
+			StringBuilder expanded = new StringBuilder(source.length());
+			try {
+				expand(source, path, files, new ArrayDeque<String>(), new HashSet<String>(), expanded);
+			} catch (IncludeException ex) {
+				throw new CompletionException(ex);
+			}
+
+			return new Result(expanded.toString(), new LinkedHashSet<String>(files.keySet()));
+		});
+	}
+
+	/**
+	 * Fetches every file in the include closure, one nesting level at a time
+	 * with the files of each level requested together.
+	 *
+	 * @param files	files fetched so far; receives the files of this and deeper levels
+	 * @param level	files included by the previous level
+	 * @param path	repository path of the diagram
+	 * @return completes with the contents of every included file by path (null
+	 * 			for missing files), or with the failure to read one
+	 * @since 1.0
+	 */
+	private CompletableFuture<Map<String, String>> fetchClosure(Map<String, String> files, Set<String> level, String path) {
+		level.removeAll(files.keySet());
+		if (level.isEmpty()) {
+			return CompletableFuture.completedFuture(files);
+		}
+
+		if (files.size() + level.size() > _maxIncludes) {
+			CompletableFuture<Map<String, String>> failed = new CompletableFuture<Map<String, String>>();
+			failed.completeExceptionally(new IncludeException(path + " includes more than " + _maxIncludes + " files"));
+			return failed;
+		}
+
+		Map<String, CompletableFuture<String>> pending = new LinkedHashMap<String, CompletableFuture<String>>();
+		for (String include : level) {
+			pending.put(include, _fetcher.fetch(include));
+		}
+
+		return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[pending.size()])).thenCompose(done -> {
+			Set<String> next = new LinkedHashSet<String>();
+			for (Map.Entry<String, CompletableFuture<String>> entry : pending.entrySet()) {
+				String content = entry.getValue().join();
+				files.put(entry.getKey(), content);
+				if (content != null) {
+					next.addAll(includeTargets(content, entry.getKey()));
+				}
+			}
+
+			return fetchClosure(files, next, path);
+		});
+	}
+
+	/**
+	 * Appends a file to the expanded text, replacing each include directive
+	 * with the expanded contents of the included file.
+	 *
+	 * @param text		contents of the file
+	 * @param path		repository path of the file
+	 * @param files		contents of every included file by path
+	 * @param stack		files currently being expanded, to detect cycles
+	 * @param included	files already inlined; only {@code !include_many} inlines them again
+	 * @param expanded	receives the expanded text
+	 * @throws IncludeException	if an include is missing or cyclic, or the expanded text is too long
+	 * @since 1.0
+	 */
+	private void expand(String text, String path, Map<String, String> files, Deque<String> stack, Set<String> included, StringBuilder expanded) throws IncludeException {
+		stack.push(path);
+
+		for (String line : text.split("\r?\n")) {
+			Matcher matcher = INCLUDE.matcher(line);
+			String target = matcher.matches() ? resolveTarget(matcher.group(2), path) : null;
+
+			if (target == null) {
+				expanded.append(line).append('\n');
+				if (expanded.length() > _maxLength) {
+					throw new IncludeException(stack.peekLast() + " expands to more than " + _maxLength + " characters");
+				}
+				continue;
+			}
+
+			if (stack.contains(target)) {
+				throw new IncludeException("Cyclic include of " + target + " in " + path);
+			}
+
+			if (!"include_many".equals(matcher.group(1)) && included.contains(target)) {
+				continue;
+			}
+
+			String content = files.get(target);
+			if (content == null) {
+				throw new IncludeException("Unable to include " + target + " in " + path);
+			}
+
+			included.add(target);
+			expand(stripDiagramMarkers(content), target, files, stack, included, expanded);
+		}
+
+		stack.pop();
+	}
+
+	/**
+	 * Finds the repository files included directly by a file.
+	 *
+	 * @param text	contents of the file
+	 * @param path	repository path of the file
+	 * @return included repository paths
+	 * @since 1.0
+	 */
+	private static Set<String> includeTargets(String text, String path) {
+		Set<String> targets = new LinkedHashSet<String>();
+		if (text.indexOf("!include") < 0) {
+			return targets;
+		}
+
+		for (String line : text.split("\r?\n")) {
+			Matcher matcher = INCLUDE.matcher(line);
+			if (matcher.matches()) {
+				String target = resolveTarget(matcher.group(2), path);
+				if (target != null) {
+					targets.add(target);
+				}
+			}
+		}
+
+		return targets;
+	}
+
+	/**
+	 * Resolves the target of an include directive against the including file.
+	 *
+	 * @param spec	target as written in the directive
+	 * @param path	repository path of the including file
+	 * @return absolute repository path, or null if the target is not a repository file
+	 * @since 1.0
+	 */
+	static String resolveTarget(String spec, String path) {
+		String target = spec.trim();
+		if (target.length() > 1 && target.startsWith("\"") && target.endsWith("\"")) {
+			target = target.substring(1, target.length() - 1);
+		}
+
+		if (target.isEmpty()
+				|| target.startsWith("<")
+				|| target.contains("://")
+				|| target.indexOf('!') >= 0) {
+			// standard library, URL or single block include
+			return null;
+		}
+
+		target = target.replace('\\', '/');
+		if (!target.startsWith("/")) {
+			String base = path.replace('\\', '/');
+			target = base.substring(0, base.lastIndexOf('/') + 1) + target;
+		}
+
+		List<String> segments = new ArrayList<String>();
+		for (String segment : target.split("/")) {
+			if (segment.isEmpty() || segment.equals(".")) {
+				continue;
+			} else if (segment.equals("..")) {
+				if (!segments.isEmpty()) {
+					segments.remove(segments.size() - 1);
+				}
+			} else {
+				segments.add(segment);
+			}
+		}
+
+		return "/" + String.join("/", segments);
+	}
+
+	/**
+	 * Removes the {@code @startuml}/{@code @enduml} lines of an included file.
+	 *
+	 * @param content	contents of the included file
+	 * @return the body of the file
+	 * @since 1.0
+	 */
+	private static String stripDiagramMarkers(String content) {
+		StringBuilder body = new StringBuilder(content.length());
+		for (String line : content.split("\r?\n")) {
+			String trimmed = line.trim();
+			if (!trimmed.startsWith("@startuml") && !trimmed.startsWith("@enduml")) {
+				body.append(line).append('\n');
+			}
+		}
+
+		// the caller appends the line break of the include directive
+		return body.length() > 0 ? body.substring(0, body.length() - 1) : "";
+	}
+
+	private static Result await(CompletableFuture<Result> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching included files");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
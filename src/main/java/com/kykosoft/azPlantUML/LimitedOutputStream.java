@@ -0,0 +1,87 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream used while rendering that aborts the render once it has
+ * written more than the allowed number of bytes, or once the rendering
+ * thread has been interrupted (the render was cancelled after its deadline).
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class LimitedOutputStream extends FilterOutputStream {
+
+	/** Maximum number of bytes that may be written */
+	private final long _maxBytes;
+
+	/** Number of bytes written so far */
+	private long _written = 0;
+
+	/** Time (nanos) the first byte was written; 0 until then */
+	private long _firstWriteAt = 0;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param out		stream receiving the rendered output
+	 * @param maxBytes	maximum number of bytes that may be written
+	 * @since 1.0
+	 */
+	public LimitedOutputStream(OutputStream out, long maxBytes) {
+		super(out);
+		_maxBytes = maxBytes;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		check(1);
+		markFirstWrite();
+		out.write(b);
+		_written++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		check(len);
+		markFirstWrite();
+		out.write(b, off, len);
+		_written += len;
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 * @since 1.0
+	 */
+	public long getWritten() {
+		return _written;
+	}
+
+	/**
+	 * @return time ({@link System#nanoTime()}) the first byte was written, or 0 if nothing was written
+	 * @since 1.0
+	 */
+	public long getFirstWriteAt() {
+		return _firstWriteAt;
+	}
+
+	private void markFirstWrite() {
+		if (_firstWriteAt == 0) {
+			_firstWriteAt = System.nanoTime();
+		}
+	}
+
+	private void check(int len) throws IOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("The render was cancelled");
+		}
+
+		if (_written + len > _maxBytes) {
+			throw new RenderLimitException("The diagram is larger than " + _maxBytes + " bytes");
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.gson.JsonObject;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Reports the latency, throughput and cache metrics of this function host.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class MetricsFunction {
+
+	/**
+	 * Returns the metrics of this host as JSON.
+	 * <p>
+	 * Accessed at: /api/Metrics with a function key. The response holds the
+	 * stage histograms, output sizes and status counts of
+	 * {@link PipelineMetrics}, the state of the render scheduler and the parse
+	 * cache and, for each repository that has served a request, its cache,
+	 * coalescing and circuit breaker counters. Every instance of the function
+	 * app reports only its own metrics.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response with the metrics as JSON
+	 * @since	1.0
+	 */
+	@FunctionName("Metrics")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.GET},
+				authLevel = AuthorizationLevel.FUNCTION)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		JsonObject body = PipelineMetrics.toJson();
+		body.add("scheduler", schedulerToJson(RenderScheduler.getInstance()));
+
+		ParseCache parsed = DiagramGenerator.getParseCache();
+		JsonObject parseCache = new JsonObject();
+		parseCache.addProperty("hits", parsed.getHits());
+		parseCache.addProperty("misses", parsed.getMisses());
+		parseCache.addProperty("entries", parsed.size());
+		body.add("parseCache", parseCache);
+
+		JsonObject tenants = new JsonObject();
+		for (Map.Entry<String, DevOpsDiagram> entry : TenantRegistry.getInstance().getActiveGenerators().entrySet()) {
+			tenants.add(entry.getKey(), generatorToJson(entry.getValue()));
+		}
+		body.add("tenants", tenants);
+
+		return request.createResponseBuilder(HttpStatus.OK)
+				.body(body.toString())
+				.header("Content-Type", "application/json")
+				.header("Cache-Control", "no-store")
+				.build();
+	}
+
+	/**
+	 * Describes the state of the render scheduler.
+	 *
+	 * @param scheduler	the scheduler
+	 * @return its counters as JSON
+	 * @since 1.0
+	 */
+	static JsonObject schedulerToJson(RenderScheduler scheduler) {
+		JsonObject json = new JsonObject();
+		json.addProperty("active", scheduler.getActive());
+		json.addProperty("queued", scheduler.getQueued());
+		json.addProperty("submitted", scheduler.getSubmitted());
+		json.addProperty("rejected", scheduler.getRejected());
+		json.addProperty("expired", scheduler.getExpired());
+		json.addProperty("timedOut", scheduler.getTimedOut());
+
+		return json;
+	}
+
+	/**
+	 * Describes the caches, coalescers and circuit breaker of one repository.
+	 *
+	 * @param generator	the repository's generator
+	 * @return its counters as JSON
+	 * @since 1.0
+	 */
+	static JsonObject generatorToJson(DevOpsDiagram generator) {
+		DiagramCache images = generator.getImageCache();
+		JsonObject imageCache = new JsonObject();
+		imageCache.addProperty("hits", images.getHits());
+		imageCache.addProperty("storeHits", images.getDiskHits());
+		imageCache.addProperty("misses", images.getMisses());
+		imageCache.addProperty("evictions", images.getEvictions());
+		imageCache.addProperty("entries", images.getEntryCount());
+		imageCache.addProperty("bytes", images.getCurrentBytes());
+
+		SourceCache sources = generator.getSourceCache();
+		JsonObject sourceCache = new JsonObject();
+		sourceCache.addProperty("freshHits", sources.getFreshHits());
+		sourceCache.addProperty("notModified", sources.getNotModified());
+		sourceCache.addProperty("downloads", sources.getDownloads());
+		sourceCache.addProperty("staleOnError", sources.getStaleOnError());
+
+		JsonObject coalescing = new JsonObject();
+		coalescing.addProperty("sourceExecutions", generator.getSourceFlights().getExecutions());
+		coalescing.addProperty("sourceCoalesced", generator.getSourceFlights().getCoalesced());
+		coalescing.addProperty("renderExecutions", generator.getRenderFlights().getExecutions());
+		coalescing.addProperty("renderCoalesced", generator.getRenderFlights().getCoalesced());
+
+		CircuitBreaker breaker = generator.getHttpClient().getCircuitBreaker();
+		JsonObject circuit = new JsonObject();
+		circuit.addProperty("state", breaker.getState().name());
+		circuit.addProperty("rejected", breaker.getRejected());
+
+		JsonObject json = new JsonObject();
+		json.add("imageCache", imageCache);
+		json.add("sourceCache", sourceCache);
+		json.add("coalescing", coalescing);
+		json.add("circuit", circuit);
+
+		return json;
+	}
+}
@@ -0,0 +1,125 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived memory of diagrams that could not be rendered, keyed by source
+ * hash, so a pathological source only burns CPU once per time-to-live.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class NegativeCache {
+
+	/** Reason a diagram failed and when that stops being remembered */
+	private static class Entry {
+		final String message;
+		final long expiresAt;
+
+		Entry(String message, long expiresAt) {
+			this.message = message;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+
+	/** How long, in milliseconds, a failure is remembered */
+	private final long _ttlMillis;
+
+	/** Maximum number of failures remembered */
+	private final int _maxEntries;
+
+	/** Remembered failures by key */
+	private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+	/** Number of lookups that found a remembered failure */
+	private final AtomicLong _hits = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param ttlMillis		how long a failure is remembered
+	 * @param maxEntries	maximum number of failures remembered
+	 * @since 1.0
+	 */
+	public NegativeCache(long ttlMillis, int maxEntries) {
+		_ttlMillis = ttlMillis;
+		_maxEntries = maxEntries;
+	}
+
+	/**
+	 * Gets the remembered failure for a key.
+	 *
+	 * @param key	identifies the diagram
+	 * @return the failure message or null if none is remembered
+	 * @since 1.0
+	 */
+	public String get(String key) {
+		Entry entry = _entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			_entries.remove(key, entry);
+			return null;
+		}
+
+		_hits.incrementAndGet();
+		return entry.message;
+	}
+
+	/**
+	 * Remembers a failure.
+	 *
+	 * @param key		identifies the diagram
+	 * @param message	reason the diagram failed
+	 * @since 1.0
+	 */
+	public void put(String key, String message) {
+		if (_ttlMillis <= 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if (_entries.size() >= _maxEntries) {
+			// make room by dropping expired failures; if none have expired the new one is not remembered
+			Iterator<Map.Entry<String, Entry>> entries = _entries.entrySet().iterator();
+			while (entries.hasNext()) {
+				if (entries.next().getValue().expiresAt <= now) {
+					entries.remove();
+				}
+			}
+			if (_entries.size() >= _maxEntries) {
+				return;
+			}
+		}
+
+		_entries.put(key, new Entry(message, now + _ttlMillis));
+	}
+
+	/**
+	 * Forgets the failure for a key.
+	 *
+	 * @param key	identifies the diagram
+	 * @since 1.0
+	 */
+	public void invalidate(String key) {
+		_entries.remove(key);
+	}
+
+	/** @return number of lookups that found a remembered failure */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/** @return number of failures currently remembered */
+	public int size() {
+		return _entries.size();
+	}
+}
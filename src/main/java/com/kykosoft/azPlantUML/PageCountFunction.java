@@ -0,0 +1,129 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonObject;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Reports how many pages a diagram in an Azure DevOps git repo has, so a
+ * client can request each of them from the DevOps function.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PageCountFunction {
+
+	/**
+	 * Counts the pages of a file in an Azure DevOps repository.
+	 * <p>
+	 * Accessed at: /api/DevOpsPages?path=%2Fpath%2Fto%2Ffile.puml
+	 * <p>
+	 * The {@code version}, {@code repo} and {@code project} parameters work as
+	 * for the DevOps function. The response is JSON holding the {@code path}
+	 * and its number of {@code pages}; every {@code @startuml} block and every
+	 * {@code newpage} section is one page. Counting only parses the source,
+	 * and the parsed diagram is reused when the pages are then rendered.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response with the page count as JSON
+	 * @since	1.0
+	 */
+	@FunctionName("DevOpsPages")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.GET},
+				authLevel = AuthorizationLevel.ANONYMOUS)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+
+		String path = request.getQueryParameters().get("path");
+		if (path == null) {
+			String errMessage = "'path' is a required parameter";
+			logger.log(Level.SEVERE, errMessage);
+
+			return textResponse(request, HttpStatus.BAD_REQUEST, errMessage);
+		}
+
+		String commit = request.getQueryParameters().get("version");
+		if (commit != null && !DevOpsDiagram.isCommitId(commit)) {
+			String errMessage = "'version' must be a commit id";
+			logger.log(Level.SEVERE, errMessage);
+
+			return textResponse(request, HttpStatus.BAD_REQUEST, errMessage);
+		}
+
+		DevOpsDiagram generator = TenantRegistry.getInstance().getGenerator(
+				request.getQueryParameters().get("project"),
+				request.getQueryParameters().get("repo"));
+		if (generator == null) {
+			String errMessage = "No repository is configured for the requested 'project' and 'repo'";
+			logger.log(Level.WARNING, errMessage);
+
+			return textResponse(request, HttpStatus.NOT_FOUND, errMessage);
+		}
+
+		try {
+			String diagramSource = generator.fetchSource(path, commit, logger);
+
+			// only a successfully downloaded pinned file is immutable, never an error diagram
+			String cacheControl = (commit != null && generator.getLastModified(path, commit) >= 0)
+					? HttpCaching.immutableCacheControl()
+					: HttpCaching.cacheControl();
+
+			JsonObject body = new JsonObject();
+			body.addProperty("path", path);
+			body.addProperty("pages", DiagramGenerator.countPages(diagramSource));
+
+			return request.createResponseBuilder(HttpStatus.OK)
+					.body(body.toString())
+					.header("Content-Type", "application/json")
+					.header("Cache-Control", cacheControl)
+					.build();
+		} catch (RenderRejectedException ex) {
+			logger.log(Level.WARNING, "Page count rejected: " + ex.getMessage());
+			return request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+					.body(ex.getMessage())
+					.header("Content-Type", "text/plain")
+					.header("Retry-After", Integer.toString(ex.getRetryAfterSeconds()))
+					.build();
+		} catch (IOException ex) {
+			return textResponse(request, HttpStatus.INTERNAL_SERVER_ERROR, ex.toString());
+		}
+	}
+
+	/**
+	 * Builds a plain text response.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param status	status of the response
+	 * @param message	body of the response
+	 * @return the response
+	 * @since 1.0
+	 */
+	private static HttpResponseMessage textResponse(
+			HttpRequestMessage<Optional<String>> request,
+			HttpStatus status,
+			String message) {
+		return request
+				.createResponseBuilder(status)
+				.body(message)
+				.header("Content-Type", "text/plain")
+				.build();
+	}
+}
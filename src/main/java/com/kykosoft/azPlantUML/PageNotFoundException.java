@@ -0,0 +1,35 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a page is requested that the diagram does not have.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PageNotFoundException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of pages the diagram has */
+	private final int _pageCount;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param page		index of the requested page, starting at 0
+	 * @param pageCount	number of pages the diagram has
+	 * @since 1.0
+	 */
+	public PageNotFoundException(int page, int pageCount) {
+		super("The diagram has " + pageCount + (pageCount == 1 ? " page" : " pages") + "; page " + (page + 1) + " does not exist");
+		_pageCount = pageCount;
+	}
+
+	/** @return number of pages the diagram has */
+	public int getPageCount() {
+		return _pageCount;
+	}
+}
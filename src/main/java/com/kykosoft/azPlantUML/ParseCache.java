@@ -0,0 +1,188 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of {@link ParsedDiagram}s keyed by source hash,
+ * so rendering the same source in several formats parses it only once.
+ * <p>
+ * Only a few entries are needed: the formats of one diagram are requested
+ * within moments of each other, and rendered images are cached separately by
+ * {@link DiagramCache}. Two threads missing the same source at once may both
+ * parse it; the second result replaces the first.
+ * <p>
+ * A render takes its parsed diagram out of the cache and returns it when the
+ * export has finished, so no two renders ever share one PlantUML diagram. A
+ * render that overruns its deadline keeps running in the background, as
+ * PlantUML ignores interrupts; other renders of the same source then parse
+ * their own copy instead of waiting for it.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class ParseCache {
+
+	/** Name of the environment variable that holds the number of parsed diagrams kept */
+	private static final String ENV_MAX_ENTRIES = "azuml_parseCacheEntries";
+
+
+	/** Maximum number of parsed diagrams kept; 0 disables the cache */
+	private final int _maxEntries;
+
+	/** Parsed diagrams by source hash, least recently used first */
+	private final LinkedHashMap<String, ParsedDiagram> _entries;
+
+	/** Number of lookups answered from the cache */
+	private final AtomicLong _hits = new AtomicLong();
+
+	/** Number of lookups that had to parse the source */
+	private final AtomicLong _misses = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxEntries	maximum number of parsed diagrams kept; 0 disables the cache
+	 * @since 1.0
+	 */
+	public ParseCache(int maxEntries) {
+		_maxEntries = maxEntries;
+		_entries = new LinkedHashMap<String, ParsedDiagram>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ParsedDiagram> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Creates a cache sized by {@code azuml_parseCacheEntries} (default 32).
+	 *
+	 * @return a new cache
+	 * @since 1.0
+	 */
+	public static ParseCache fromEnvironment() {
+		return new ParseCache(EnvironmentSettings.getInt(ENV_MAX_ENTRIES, 32));
+	}
+
+	/**
+	 * Gets the parsed form of a source, parsing it on the calling thread if it
+	 * is not cached, and leaves it in the cache. The result must only be used
+	 * for {@link ParsedDiagram#getPageCount()}; renders use
+	 * {@link #take(String)}. The time spent parsing is recorded as the parse
+	 * stage.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return the parsed diagram
+	 * @since 1.0
+	 */
+	public ParsedDiagram get(String source) {
+		String key = DiagramCache.hash(source);
+
+		synchronized (_entries) {
+			ParsedDiagram parsed = _entries.get(key);
+			if (parsed != null) {
+				_hits.incrementAndGet();
+				return parsed;
+			}
+		}
+
+		ParsedDiagram parsed = parse(source);
+		put(key, parsed);
+
+		return parsed;
+	}
+
+	/**
+	 * Takes the parsed form of a source out of the cache for the exclusive
+	 * use of one render, parsing it on the calling thread if it is not
+	 * cached. Hand it back with {@link #release(String, ParsedDiagram)} once
+	 * the render has finished.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return the parsed diagram
+	 * @since 1.0
+	 */
+	public ParsedDiagram take(String source) {
+		String key = DiagramCache.hash(source);
+
+		synchronized (_entries) {
+			ParsedDiagram parsed = _entries.remove(key);
+			if (parsed != null) {
+				_hits.incrementAndGet();
+				return parsed;
+			}
+		}
+
+		return parse(source);
+	}
+
+	/**
+	 * Returns a parsed diagram taken with {@link #take(String)} to the cache.
+	 *
+	 * @param source	text contents of the diagram
+	 * @param parsed	the parsed diagram, no longer used by the caller
+	 * @since 1.0
+	 */
+	public void release(String source, ParsedDiagram parsed) {
+		put(DiagramCache.hash(source), parsed);
+	}
+
+	/**
+	 * Parses a source that is not cached.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return the parsed diagram
+	 * @since 1.0
+	 */
+	private ParsedDiagram parse(String source) {
+		_misses.incrementAndGet();
+		long startedAt = System.nanoTime();
+		ParsedDiagram parsed = ParsedDiagram.parse(source);
+		PipelineMetrics.record(PipelineMetrics.Stage.PARSE, System.nanoTime() - startedAt);
+
+		return parsed;
+	}
+
+	/**
+	 * Caches a parsed diagram unless the cache is disabled.
+	 *
+	 * @param key		source hash
+	 * @param parsed	the parsed diagram
+	 * @since 1.0
+	 */
+	private void put(String key, ParsedDiagram parsed) {
+		if (_maxEntries > 0) {
+			synchronized (_entries) {
+				_entries.put(key, parsed);
+			}
+		}
+	}
+
+	/** @return number of lookups answered from the cache */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/** @return number of lookups that had to parse the source */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	/** @return number of parsed diagrams cached */
+	public int size() {
+		synchronized (_entries) {
+			return _entries.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ParseCache[entries=%1$d, hits=%2$d, misses=%3$d]", size(), getHits(), getMisses());
+	}
+}
@@ -0,0 +1,105 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sourceforge.plantuml.BlockUml;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.core.Diagram;
+
+/**
+ * Diagram source text parsed by PlantUML once, from which images of any
+ * format can be exported repeatedly.
+ * <p>
+ * {@code SourceStringReader.generateImage} preprocesses and parses the whole
+ * source on every call; keeping the parsed diagrams lets the PNG, SVG and
+ * SVGZ images of one source share a single parse. PlantUML diagrams are not
+ * thread-safe, so an instance must only be exported by one thread at a time;
+ * {@link ParseCache#take(String)} hands each instance to a single render.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class ParsedDiagram {
+
+	/** Source text of the diagram */
+	private final String _source;
+
+	/** Diagram of each {@code @start}/{@code @end} block, in source order */
+	private final List<Diagram> _diagrams;
+
+	/** Number of images the diagrams produce */
+	private final int _pageCount;
+
+
+	private ParsedDiagram(String source, List<Diagram> diagrams) {
+		_source = source;
+		_diagrams = diagrams;
+
+		int pages = 0;
+		for (Diagram diagram : diagrams) {
+			pages += diagram.getNbImages();
+		}
+		_pageCount = Math.max(1, pages);
+	}
+
+	/**
+	 * Parses diagram source text on the calling thread.
+	 *
+	 * @param source	text contents of the diagram
+	 * @return the parsed diagram
+	 * @since 1.0
+	 */
+	public static ParsedDiagram parse(String source) {
+		List<Diagram> diagrams = new ArrayList<Diagram>();
+		for (BlockUml block : new SourceStringReader(source).getBlocks()) {
+			diagrams.add(block.getDiagram());
+		}
+
+		return new ParsedDiagram(source, Collections.unmodifiableList(diagrams));
+	}
+
+	/**
+	 * Exports one image of the diagram. Pages are numbered across all blocks
+	 * of the source, as PlantUML numbers them.
+	 *
+	 * @param page		index of the image, starting at 0
+	 * @param option	output format
+	 * @param out		stream receiving the image; it is not closed
+	 * @throws PageNotFoundException	if the diagram has no such page
+	 * @throws IOException	if the image could not be written
+	 * @since 1.0
+	 */
+	public void export(int page, FileFormatOption option, OutputStream out) throws IOException {
+		if (page < 0 || page >= _pageCount) {
+			throw new PageNotFoundException(page, _pageCount);
+		}
+
+		if (_diagrams.isEmpty()) {
+			// lets PlantUML draw its "no @startuml found" image
+			new SourceStringReader(_source).generateImage(out, option);
+			return;
+		}
+
+		int remaining = page;
+		for (Diagram diagram : _diagrams) {
+			if (remaining < diagram.getNbImages()) {
+				diagram.exportDiagram(out, remaining, option);
+				return;
+			}
+			remaining -= diagram.getNbImages();
+		}
+
+		throw new PageNotFoundException(page, _pageCount);
+	}
+
+	/** @return number of images the diagram produces; at least 1 */
+	public int getPageCount() {
+		return _pageCount;
+	}
+}
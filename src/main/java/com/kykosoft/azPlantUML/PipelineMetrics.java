@@ -0,0 +1,322 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Process-wide latency and throughput metrics of the diagram pipeline.
+ * <p>
+ * Every stage a request passes through is timed into its own
+ * {@link Histogram}, so a slow diagram can be attributed to DevOps, to
+ * PlantUML's layout or to image encoding. Upstream status codes and output
+ * sizes are counted as well. The metrics are exposed by the
+ * {@link MetricsFunction}; each request additionally logs one structured
+ * event with its own stage timings (see {@link Trace}).
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class PipelineMetrics {
+
+	/**
+	 * A stage of the diagram pipeline.
+	 *
+	 * @since 1.0
+	 */
+	public enum Stage {
+		/** Selecting the repository and validating the request */
+		CONFIG,
+		/** Retrieving the diagram source, from a cache or DevOps, including its includes */
+		FETCH,
+		/** One request to DevOps, including retries */
+		UPSTREAM,
+		/** Downloading and expanding the included files */
+		INCLUDES,
+		/** Waiting for a free render slot */
+		QUEUE,
+		/** PlantUML parsing, on a parse cache miss */
+		PARSE,
+		/** PlantUML layout, until the first byte of the image is written */
+		LAYOUT,
+		/** Writing (and compressing) the image, from its first byte to its last */
+		ENCODE,
+		/** Producing the image, from a cache or by rendering it */
+		RENDER,
+		/** Building the HTTP response */
+		RESPONSE,
+		/** The whole request */
+		TOTAL;
+
+		/** @return name of the stage in metrics and log events */
+		public String getKey() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+
+	/**
+	 * Timings of a single request, logged as one structured event when the
+	 * request finishes. Each stage is recorded in the process-wide histograms
+	 * as well.
+	 * <p>
+	 * A trace belongs to one invocation and is not thread-safe.
+	 *
+	 * @since 1.0
+	 */
+	public static class Trace {
+
+		/** Name of the event, e.g. the function name */
+		private final String _event;
+
+		/** Time (nanos) the request started */
+		private final long _startedAt = System.nanoTime();
+
+		/** Time (nanos) of the previous mark */
+		private long _markedAt = _startedAt;
+
+		/** Properties of the event */
+		private final JsonObject _properties = new JsonObject();
+
+		/** Durations of the stages, in milliseconds */
+		private final JsonObject _stages = new JsonObject();
+
+		private Trace(String event) {
+			_event = event;
+		}
+
+		/**
+		 * Ends a stage, which started when the previous stage ended.
+		 *
+		 * @param stage	the stage that just ended
+		 * @return this trace
+		 * @since 1.0
+		 */
+		public Trace mark(Stage stage) {
+			long now = System.nanoTime();
+			record(stage, now - _markedAt);
+			_stages.addProperty(stage.getKey() + "Ms", toMillis(now - _markedAt));
+			_markedAt = now;
+
+			return this;
+		}
+
+		/**
+		 * Adds a property to the event.
+		 *
+		 * @param name	name of the property
+		 * @param value	value of the property
+		 * @return this trace
+		 * @since 1.0
+		 */
+		public Trace put(String name, String value) {
+			_properties.addProperty(name, value);
+			return this;
+		}
+
+		/**
+		 * Adds a numeric property to the event.
+		 *
+		 * @param name	name of the property
+		 * @param value	value of the property
+		 * @return this trace
+		 * @since 1.0
+		 */
+		public Trace put(String name, long value) {
+			_properties.addProperty(name, value);
+			return this;
+		}
+
+		/**
+		 * Ends the request and logs its event as a single line of JSON.
+		 *
+		 * @param status	HTTP status of the response
+		 * @param logger	logging instance of the invocation
+		 * @since 1.0
+		 */
+		public void finish(int status, Logger logger) {
+			long elapsed = System.nanoTime() - _startedAt;
+			record(Stage.TOTAL, elapsed);
+			recordResponse(status);
+
+			JsonObject event = new JsonObject();
+			event.addProperty("event", _event);
+			event.addProperty("status", status);
+			for (Map.Entry<String, JsonElement> property : _properties.entrySet()) {
+				event.add(property.getKey(), property.getValue());
+			}
+			event.add("stages", _stages);
+			event.addProperty("totalMs", toMillis(elapsed));
+
+			logger.info(event.toString());
+		}
+	}
+
+
+	/** Time (epoch millis) the metrics started */
+	private static final long STARTED_AT = System.currentTimeMillis();
+
+	/** Durations of each stage, in microseconds */
+	private static final Map<Stage, Histogram> STAGES = new EnumMap<Stage, Histogram>(Stage.class);
+
+	/** Sizes of rendered images by format, in bytes */
+	private static final ConcurrentHashMap<DiagramFormat, Histogram> OUTPUT_BYTES = new ConcurrentHashMap<DiagramFormat, Histogram>();
+
+	/** Number of DevOps responses by status code; 0 counts requests that got no response */
+	private static final ConcurrentHashMap<Integer, LongAdder> UPSTREAM_STATUS = new ConcurrentHashMap<Integer, LongAdder>();
+
+	/** Number of responses sent by status code */
+	private static final ConcurrentHashMap<Integer, LongAdder> RESPONSE_STATUS = new ConcurrentHashMap<Integer, LongAdder>();
+
+	static {
+		for (Stage stage : Stage.values()) {
+			STAGES.put(stage, new Histogram());
+		}
+	}
+
+
+	private PipelineMetrics() {
+	}
+
+	/**
+	 * Starts the trace of a request.
+	 *
+	 * @param event	name of the event logged when the request finishes
+	 * @return a new trace
+	 * @since 1.0
+	 */
+	public static Trace startTrace(String event) {
+		return new Trace(event);
+	}
+
+	/**
+	 * Records the duration of a stage.
+	 *
+	 * @param stage	the stage
+	 * @param nanos	duration in nanoseconds
+	 * @since 1.0
+	 */
+	public static void record(Stage stage, long nanos) {
+		STAGES.get(stage).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records the status of a DevOps response.
+	 *
+	 * @param status	HTTP status, or 0 if the request failed without a response
+	 * @since 1.0
+	 */
+	public static void recordUpstreamStatus(int status) {
+		UPSTREAM_STATUS.computeIfAbsent(status, key -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Records the status of a response sent to a client.
+	 *
+	 * @param status	HTTP status
+	 * @since 1.0
+	 */
+	public static void recordResponse(int status) {
+		RESPONSE_STATUS.computeIfAbsent(status, key -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Records the size of a rendered image.
+	 *
+	 * @param format	format of the image
+	 * @param bytes		size of the image
+	 * @since 1.0
+	 */
+	public static void recordOutput(DiagramFormat format, long bytes) {
+		OUTPUT_BYTES.computeIfAbsent(format, key -> new Histogram()).record(bytes);
+	}
+
+	/**
+	 * Gets the histogram of a stage.
+	 *
+	 * @param stage	the stage
+	 * @return durations of the stage in microseconds
+	 * @since 1.0
+	 */
+	public static Histogram getStage(Stage stage) {
+		return STAGES.get(stage);
+	}
+
+	/**
+	 * Gets a snapshot of the metrics.
+	 * <p>
+	 * Durations are reported in milliseconds with their count, mean, 50th,
+	 * 90th and 99th percentile and maximum; requests per second are averaged
+	 * since the host started.
+	 *
+	 * @return the metrics as JSON
+	 * @since 1.0
+	 */
+	public static JsonObject toJson() {
+		long uptimeMillis = Math.max(1, System.currentTimeMillis() - STARTED_AT);
+		long requests = STAGES.get(Stage.TOTAL).getCount();
+
+		JsonObject json = new JsonObject();
+		json.addProperty("uptimeSeconds", uptimeMillis / 1000);
+		json.addProperty("requests", requests);
+		json.addProperty("requestsPerSecond", round(requests * 1000.0 / uptimeMillis));
+
+		JsonObject stages = new JsonObject();
+		for (Stage stage : Stage.values()) {
+			Histogram histogram = STAGES.get(stage);
+			JsonObject summary = new JsonObject();
+			summary.addProperty("count", histogram.getCount());
+			summary.addProperty("meanMs", round(histogram.getMean() / 1000.0));
+			summary.addProperty("p50Ms", round(histogram.getPercentile(50) / 1000.0));
+			summary.addProperty("p90Ms", round(histogram.getPercentile(90) / 1000.0));
+			summary.addProperty("p99Ms", round(histogram.getPercentile(99) / 1000.0));
+			summary.addProperty("maxMs", round(histogram.getMax() / 1000.0));
+			stages.add(stage.getKey(), summary);
+		}
+		json.add("stages", stages);
+
+		JsonObject output = new JsonObject();
+		for (Map.Entry<DiagramFormat, Histogram> entry : new TreeMap<DiagramFormat, Histogram>(OUTPUT_BYTES).entrySet()) {
+			Histogram histogram = entry.getValue();
+			JsonObject summary = new JsonObject();
+			summary.addProperty("count", histogram.getCount());
+			summary.addProperty("totalBytes", histogram.getSum());
+			summary.addProperty("p50Bytes", histogram.getPercentile(50));
+			summary.addProperty("p99Bytes", histogram.getPercentile(99));
+			summary.addProperty("maxBytes", histogram.getMax());
+			output.add(entry.getKey().name().toLowerCase(Locale.ROOT), summary);
+		}
+		json.add("output", output);
+
+		json.add("upstreamStatus", countsToJson(UPSTREAM_STATUS));
+		json.add("responseStatus", countsToJson(RESPONSE_STATUS));
+
+		return json;
+	}
+
+	private static JsonObject countsToJson(Map<Integer, LongAdder> counts) {
+		JsonObject json = new JsonObject();
+		for (Map.Entry<Integer, LongAdder> entry : new TreeMap<Integer, LongAdder>(counts).entrySet()) {
+			json.addProperty(Integer.toString(entry.getKey()), entry.getValue().sum());
+		}
+
+		return json;
+	}
+
+	private static double toMillis(long nanos) {
+		return round(nanos / 1000000.0);
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
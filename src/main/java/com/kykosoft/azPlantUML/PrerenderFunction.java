@@ -0,0 +1,165 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonObject;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+import com.microsoft.azure.functions.annotation.TimerTrigger;
+
+/**
+ * Renders every diagram of a repository ahead of time, either on a schedule
+ * or when asked to, so readers are served from the image cache.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PrerenderFunction {
+
+	/** Name of the environment variable that holds the number of diagrams pre-rendered at once */
+	private static final String ENV_CONCURRENCY = "azuml_prerenderConcurrency";
+
+	/** Runs the jobs started over HTTP after the request has been answered */
+	private static final ExecutorService JOB_EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory("azuml-prerender-job-"));
+
+	/** Latest job of each repository, by repository id */
+	private static final ConcurrentHashMap<String, PrerenderJob> JOBS = new ConcurrentHashMap<String, PrerenderJob>();
+
+
+	/**
+	 * Starts pre-rendering a repository, or reports the progress of its
+	 * latest job.
+	 * <p>
+	 * Accessed at: /api/Prerender?code={function key}. A POST starts a job in
+	 * the background and answers 202, or 409 if one is already running; a GET
+	 * reports the progress of the latest job. The optional {@code repo} and
+	 * {@code project} parameters select the repository as for the DevOps
+	 * function.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response with the progress of the job as JSON
+	 * @since	1.0
+	 */
+	@FunctionName("Prerender")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.GET, HttpMethod.POST},
+				authLevel = AuthorizationLevel.FUNCTION)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+
+		DevOpsDiagram generator = TenantRegistry.getInstance().getGenerator(
+				request.getQueryParameters().get("project"),
+				request.getQueryParameters().get("repo"));
+		if (generator == null) {
+			return request.createResponseBuilder(HttpStatus.NOT_FOUND)
+					.body("No repository is configured for the requested 'project' and 'repo'")
+					.header("Content-Type", "text/plain")
+					.build();
+		}
+
+		PrerenderJob job = JOBS.get(generator.getRepositoryId());
+		HttpStatus status;
+		if (request.getHttpMethod() != HttpMethod.POST) {
+			if (job == null) {
+				return request.createResponseBuilder(HttpStatus.NOT_FOUND)
+						.body("The repository has not been pre-rendered since the host started")
+						.header("Content-Type", "text/plain")
+						.build();
+			}
+			status = HttpStatus.OK;
+		} else {
+			PrerenderJob started = start(generator);
+			if (started == null) {
+				job = JOBS.get(generator.getRepositoryId());
+				status = HttpStatus.CONFLICT;
+			} else {
+				job = started;
+				status = HttpStatus.ACCEPTED;
+				JOB_EXECUTOR.execute(() -> runJob(started, logger));
+			}
+		}
+
+		return request.createResponseBuilder(status)
+				.body(job.toJson().toString())
+				.header("Content-Type", "application/json")
+				.header("Cache-Control", "no-store")
+				.build();
+	}
+
+	/**
+	 * Pre-renders every configured repository, one after the other.
+	 * <p>
+	 * Runs every night at 02:00 UTC; repositories whose job is still running
+	 * are skipped.
+	 *
+	 * @param timerInfo	information about the timer schedule
+	 * @param context	Azure Function execution context
+	 * @since	1.0
+	 */
+	@FunctionName("PrerenderTimer")
+	public void runOnSchedule(
+			@TimerTrigger(name = "timer", schedule = "0 0 2 * * *") String timerInfo,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+		TenantRegistry registry = TenantRegistry.getInstance();
+
+		for (TenantRegistry.Tenant tenant : registry.getTenants()) {
+			DevOpsDiagram generator = registry.getGenerator(tenant);
+			PrerenderJob job = start(generator);
+			if (job == null) {
+				logger.info("Skipping " + tenant.getName() + "; it is being pre-rendered already");
+			} else {
+				runJob(job, logger);
+			}
+		}
+	}
+
+	/**
+	 * Creates a job for a repository unless one is running already.
+	 *
+	 * @param generator	generator of the repository
+	 * @return the new job, or null if a job of the repository is running
+	 * @since 1.0
+	 */
+	static PrerenderJob start(DevOpsDiagram generator) {
+		List<DiagramFormat> formats = PushFunction.prerenderFormats();
+		PrerenderJob job = new PrerenderJob(generator, formats, EnvironmentSettings.getInt(ENV_CONCURRENCY, 4));
+
+		PrerenderJob current = JOBS.compute(generator.getRepositoryId(),
+				(repository, existing) -> existing != null && existing.isRunning() ? existing : job);
+
+		return current == job ? job : null;
+	}
+
+	/**
+	 * Runs a job, logging its outcome.
+	 *
+	 * @param job		the job
+	 * @param logger	logging instance to use
+	 * @since 1.0
+	 */
+	private static void runJob(PrerenderJob job, Logger logger) {
+		JsonObject report = job.run(logger).toJson();
+		if (job.getState() == PrerenderJob.State.FAILED) {
+			logger.warning("Pre-render failed: " + report);
+		}
+	}
+}
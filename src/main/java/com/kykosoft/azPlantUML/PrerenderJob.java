@@ -0,0 +1,269 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Renders every diagram in a repository into the image cache, so the first
+ * reader of each diagram after a deployment or a cache wipe gets a cache
+ * hit.
+ * <p>
+ * The diagrams are listed with one recursive DevOps items request, then
+ * fetched and rendered with non-blocking requests. A semaphore bounds the
+ * number of diagrams in flight, which bounds the requests sent to DevOps and
+ * keeps the job from filling the {@link RenderScheduler} queue ahead of
+ * interactive requests. Progress is logged as the job runs and can be read
+ * with {@link #toJson()} at any time.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PrerenderJob {
+
+	/** Maximum number of failures kept for the report */
+	private static final int MAX_REPORTED_FAILURES = 50;
+
+	/** Number of diagrams between progress log entries */
+	private static final int PROGRESS_INTERVAL = 100;
+
+
+	/** State of a job */
+	public enum State {
+		/** Listing the diagrams of the repository */
+		LISTING,
+		/** Rendering the diagrams */
+		RENDERING,
+		/** Every diagram has been attempted */
+		COMPLETED,
+		/** The diagrams could not be listed, or the job was interrupted */
+		FAILED
+	}
+
+
+	/** Generator of the repository to render */
+	private final DevOpsDiagram _generator;
+
+	/** Formats rendered for every diagram */
+	private final List<DiagramFormat> _formats;
+
+	/** Maximum number of diagrams fetched and rendered at once */
+	private final int _concurrency;
+
+	/** Current state of the job */
+	private volatile State _state = State.LISTING;
+
+	/** Reason the job failed, if it did */
+	private volatile String _error;
+
+	/** Time (epoch millis) the job started */
+	private volatile long _startedAt;
+
+	/** Time (epoch millis) the job ended, or 0 while it runs */
+	private volatile long _endedAt;
+
+	/** Number of diagrams found in the repository */
+	private volatile int _total;
+
+	/** Number of diagrams rendered in every format */
+	private final AtomicInteger _rendered = new AtomicInteger();
+
+	/** Number of diagrams that could not be fetched or rendered */
+	private final AtomicInteger _failed = new AtomicInteger();
+
+	/** First failures, as "path: reason" */
+	private final List<String> _failures = new ArrayList<String>();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param generator		generator of the repository to render
+	 * @param formats		formats rendered for every diagram
+	 * @param concurrency	maximum number of diagrams fetched and rendered at once
+	 * @since 1.0
+	 */
+	public PrerenderJob(DevOpsDiagram generator, List<DiagramFormat> formats, int concurrency) {
+		_generator = generator;
+		_formats = formats;
+		_concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Lists and renders every diagram of the repository, returning when all
+	 * of them have been attempted.
+	 *
+	 * @param logger	logging instance to use
+	 * @return this job
+	 * @since 1.0
+	 */
+	public PrerenderJob run(Logger logger) {
+		_startedAt = System.currentTimeMillis();
+
+		List<String> paths = new ArrayList<String>();
+		try {
+			for (String path : _generator.listFiles("/", logger)) {
+				if (PushFunction.isRenderablePath(path)) {
+					paths.add(path);
+				}
+			}
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Unable to list the diagrams of " + _generator.getRepositoryId(), ex);
+			return fail(ex.toString());
+		}
+
+		_total = paths.size();
+		_state = State.RENDERING;
+		logger.info("Pre-rendering " + _total + " diagrams of " + _generator.getRepositoryId());
+
+		Semaphore inFlight = new Semaphore(_concurrency);
+		try {
+			for (String path : paths) {
+				inFlight.acquire();
+				prerender(path, logger).whenComplete((ignored, ex) -> {
+					if (ex == null) {
+						_rendered.incrementAndGet();
+					} else {
+						recordFailure(path, ex, logger);
+					}
+					inFlight.release();
+					logProgress(logger);
+				});
+			}
+
+			// wait for the diagrams still in flight
+			inFlight.acquire(_concurrency);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return fail("Interrupted");
+		}
+
+		_endedAt = System.currentTimeMillis();
+		_state = State.COMPLETED;
+		logger.info("Pre-rendered " + _generator.getRepositoryId() + ": " + toJson());
+
+		return this;
+	}
+
+	/**
+	 * Fetches one diagram and renders it in every format.
+	 *
+	 * @param path		path to the source file in DevOps repo.
+	 * @param logger	logging instance to use
+	 * @return completes when the diagram has been rendered
+	 * @since 1.0
+	 */
+	private CompletableFuture<Void> prerender(String path, Logger logger) {
+		return _generator.fetchSourceAsync(path, null, logger).thenCompose(source -> {
+			CompletableFuture<Void> rendered = CompletableFuture.completedFuture(null);
+			for (DiagramFormat format : _formats) {
+				rendered = rendered.thenCompose(ignored -> _generator.renderAsync(source, format, logger).thenAccept(image -> { }));
+			}
+			return rendered;
+		});
+	}
+
+	private void recordFailure(String path, Throwable ex, Logger logger) {
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		_failed.incrementAndGet();
+		logger.log(Level.WARNING, "Unable to pre-render " + path + ": " + cause);
+
+		synchronized (_failures) {
+			if (_failures.size() < MAX_REPORTED_FAILURES) {
+				_failures.add(path + ": " + cause.getMessage());
+			}
+		}
+	}
+
+	private void logProgress(Logger logger) {
+		int done = _rendered.get() + _failed.get();
+		if (done % PROGRESS_INTERVAL == 0) {
+			logger.info(String.format(
+					"Pre-rendered %1$d of %2$d diagrams of %3$s (%4$d failed, %5$.1f per second)",
+					done, _total, _generator.getRepositoryId(), _failed.get(), getDiagramsPerSecond()));
+		}
+	}
+
+	private PrerenderJob fail(String error) {
+		_error = error;
+		_endedAt = System.currentTimeMillis();
+		_state = State.FAILED;
+
+		return this;
+	}
+
+	/** @return current state of the job */
+	public State getState() {
+		return _state;
+	}
+
+	/** @return true while the job lists or renders diagrams */
+	public boolean isRunning() {
+		return _state == State.LISTING || _state == State.RENDERING;
+	}
+
+	/** @return number of diagrams found in the repository */
+	public int getTotal() {
+		return _total;
+	}
+
+	/** @return number of diagrams rendered in every format */
+	public int getRendered() {
+		return _rendered.get();
+	}
+
+	/** @return number of diagrams that could not be fetched or rendered */
+	public int getFailed() {
+		return _failed.get();
+	}
+
+	/** @return diagrams attempted per second since the job started */
+	public double getDiagramsPerSecond() {
+		long end = _endedAt == 0 ? System.currentTimeMillis() : _endedAt;
+		long elapsed = Math.max(1, end - _startedAt);
+
+		return (_rendered.get() + _failed.get()) * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Gets the progress of the job.
+	 *
+	 * @return the progress as JSON
+	 * @since 1.0
+	 */
+	public JsonObject toJson() {
+		long end = _endedAt == 0 ? System.currentTimeMillis() : _endedAt;
+
+		JsonObject json = new JsonObject();
+		json.addProperty("repository", _generator.getRepositoryId());
+		json.addProperty("state", _state.name());
+		json.addProperty("total", _total);
+		json.addProperty("rendered", _rendered.get());
+		json.addProperty("failed", _failed.get());
+		json.addProperty("seconds", _startedAt == 0 ? 0 : (end - _startedAt) / 1000.0);
+		json.addProperty("diagramsPerSecond", Math.round(getDiagramsPerSecond() * 100) / 100.0);
+		if (_error != null) {
+			json.addProperty("error", _error);
+		}
+
+		JsonArray failures = new JsonArray();
+		synchronized (_failures) {
+			for (String failure : _failures) {
+				failures.add(failure);
+			}
+		}
+		json.add("failures", failures);
+
+		return json;
+	}
+}
@@ -0,0 +1,188 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The parts of an Azure DevOps {@code git.push} service hook payload needed to
+ * find the files changed by a push.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PushEvent {
+
+	/** Event type of a git push service hook */
+	public static final String EVENT_TYPE = "git.push";
+
+	/** Object id git uses for the missing side of a created or deleted ref */
+	private static final String NULL_OBJECT_ID = "0000000000000000000000000000000000000000";
+
+
+	/**
+	 * A branch or tag moved by the push.
+	 *
+	 * @since 1.0
+	 */
+	public static class RefUpdate {
+
+		/** Full name of the ref, e.g. {@code refs/heads/main} */
+		private final String _name;
+
+		/** Commit the ref pointed to before the push */
+		private final String _oldObjectId;
+
+		/** Commit the ref points to after the push */
+		private final String _newObjectId;
+
+		RefUpdate(String name, String oldObjectId, String newObjectId) {
+			_name = name;
+			_oldObjectId = oldObjectId;
+			_newObjectId = newObjectId;
+		}
+
+		/** @return full name of the ref, e.g. {@code refs/heads/main} */
+		public String getName() {
+			return _name;
+		}
+
+		/** @return commit the ref pointed to before the push */
+		public String getOldObjectId() {
+			return _oldObjectId;
+		}
+
+		/** @return commit the ref points to after the push */
+		public String getNewObjectId() {
+			return _newObjectId;
+		}
+
+		/** @return true if the push moved an existing ref to another commit */
+		public boolean isUpdate() {
+			return !NULL_OBJECT_ID.equals(_oldObjectId) && !NULL_OBJECT_ID.equals(_newObjectId);
+		}
+	}
+
+
+	/** GUID/UUID of the repository that was pushed to */
+	private final String _repositoryId;
+
+	/** Name of the repository that was pushed to */
+	private final String _repositoryName;
+
+	/** Name of the project of the repository */
+	private final String _projectName;
+
+	/** Full name of the repository's default branch */
+	private final String _defaultBranch;
+
+	/** Refs moved by the push */
+	private final List<RefUpdate> _refUpdates;
+
+
+	PushEvent(String repositoryId, String repositoryName, String projectName, String defaultBranch, List<RefUpdate> refUpdates) {
+		_repositoryId = repositoryId;
+		_repositoryName = repositoryName;
+		_projectName = projectName;
+		_defaultBranch = defaultBranch;
+		_refUpdates = Collections.unmodifiableList(refUpdates);
+	}
+
+	/**
+	 * Parses a service hook payload.
+	 *
+	 * @param json	request body sent by the service hook
+	 * @return the push event
+	 * @throws IllegalArgumentException	if the payload is not a git push event
+	 * @throws com.google.gson.JsonParseException	if the payload is not valid JSON
+	 * @since 1.0
+	 */
+	public static PushEvent parse(String json) {
+		JsonObject payload = JsonParser.parseString(json).getAsJsonObject();
+
+		String eventType = getString(payload, "eventType");
+		if (!EVENT_TYPE.equals(eventType)) {
+			throw new IllegalArgumentException("Unsupported event type '" + eventType + "'");
+		}
+
+		JsonObject resource = payload.getAsJsonObject("resource");
+		if (resource == null) {
+			throw new IllegalArgumentException("The payload has no resource");
+		}
+
+		JsonObject repository = resource.getAsJsonObject("repository");
+		String repositoryId = repository == null ? null : getString(repository, "id");
+		String repositoryName = repository == null ? null : getString(repository, "name");
+		String defaultBranch = repository == null ? null : getString(repository, "defaultBranch");
+		JsonObject project = repository == null ? null : repository.getAsJsonObject("project");
+		String projectName = project == null ? null : getString(project, "name");
+
+		List<RefUpdate> refUpdates = new ArrayList<RefUpdate>();
+		JsonArray updates = resource.getAsJsonArray("refUpdates");
+		if (updates != null) {
+			for (JsonElement element : updates) {
+				JsonObject update = element.getAsJsonObject();
+				refUpdates.add(new RefUpdate(
+						getString(update, "name"),
+						getString(update, "oldObjectId"),
+						getString(update, "newObjectId")));
+			}
+		}
+
+		return new PushEvent(repositoryId, repositoryName, projectName, defaultBranch, refUpdates);
+	}
+
+	/** @return GUID/UUID of the repository that was pushed to */
+	public String getRepositoryId() {
+		return _repositoryId;
+	}
+
+	/** @return name of the repository that was pushed to */
+	public String getRepositoryName() {
+		return _repositoryName;
+	}
+
+	/** @return name of the project of the repository */
+	public String getProjectName() {
+		return _projectName;
+	}
+
+	/** @return full name of the repository's default branch */
+	public String getDefaultBranch() {
+		return _defaultBranch;
+	}
+
+	/** @return refs moved by the push */
+	public List<RefUpdate> getRefUpdates() {
+		return _refUpdates;
+	}
+
+	/**
+	 * Gets the update of the default branch, the branch diagrams are read from
+	 * unless they are pinned to a commit.
+	 *
+	 * @return the update or null if the push did not move the default branch
+	 * @since 1.0
+	 */
+	public RefUpdate getDefaultBranchUpdate() {
+		for (RefUpdate update : _refUpdates) {
+			if (update.getName() != null && update.getName().equals(_defaultBranch) && update.isUpdate()) {
+				return update;
+			}
+		}
+
+		return null;
+	}
+
+	private static String getString(JsonObject object, String name) {
+		JsonElement value = object.get(name);
+
+		return (value == null || value.isJsonNull()) ? null : value.getAsString();
+	}
+}
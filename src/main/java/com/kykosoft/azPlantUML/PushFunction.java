@@ -0,0 +1,250 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Receives Azure DevOps {@code git.push} service hooks, forgets the cached
+ * source of every diagram changed by the push and renders the new versions in
+ * the background, so the first view after a commit is a cache hit.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class PushFunction {
+
+	/** Name of the environment variable that holds the formats rendered ahead of time */
+	private static final String ENV_PRERENDER_FORMATS = "azuml_prerenderFormats";
+
+	/** Name of the environment variable that holds the number of background pre-render threads */
+	private static final String ENV_PRERENDER_THREADS = "azuml_prerenderThreads";
+
+	/** File extensions treated as diagram sources */
+	private static final String[] DIAGRAM_EXTENSIONS = { ".puml", ".plantuml", ".pu", ".iuml" };
+
+	/** File extension of files that are only ever included, never rendered on their own */
+	private static final String INCLUDE_EXTENSION = ".iuml";
+
+	/**
+	 * Fetches and renders changed diagrams after the hook has been answered.
+	 * The renders themselves still go through the shared {@link RenderScheduler}.
+	 */
+	private static final ExecutorService PRERENDER_EXECUTOR = Executors.newFixedThreadPool(
+			EnvironmentSettings.getInt(ENV_PRERENDER_THREADS, 2), new DaemonThreadFactory("azuml-prerender-"));
+
+
+	/**
+	 * Handles a push service hook.
+	 * <p>
+	 * Accessed at: /api/DevOpsPush?code={function key}, configured in DevOps as
+	 * a "Code pushed" web hook. Pushes to repositories that are not configured
+	 * and to other branches than the default branch are ignored.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response
+	 * @since	1.0
+	 */
+	@FunctionName("DevOpsPush")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.POST},
+				authLevel = AuthorizationLevel.FUNCTION)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+
+		PushEvent event;
+		try {
+			event = PushEvent.parse(request.getBody().orElse(""));
+		} catch (JsonParseException | IllegalStateException | IllegalArgumentException | ClassCastException ex) {
+			logger.log(Level.WARNING, "Ignoring an invalid push payload: " + ex.getMessage());
+			return textResponse(request, HttpStatus.BAD_REQUEST, "Body must be a git.push service hook payload");
+		}
+
+		DevOpsDiagram generator = findGenerator(TenantRegistry.getInstance(), event);
+
+		PushEvent.RefUpdate update = event.getDefaultBranchUpdate();
+		if (generator == null || update == null) {
+			logger.info("Ignoring a push that did not update the default branch of a configured repository");
+			return textResponse(request, HttpStatus.OK, "Nothing to do");
+		}
+
+		List<DevOpsDiagram.Change> changes;
+		try {
+			changes = generator.getChanges(update.getOldObjectId(), update.getNewObjectId(), logger);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Unable to retrieve the changes of the push", ex);
+			return textResponse(request, HttpStatus.INTERNAL_SERVER_ERROR, ex.toString());
+		}
+
+		List<DiagramFormat> formats = prerenderFormats();
+		JsonArray invalidated = new JsonArray();
+		Set<String> targets = new LinkedHashSet<String>();
+
+		for (DevOpsDiagram.Change change : changes) {
+			for (String path : change.getPaths()) {
+				if (isDiagramPath(path)) {
+					generator.invalidateSource(path);
+					invalidated.add(path);
+					// diagrams that include a changed file render differently too
+					targets.addAll(generator.getDependents(path));
+				}
+			}
+
+			String path = change.getPath();
+			if (!change.isDelete() && isRenderablePath(path)) {
+				targets.add(path);
+			}
+		}
+
+		JsonArray prerendering = new JsonArray();
+		for (String path : targets) {
+			prerendering.add(path);
+			PRERENDER_EXECUTOR.execute(() -> prerender(generator, path, formats, logger));
+		}
+
+		logger.info("Push " + update.getNewObjectId() + " invalidated " + invalidated.size()
+				+ " diagrams and queued " + prerendering.size() + " for rendering");
+
+		JsonObject summary = new JsonObject();
+		summary.addProperty("commit", update.getNewObjectId());
+		summary.add("invalidated", invalidated);
+		summary.add("prerendering", prerendering);
+
+		return request.createResponseBuilder(HttpStatus.ACCEPTED)
+				.body(summary.toString())
+				.header("Content-Type", "application/json")
+				.build();
+	}
+
+	/**
+	 * Finds the generator of the repository that was pushed to. Tenants may
+	 * be configured with either the repository id or its name.
+	 *
+	 * @param registry	configured tenants
+	 * @param event		the push
+	 * @return the repository's generator or null if it is not configured
+	 * @since 1.0
+	 */
+	static DevOpsDiagram findGenerator(TenantRegistry registry, PushEvent event) {
+		TenantRegistry.Tenant tenant = null;
+		if (event.getRepositoryId() != null) {
+			tenant = registry.find(null, event.getRepositoryId());
+		}
+		if (tenant == null && event.getRepositoryName() != null) {
+			tenant = registry.find(event.getProjectName(), event.getRepositoryName());
+		}
+
+		return tenant == null ? null : registry.getGenerator(tenant);
+	}
+
+	/**
+	 * Fetches the current version of a diagram and renders it into the image
+	 * cache in every pre-render format.
+	 *
+	 * @param generator	diagram generator to use
+	 * @param path		path to the source file in DevOps repo.
+	 * @param formats	formats to render
+	 * @param logger	logging instance to use
+	 * @since 1.0
+	 */
+	private static void prerender(DevOpsDiagram generator, String path, List<DiagramFormat> formats, Logger logger) {
+		try {
+			String source = generator.fetchSource(path, logger);
+			for (DiagramFormat format : formats) {
+				generator.render(source, format, logger);
+			}
+			logger.fine("Pre-rendered " + path);
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Unable to pre-render " + path + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Determines whether a repository path is a diagram source.
+	 *
+	 * @param path	repository path
+	 * @return true if the path has a diagram file extension
+	 * @since 1.0
+	 */
+	static boolean isDiagramPath(String path) {
+		if (path == null) {
+			return false;
+		}
+
+		String lower = path.toLowerCase(Locale.ROOT);
+		for (String extension : DIAGRAM_EXTENSIONS) {
+			if (lower.endsWith(extension)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Determines whether a repository path is a diagram that is rendered on
+	 * its own, rather than a file that is only ever included.
+	 *
+	 * @param path	repository path
+	 * @return true if the path has a diagram file extension other than the include extension
+	 * @since 1.0
+	 */
+	static boolean isRenderablePath(String path) {
+		return isDiagramPath(path) && !path.toLowerCase(Locale.ROOT).endsWith(INCLUDE_EXTENSION);
+	}
+
+	/**
+	 * Reads the formats to pre-render from {@code azuml_prerenderFormats}, a
+	 * comma separated list (default {@code png}).
+	 *
+	 * @return formats to pre-render
+	 * @since 1.0
+	 */
+	static List<DiagramFormat> prerenderFormats() {
+		List<DiagramFormat> formats = new ArrayList<DiagramFormat>();
+		for (String name : EnvironmentSettings.getString(ENV_PRERENDER_FORMATS, "png").split(",")) {
+			if (!name.trim().isEmpty()) {
+				formats.add(DiagramFormat.fromParameter(name));
+			}
+		}
+
+		return formats;
+	}
+
+	private static HttpResponseMessage textResponse(
+			HttpRequestMessage<Optional<String>> request,
+			HttpStatus status,
+			String message) {
+		return request
+				.createResponseBuilder(status)
+				.body(message)
+				.header("Content-Type", "text/plain")
+				.build();
+	}
+}
@@ -0,0 +1,27 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a render is stopped because the diagram exceeded one of the
+ * render limits. The source is remembered as bad for a short while so repeat
+ * requests are answered with an error image without rendering again.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderAbortedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message	description of the limit that was exceeded
+	 * @since 1.0
+	 */
+	public RenderAbortedException(String message) {
+		super(message);
+	}
+}
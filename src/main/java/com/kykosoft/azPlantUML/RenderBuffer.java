@@ -0,0 +1,122 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable in-memory sink for rendered images.
+ * <p>
+ * Unlike a {@link java.io.ByteArrayOutputStream} created per render, buffers
+ * are taken from a small pool and keep their capacity between renders, so a
+ * render does not repeatedly grow (and copy) its buffer and the only per-render
+ * allocation is the exact-size copy returned by {@link #toByteArray()}. That
+ * copy is what gets cached and handed to the HTTP response.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderBuffer extends OutputStream {
+
+	/** Capacity of a newly created buffer; large enough for most diagrams */
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	/** Buffers that grew beyond this capacity are dropped instead of being pooled */
+	private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+	/** Idle buffers available for reuse */
+	private static final ArrayBlockingQueue<RenderBuffer> POOL = new ArrayBlockingQueue<RenderBuffer>(
+			Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+
+	/** Backing storage */
+	private byte[] _buffer;
+
+	/** Number of valid bytes in the backing storage */
+	private int _count = 0;
+
+
+	private RenderBuffer(int capacity) {
+		_buffer = new byte[capacity];
+	}
+
+	/**
+	 * Takes an empty buffer from the pool, or creates one if the pool is empty.
+	 *
+	 * @return an empty buffer that must be given back with {@link #release()}
+	 * @since 1.0
+	 */
+	public static RenderBuffer acquire() {
+		RenderBuffer buffer = POOL.poll();
+
+		return (buffer != null) ? buffer : new RenderBuffer(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Empties the buffer and returns it to the pool. The buffer must not be
+	 * used afterwards.
+	 *
+	 * @since 1.0
+	 */
+	public void release() {
+		_count = 0;
+		if (_buffer.length <= MAX_RETAINED_CAPACITY) {
+			POOL.offer(this);
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(_count + 1);
+		_buffer[_count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(_count + len);
+		System.arraycopy(b, off, _buffer, _count, len);
+		_count += len;
+	}
+
+	/**
+	 * @return number of bytes written
+	 * @since 1.0
+	 */
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * Copies the written bytes into an exactly sized array.
+	 *
+	 * @return the written bytes
+	 * @since 1.0
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(_buffer, _count);
+	}
+
+	/**
+	 * Writes the buffered bytes to another stream without an intermediate copy.
+	 *
+	 * @param out	destination stream
+	 * @throws IOException	if the destination cannot be written
+	 * @since 1.0
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(_buffer, 0, _count);
+	}
+
+	@Override
+	public void close() {
+		// nothing to release; buffers go back to the pool through release()
+	}
+
+	private void ensureCapacity(int required) {
+		if (required > _buffer.length) {
+			_buffer = Arrays.copyOf(_buffer, Math.max(required, _buffer.length * 2));
+		}
+	}
+}
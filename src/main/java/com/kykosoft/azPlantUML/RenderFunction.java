@@ -0,0 +1,252 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.BindingName;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+import net.sourceforge.plantuml.code.TranscoderUtil;
+
+/**
+ * This function renders diagram source sent with the request, without
+ * reading it from a repository.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderFunction {
+
+	/** Name of the environment variable that holds the maximum length of a diagram source (in characters) */
+	private static final String ENV_MAX_SOURCE_LENGTH = "azuml_renderMaxSourceLength";
+
+	/** Maximum length of a diagram source; 100,000 characters unless configured */
+	private static final int MAX_SOURCE_LENGTH = EnvironmentSettings.getInt(ENV_MAX_SOURCE_LENGTH, 100000);
+
+	/** Matches an include that PlantUML would read from the local file system */
+	private static final Pattern LOCAL_INCLUDE = Pattern.compile("^\\s*!(include\\w*|import)\\s+(?!<)", Pattern.MULTILINE);
+
+
+	/**
+	 * Renders diagram source from the request body or the URL.
+	 * <p>
+	 * Accessed at: /api/Render with the diagram source as the POST body, or
+	 * at /api/Render/{encoded} with the source deflated and encoded the way
+	 * the public PlantUML server encodes it, e.g.
+	 * /api/Render/SyfFKj2rKt3CoKnELR1Io4ZDoSa70000 for "Bob -&gt; Alice :
+	 * hello". The optional {@code format} parameter selects {@code png}
+	 * (default), {@code svg} or {@code svgz} output and the optional
+	 * {@code page} parameter one page (starting at 1) of a source with several
+	 * {@code @startuml} blocks or {@code newpage} sections. A source without an
+	 * {@code @start} line is wrapped in {@code @startuml}/{@code @enduml}.
+	 * <p>
+	 * Images are cached by a hash of the source, so both forms of the same
+	 * diagram, and the same diagram in a repository, share one cached image.
+	 * The URL of an encoded diagram identifies its content, so the image is
+	 * served as immutable. Includes of local files are rejected, as there is
+	 * no repository to resolve them against.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param encoded	encoded diagram source from the URL, or null
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response
+	 * @since	1.0
+	 */
+	@FunctionName("Render")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.GET, HttpMethod.POST},
+				route = "Render/{encoded?}",
+				authLevel = AuthorizationLevel.ANONYMOUS)
+				HttpRequestMessage<Optional<String>> request,
+			@BindingName("encoded") String encoded,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+		PipelineMetrics.Trace trace = PipelineMetrics.startTrace("Render");
+
+		HttpResponseMessage response = render(request, encoded, trace, logger);
+		trace.finish(response.getStatusCode(), logger);
+
+		return response;
+	}
+
+	/**
+	 * Validates the request and renders the image.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param encoded	encoded diagram source from the URL, or null
+	 * @param trace		receives the timings of the request
+	 * @param logger	logging instance of the invocation
+	 * @return	HTTP Response
+	 * @since	1.0
+	 */
+	private HttpResponseMessage render(
+			HttpRequestMessage<Optional<String>> request,
+			String encoded,
+			PipelineMetrics.Trace trace,
+			Logger logger) {
+		DiagramFormat format;
+		try {
+			format = DiagramFormat.fromParameter(request.getQueryParameters().get("format"));
+		} catch (IllegalArgumentException ex) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, ex.getMessage());
+		}
+
+		int page;
+		try {
+			page = DevOpsFunction.parsePage(request.getQueryParameters().get("page"));
+		} catch (IllegalArgumentException ex) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, ex.getMessage());
+		}
+
+		boolean fromUrl = encoded != null && !encoded.isEmpty();
+		String source;
+		if (fromUrl) {
+			if (encoded.length() > MAX_SOURCE_LENGTH) {
+				return textResponse(request, HttpStatus.URI_TOO_LONG, "The encoded diagram is too long");
+			}
+			try {
+				source = decodeSource(encoded);
+			} catch (IOException | RuntimeException ex) {
+				logger.log(Level.WARNING, "Unable to decode diagram '" + encoded + "': " + ex);
+				return textResponse(request, HttpStatus.BAD_REQUEST, "The URL does not hold an encoded diagram");
+			}
+		} else {
+			source = request.getBody().orElse("");
+		}
+
+		if (source.trim().isEmpty()) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, "Diagram source is required in the request body or the URL");
+		}
+		if (source.length() > MAX_SOURCE_LENGTH) {
+			return textResponse(request, HttpStatus.PAYLOAD_TOO_LARGE, "Diagram source is limited to " + MAX_SOURCE_LENGTH + " characters");
+		}
+		if (LOCAL_INCLUDE.matcher(source).find()) {
+			return textResponse(request, HttpStatus.BAD_REQUEST, "Includes of local files are not supported; use the DevOps function for diagrams in a repository");
+		}
+
+		source = wrapSource(source);
+		String etag = HttpCaching.entityTag(DiagramCache.computeKey(source, format.name(), page));
+		String cacheControl = fromUrl ? HttpCaching.immutableCacheControl() : "no-store";
+		trace.put("source", fromUrl ? "url" : "body")
+			.put("format", format.name().toLowerCase(Locale.ROOT))
+			.mark(PipelineMetrics.Stage.CONFIG);
+
+		if (fromUrl && HttpCaching.isNotModified(request.getHeaders(), etag, -1)) {
+			HttpResponseMessage response = request.createResponseBuilder(HttpStatus.NOT_MODIFIED)
+				.header("ETag", etag)
+				.header("Cache-Control", cacheControl)
+				.build();
+			trace.mark(PipelineMetrics.Stage.RESPONSE);
+
+			return response;
+		}
+
+		try {
+			byte[] image = CachedRenderer.getShared().render(source, format, page, logger);
+			trace.put("bytes", image.length).mark(PipelineMetrics.Stage.RENDER);
+
+			HttpResponseMessage.Builder builder = request.createResponseBuilder(HttpStatus.OK)
+				.body(image)
+				.header("Content-Type", format.getContentType())
+				.header("ETag", etag)
+				.header("Cache-Control", cacheControl);
+			if (format.isCompressed()) {
+				builder.header("Content-Encoding", "gzip");
+			}
+			HttpResponseMessage response = builder.build();
+			trace.mark(PipelineMetrics.Stage.RESPONSE);
+
+			return response;
+		} catch (PageNotFoundException ex) {
+			return textResponse(request, HttpStatus.NOT_FOUND, ex.getMessage());
+		} catch (RenderRejectedException ex) {
+			logger.log(Level.WARNING, "Diagram rejected: " + ex.getMessage());
+			return request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+				.body(ex.getMessage())
+				.header("Content-Type", "text/plain")
+				.header("Retry-After", Integer.toString(ex.getRetryAfterSeconds()))
+				.build();
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Unable to render the diagram", ex);
+			return textResponse(request, HttpStatus.INTERNAL_SERVER_ERROR, ex.toString());
+		}
+	}
+
+	/**
+	 * Decodes diagram source encoded the way the PlantUML server encodes it
+	 * in URLs: deflated and written with PlantUML's URL-safe base 64 alphabet.
+	 *
+	 * @param encoded	encoded diagram source
+	 * @return the diagram source
+	 * @throws IOException	if the text is not an encoded diagram
+	 * @since 1.0
+	 */
+	static String decodeSource(String encoded) throws IOException {
+		return TranscoderUtil.getDefaultTranscoder().decode(encoded);
+	}
+
+	/**
+	 * Encodes diagram source the way the PlantUML server encodes it in URLs.
+	 *
+	 * @param source	diagram source
+	 * @return the encoded diagram source
+	 * @throws IOException	if the source could not be encoded
+	 * @since 1.0
+	 */
+	static String encodeSource(String source) throws IOException {
+		return TranscoderUtil.getDefaultTranscoder().encode(source);
+	}
+
+	/**
+	 * Wraps diagram source that has no start line in
+	 * {@code @startuml}/{@code @enduml}, as the PlantUML server does, and
+	 * trims it to end with a single line break. Decoded URLs carry no
+	 * trailing line break, so both forms of a diagram get the same cache key.
+	 *
+	 * @param source	diagram source
+	 * @return source that PlantUML can render
+	 * @since 1.0
+	 */
+	static String wrapSource(String source) {
+		String trimmed = source.trim();
+
+		return trimmed.startsWith("@start")
+				? trimmed + "\n"
+				: "@startuml\n" + trimmed + "\n@enduml\n";
+	}
+
+	/**
+	 * Builds a plain text response.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param status	status of the response
+	 * @param message	body of the response
+	 * @return the response
+	 * @since 1.0
+	 */
+	private static HttpResponseMessage textResponse(
+			HttpRequestMessage<Optional<String>> request,
+			HttpStatus status,
+			String message) {
+		return request
+				.createResponseBuilder(status)
+				.body(message)
+				.header("Content-Type", "text/plain")
+				.build();
+	}
+}
@@ -0,0 +1,23 @@
+package com.kykosoft.azPlantUML;
+
+/**
+ * Thrown when a render produces more output than allowed.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderLimitException extends RenderAbortedException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message	description of the limit that was exceeded
+	 * @since 1.0
+	 */
+	public RenderLimitException(String message) {
+		super(message);
+	}
+}
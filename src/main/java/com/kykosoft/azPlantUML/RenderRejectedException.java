@@ -0,0 +1,40 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a render cannot be accepted because the render scheduler is
+ * saturated. Callers should answer with {@code 503 Service Unavailable} and a
+ * {@code Retry-After} header instead of retrying immediately.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of seconds the client should wait before retrying */
+	private final int _retryAfterSeconds;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message			reason the render was rejected
+	 * @param retryAfterSeconds	number of seconds the client should wait before retrying
+	 * @since 1.0
+	 */
+	public RenderRejectedException(String message, int retryAfterSeconds) {
+		super(message);
+		_retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return number of seconds the client should wait before retrying
+	 * @since 1.0
+	 */
+	public int getRetryAfterSeconds() {
+		return _retryAfterSeconds;
+	}
+}
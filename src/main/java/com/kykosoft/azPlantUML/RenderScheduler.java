@@ -0,0 +1,333 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs diagram renders on a dedicated, bounded worker pool.
+ * <p>
+ * At most the configured number of renders run at once and a bounded number
+ * wait in the queue. When the queue is full, or a render waited in it longer
+ * than the queue deadline, the render is rejected with a
+ * {@link RenderRejectedException} so the caller can answer quickly with
+ * {@code 503 Service Unavailable} instead of piling up work the host cannot
+ * finish.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderScheduler {
+
+	/** Name of the environment variable that holds the number of concurrent renders */
+	private static final String ENV_CONCURRENCY = "azuml_renderConcurrency";
+
+	/** Name of the environment variable that holds the number of renders allowed to wait */
+	private static final String ENV_QUEUE_SIZE = "azuml_renderQueueSize";
+
+	/** Name of the environment variable that holds how long a render may wait in the queue */
+	private static final String ENV_QUEUE_TIMEOUT = "azuml_renderQueueTimeoutMs";
+
+	/** Name of the environment variable that holds how long a render may run */
+	private static final String ENV_RENDER_TIMEOUT = "azuml_renderTimeoutMs";
+
+	/** Name of the environment variable that holds the Retry-After value sent when saturated */
+	private static final String ENV_RETRY_AFTER = "azuml_renderRetryAfterSeconds";
+
+
+	/**
+	 * A render executed by the scheduler.
+	 *
+	 * @param <V>	type of the result
+	 * @since 1.0
+	 */
+	@FunctionalInterface
+	public interface Task<V> {
+		/**
+		 * Performs the render.
+		 *
+		 * @return the rendered result
+		 * @throws IOException	if the render fails
+		 */
+		V call() throws IOException;
+	}
+
+
+	/** Scheduler shared by every renderer in this host process */
+	private static volatile RenderScheduler sharedInstance = null;
+
+	/** Enforces the queue and render deadlines */
+	private static final ScheduledThreadPoolExecutor DEADLINE_TIMER = new ScheduledThreadPoolExecutor(
+			1, new DaemonThreadFactory("azuml-render-deadline-"));
+
+	static {
+		// most renders finish in time; don't keep their cancelled deadlines queued
+		DEADLINE_TIMER.setRemoveOnCancelPolicy(true);
+	}
+
+	/** Worker threads */
+	private final ThreadPoolExecutor _executor;
+
+	/** Maximum time, in milliseconds, a render may wait in the queue */
+	private final long _queueTimeoutMillis;
+
+	/** Maximum time, in milliseconds, a render may run once a worker has picked it up */
+	private final long _renderTimeoutMillis;
+
+	/** Retry-After value, in seconds, given to rejected callers */
+	private final int _retryAfterSeconds;
+
+	/** Number of renders submitted */
+	private final AtomicLong _submitted = new AtomicLong();
+
+	/** Number of renders rejected because the queue was full */
+	private final AtomicLong _rejected = new AtomicLong();
+
+	/** Number of renders dropped because they waited too long in the queue */
+	private final AtomicLong _expired = new AtomicLong();
+
+	/** Number of renders that exceeded the render deadline */
+	private final AtomicLong _timedOut = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param concurrency			maximum number of renders that run at once
+	 * @param queueSize				maximum number of renders waiting to run
+	 * @param queueTimeoutMillis	maximum time a render may wait in the queue
+	 * @param renderTimeoutMillis	maximum time a render may run
+	 * @param retryAfterSeconds		Retry-After value given to rejected callers
+	 * @since 1.0
+	 */
+	public RenderScheduler(
+			int concurrency,
+			int queueSize,
+			long queueTimeoutMillis,
+			long renderTimeoutMillis,
+			int retryAfterSeconds) {
+		_queueTimeoutMillis = queueTimeoutMillis;
+		_renderTimeoutMillis = renderTimeoutMillis;
+		_retryAfterSeconds = retryAfterSeconds;
+
+		_executor = new ThreadPoolExecutor(
+				concurrency,
+				concurrency,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new DaemonThreadFactory("azuml-render-"),
+				new ThreadPoolExecutor.AbortPolicy());
+		_executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Gets the scheduler shared by every renderer in this host process,
+	 * creating it from the environment settings on first use.
+	 * <p>
+	 * {@code azuml_renderConcurrency} defaults to the number of cores,
+	 * {@code azuml_renderQueueSize} to 64, {@code azuml_renderQueueTimeoutMs}
+	 * to 10 seconds, {@code azuml_renderTimeoutMs} to 30 seconds and
+	 * {@code azuml_renderRetryAfterSeconds} to 5.
+	 *
+	 * @return the shared scheduler
+	 * @since 1.0
+	 */
+	public static RenderScheduler getInstance() {
+		RenderScheduler scheduler = sharedInstance;
+		if (scheduler == null) {
+			synchronized (RenderScheduler.class) {
+				scheduler = sharedInstance;
+				if (scheduler == null) {
+					scheduler = new RenderScheduler(
+							EnvironmentSettings.getInt(ENV_CONCURRENCY, Runtime.getRuntime().availableProcessors()),
+							EnvironmentSettings.getInt(ENV_QUEUE_SIZE, 64),
+							EnvironmentSettings.getLong(ENV_QUEUE_TIMEOUT, 10000),
+							EnvironmentSettings.getLong(ENV_RENDER_TIMEOUT, 30000),
+							EnvironmentSettings.getInt(ENV_RETRY_AFTER, 5));
+					sharedInstance = scheduler;
+				}
+			}
+		}
+
+		return scheduler;
+	}
+
+	/**
+	 * Runs a render on the worker pool and waits for its result.
+	 *
+	 * @param task	the render to run
+	 * @return the rendered result
+	 * @throws RenderRejectedException	if the scheduler is saturated
+	 * @throws RenderTimeoutException	if the render exceeded its deadline
+	 * @throws IOException				if the render failed
+	 * @since 1.0
+	 */
+	public <V> V execute(Task<V> task) throws IOException {
+		CompletableFuture<V> result = executeAsync(task);
+
+		try {
+			// both deadlines complete the result, so this wait is bounded
+			return result.get();
+		} catch (InterruptedException ex) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a render");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Runs a render on the worker pool without blocking the caller.
+	 * <p>
+	 * A render that is not picked up by a worker within the queue deadline is
+	 * dropped and rejected. The render deadline starts when a worker picks
+	 * the render up, so time spent in the queue does not extend it; a render
+	 * that exceeds it is interrupted. Cancelling the returned future
+	 * interrupts the render as well.
+	 *
+	 * @param task	the render to run
+	 * @return completes with the rendered result, or with a
+	 * 			{@link RenderRejectedException}, {@link RenderTimeoutException}
+	 * 			or the failure of the render
+	 * @since 1.0
+	 */
+	public <V> CompletableFuture<V> executeAsync(Task<V> task) {
+		_submitted.incrementAndGet();
+		final long queuedAt = System.nanoTime();
+		final CompletableFuture<V> result = new CompletableFuture<V>();
+		// set by whichever comes first: a worker starting the render or the queue deadline
+		final AtomicBoolean claimed = new AtomicBoolean();
+		final AtomicReference<Future<?>> submitted = new AtomicReference<Future<?>>();
+
+		Future<?> future;
+		try {
+			future = _executor.submit(() -> {
+				if (!claimed.compareAndSet(false, true) || result.isDone()) {
+					return;
+				}
+
+				PipelineMetrics.record(PipelineMetrics.Stage.QUEUE, System.nanoTime() - queuedAt);
+
+				// set by whichever comes first: the render finishing or the render deadline
+				AtomicBoolean finished = new AtomicBoolean();
+				ScheduledFuture<?> renderDeadline = DEADLINE_TIMER.schedule(() -> {
+					if (finished.compareAndSet(false, true)) {
+						_timedOut.incrementAndGet();
+						result.completeExceptionally(
+								new RenderTimeoutException("The render did not complete within " + _renderTimeoutMillis + " ms"));
+						cancel(submitted.get());
+					}
+				}, _renderTimeoutMillis, TimeUnit.MILLISECONDS);
+
+				try {
+					V value = task.call();
+					if (finished.compareAndSet(false, true)) {
+						result.complete(value);
+					}
+				} catch (IOException | RuntimeException | Error ex) {
+					if (finished.compareAndSet(false, true)) {
+						result.completeExceptionally(ex);
+					}
+				} finally {
+					renderDeadline.cancel(false);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			_rejected.incrementAndGet();
+			result.completeExceptionally(new RenderRejectedException("The render queue is full", _retryAfterSeconds));
+			return result;
+		}
+		submitted.set(future);
+
+		ScheduledFuture<?> queueDeadline = DEADLINE_TIMER.schedule(() -> {
+			if (claimed.compareAndSet(false, true)) {
+				// nobody waits for it beyond this deadline, so don't burn CPU on it later
+				_expired.incrementAndGet();
+				future.cancel(false);
+				// frees its queue slot now rather than when a worker reaches it
+				_executor.purge();
+				result.completeExceptionally(new RenderRejectedException(
+						"Render waited " + _queueTimeoutMillis + " ms in the queue", _retryAfterSeconds));
+			}
+		}, _queueTimeoutMillis, TimeUnit.MILLISECONDS);
+
+		result.whenComplete((value, error) -> {
+			queueDeadline.cancel(false);
+			if (result.isCancelled()) {
+				cancel(future);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Interrupts a render that is still running.
+	 *
+	 * @param future	future of the render on the worker pool, or null
+	 * @since 1.0
+	 */
+	private static void cancel(Future<?> future) {
+		if (future != null) {
+			future.cancel(true);
+		}
+	}
+
+	/** @return number of renders submitted */
+	public long getSubmitted() {
+		return _submitted.get();
+	}
+
+	/** @return number of renders rejected because the queue was full */
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	/** @return number of renders dropped after waiting too long in the queue */
+	public long getExpired() {
+		return _expired.get();
+	}
+
+	/** @return number of renders that exceeded the render deadline */
+	public long getTimedOut() {
+		return _timedOut.get();
+	}
+
+	/** @return number of renders currently running */
+	public int getActive() {
+		return _executor.getActiveCount();
+	}
+
+	/** @return number of renders waiting in the queue */
+	public int getQueued() {
+		return _executor.getQueue().size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"RenderScheduler[active=%1$d, queued=%2$d, submitted=%3$d, rejected=%4$d, expired=%5$d, timedOut=%6$d]",
+				getActive(), getQueued(), getSubmitted(), getRejected(), getExpired(), getTimedOut());
+	}
+}
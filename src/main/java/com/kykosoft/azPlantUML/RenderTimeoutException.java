@@ -0,0 +1,23 @@
+package com.kykosoft.azPlantUML;
+
+/**
+ * Thrown when a render does not complete within its deadline.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RenderTimeoutException extends RenderAbortedException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message	description of the deadline that was exceeded
+	 * @since 1.0
+	 */
+	public RenderTimeoutException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,132 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed request to DevOps is retried.
+ * <p>
+ * Retries back off exponentially with random jitter, so that many requests
+ * failing at the same moment do not retry in lock step. A {@code Retry-After}
+ * header sent with a throttling response is honored; when it asks for a
+ * longer wait than the policy allows, the request is not retried at all.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class RetryPolicy {
+
+	/** Name of the environment variable that holds the number of retries after the first attempt */
+	private static final String ENV_MAX_RETRIES = "azuml_httpMaxRetries";
+
+	/** Name of the environment variable that holds the delay before the first retry in milliseconds */
+	private static final String ENV_BASE_DELAY = "azuml_httpRetryBaseMs";
+
+	/** Name of the environment variable that holds the longest delay between attempts in milliseconds */
+	private static final String ENV_MAX_DELAY = "azuml_httpRetryMaxMs";
+
+
+	/** Number of retries after the first attempt */
+	private final int _maxRetries;
+
+	/** Delay before the first retry, in milliseconds; doubled for every further retry */
+	private final long _baseDelayMillis;
+
+	/** Longest delay between attempts, in milliseconds */
+	private final long _maxDelayMillis;
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxRetries		number of retries after the first attempt
+	 * @param baseDelayMillis	delay before the first retry
+	 * @param maxDelayMillis	longest delay between attempts
+	 * @since 1.0
+	 */
+	public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+		_maxRetries = maxRetries;
+		_baseDelayMillis = baseDelayMillis;
+		_maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Creates a policy configured from the environment.
+	 * <p>
+	 * {@code azuml_httpMaxRetries} sets the number of retries (default 2),
+	 * {@code azuml_httpRetryBaseMs} the first delay (default 250) and
+	 * {@code azuml_httpRetryMaxMs} the longest delay (default 8000).
+	 *
+	 * @return a new policy
+	 * @since 1.0
+	 */
+	public static RetryPolicy fromEnvironment() {
+		return new RetryPolicy(
+				EnvironmentSettings.getInt(ENV_MAX_RETRIES, 2),
+				EnvironmentSettings.getLong(ENV_BASE_DELAY, 250),
+				EnvironmentSettings.getLong(ENV_MAX_DELAY, 8000));
+	}
+
+	/**
+	 * Determines whether a response status indicates a transient failure.
+	 *
+	 * @param statusCode	HTTP status of the response
+	 * @return true for timeouts, throttling and server errors
+	 * @since 1.0
+	 */
+	public static boolean isRetryableStatus(int statusCode) {
+		return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+	}
+
+	/**
+	 * Gets how long to wait before the next attempt.
+	 *
+	 * @param attempt		number of attempts made so far, starting at 1
+	 * @param retryAfter	{@code Retry-After} header of the failed response or null
+	 * @return delay in milliseconds, or -1 if the request must not be retried
+	 * @since 1.0
+	 */
+	public long getDelayMillis(int attempt, String retryAfter) {
+		if (attempt > _maxRetries) {
+			return -1;
+		}
+
+		if (retryAfter != null) {
+			long requested = parseRetryAfter(retryAfter);
+			if (requested >= 0) {
+				// retrying sooner than asked only prolongs the throttling
+				return requested <= _maxDelayMillis ? requested : -1;
+			}
+		}
+
+		// exponential backoff with "equal jitter": half fixed, half random
+		long backoff = Math.min(_maxDelayMillis, _baseDelayMillis << Math.min(attempt - 1, 20));
+		long half = backoff / 2;
+
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+
+	/**
+	 * Parses a {@code Retry-After} header, which holds either a number of
+	 * seconds or an HTTP date.
+	 *
+	 * @param value	header value
+	 * @return requested delay in milliseconds or -1 if the value is invalid
+	 * @since 1.0
+	 */
+	static long parseRetryAfter(String value) {
+		String trimmed = value.trim();
+		try {
+			long seconds = Long.parseLong(trimmed);
+			return seconds < 0 ? -1 : seconds * 1000;
+		} catch (NumberFormatException ex) {
+			long date = HttpCaching.parseHttpDate(trimmed);
+			return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+		}
+	}
+
+	/** @return number of retries after the first attempt */
+	public int getMaxRetries() {
+		return _maxRetries;
+	}
+}
@@ -0,0 +1,192 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent calls for the same key into a single execution.
+ * <p>
+ * The first caller for a key runs the work; callers that arrive while it is
+ * still running wait for and share its result (or its exception) instead of
+ * repeating the work.
+ *
+ * @param <K>	type of the key identifying the work
+ * @param <V>	type of the result
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class SingleFlight<K, V> {
+
+	/**
+	 * Work executed by the leading caller.
+	 *
+	 * @param <V>	type of the result
+	 * @since 1.0
+	 */
+	@FunctionalInterface
+	public interface Call<V> {
+		/**
+		 * Performs the work.
+		 *
+		 * @return the result shared with every waiting caller
+		 * @throws IOException	if the work fails
+		 */
+		V call() throws IOException;
+	}
+
+	/**
+	 * Asynchronous work started by the leading caller.
+	 *
+	 * @param <V>	type of the result
+	 * @since 1.0
+	 */
+	@FunctionalInterface
+	public interface AsyncCall<V> {
+		/**
+		 * Starts the work.
+		 *
+		 * @return completes with the result shared with every waiting caller
+		 */
+		CompletableFuture<V> call();
+	}
+
+
+	/** Work currently running, by key */
+	private final ConcurrentHashMap<K, CompletableFuture<V>> _inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	/** Number of times the work was actually executed */
+	private final AtomicLong _executions = new AtomicLong();
+
+	/** Number of callers that shared another caller's execution */
+	private final AtomicLong _coalesced = new AtomicLong();
+
+
+	/**
+	 * Runs the work for a key, or waits for the execution already in progress.
+	 *
+	 * @param key	identifies the work
+	 * @param call	the work to run if no execution is in progress
+	 * @return the result of the shared execution
+	 * @throws IOException	if the shared execution failed
+	 * @since 1.0
+	 */
+	public V execute(K key, Call<V> call) throws IOException {
+		CompletableFuture<V> flight = new CompletableFuture<V>();
+		CompletableFuture<V> existing = _inFlight.putIfAbsent(key, flight);
+
+		if (existing != null) {
+			_coalesced.incrementAndGet();
+			return await(existing);
+		}
+
+		_executions.incrementAndGet();
+		try {
+			V result = call.call();
+			flight.complete(result);
+			return result;
+		} catch (IOException | RuntimeException | Error ex) {
+			flight.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			_inFlight.remove(key, flight);
+		}
+	}
+
+	/**
+	 * Starts the work for a key, or joins the execution already in progress,
+	 * without blocking the caller. Synchronous and asynchronous callers of the
+	 * same key share one execution.
+	 *
+	 * @param key	identifies the work
+	 * @param call	starts the work if no execution is in progress
+	 * @return completes with the result of the shared execution
+	 * @since 1.0
+	 */
+	public CompletableFuture<V> executeAsync(K key, AsyncCall<V> call) {
+		CompletableFuture<V> flight = new CompletableFuture<V>();
+		CompletableFuture<V> existing = _inFlight.putIfAbsent(key, flight);
+
+		if (existing != null) {
+			_coalesced.incrementAndGet();
+			return existing;
+		}
+
+		_executions.incrementAndGet();
+		CompletableFuture<V> work;
+		try {
+			work = call.call();
+		} catch (RuntimeException | Error ex) {
+			work = new CompletableFuture<V>();
+			work.completeExceptionally(ex);
+		}
+
+		work.whenComplete((result, error) -> {
+			_inFlight.remove(key, flight);
+			if (error == null) {
+				flight.complete(result);
+			} else {
+				// synchronous waiters expect the original exception
+				flight.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+						? error.getCause()
+						: error);
+			}
+		});
+
+		return flight;
+	}
+
+	/**
+	 * Waits for another caller's execution to finish.
+	 *
+	 * @param flight	the execution in progress
+	 * @return the shared result
+	 * @throws IOException	if the shared execution failed or the wait was interrupted
+	 * @since 1.0
+	 */
+	private V await(CompletableFuture<V> flight) throws IOException {
+		try {
+			return flight.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a shared request");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/** @return number of times work was actually executed */
+	public long getExecutions() {
+		return _executions.get();
+	}
+
+	/** @return number of callers that shared another caller's execution */
+	public long getCoalesced() {
+		return _coalesced.get();
+	}
+
+	/** @return number of executions currently in progress */
+	public int getInFlight() {
+		return _inFlight.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"SingleFlight[executions=%1$d, coalesced=%2$d, inFlight=%3$d]",
+				getExecutions(), getCoalesced(), getInFlight());
+	}
+}
@@ -0,0 +1,513 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the most recently downloaded source text of each repository file
+ * together with the ETag (git object id) it was served with.
+ * <p>
+ * The ETag is sent back as {@code If-None-Match} when the file is requested
+ * again, so an unchanged file costs a {@code 304 Not Modified} instead of a
+ * full download. Entries younger than the configured maximum age are served
+ * without contacting DevOps at all.
+ * <p>
+ * Once an entry has expired it can still be served for a while: straight away
+ * while a background request revalidates it (stale-while-revalidate), or when
+ * DevOps fails or is throttling (stale-if-error).
+ * <p>
+ * Files read at a specific commit never change. They are stored as immutable
+ * entries that are never revalidated and, when a cache directory is
+ * configured, are also written to disk so they survive host restarts. The
+ * directory is limited in size like the rendered image directory; the least
+ * recently used files are deleted.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class SourceCache {
+
+	/** Name of the environment variable that holds the maximum number of cached files */
+	private static final String ENV_MAX_ENTRIES = "azuml_sourceCacheEntries";
+
+	/** Name of the environment variable that holds how long a cached file is used without revalidation */
+	private static final String ENV_MAX_AGE = "azuml_sourceMaxAgeSeconds";
+
+	/** Name of the environment variable that holds how long an expired file is served while it is revalidated in the background */
+	private static final String ENV_STALE_WHILE_REVALIDATE = "azuml_sourceStaleWhileRevalidateSeconds";
+
+	/** Name of the environment variable that holds how long an expired file is served when DevOps fails */
+	private static final String ENV_STALE_IF_ERROR = "azuml_sourceStaleIfErrorSeconds";
+
+	/** Name of the environment variable that holds the cache directory; shared with {@link DiagramCache} */
+	private static final String ENV_DIRECTORY = "azuml_cacheDir";
+
+	/** Name of the environment variable that holds the size limit (in bytes) of the immutable files on disk */
+	private static final String ENV_DIRECTORY_MAX_BYTES = "azuml_sourceCacheDirMaxBytes";
+
+	/** Default maximum number of cached files */
+	private static final int DEFAULT_MAX_ENTRIES = 2000;
+
+	/** Default size limit of the immutable files on disk; 256 MB */
+	private static final long DEFAULT_DIRECTORY_MAX_BYTES = 256L * 1024 * 1024;
+
+	/** Sub-directory of the cache directory holding immutable source files */
+	private static final String SOURCE_DIRECTORY = "sources";
+
+	/** File extension used for immutable entries on disk */
+	private static final String FILE_EXTENSION = ".puml";
+
+
+	/**
+	 * A cached source file.
+	 *
+	 * @since 1.0
+	 */
+	public static class Entry {
+
+		/** ETag the content was served with */
+		private final String _etag;
+
+		/** Source text of the file */
+		private final String _content;
+
+		/** Time (epoch millis) the content was downloaded */
+		private final long _modifiedAt;
+
+		/** Time (epoch millis) the content was last confirmed current */
+		private volatile long _validatedAt;
+
+		/** Whether the content can never change, e.g. a file read at a commit */
+		private final boolean _immutable;
+
+		Entry(String etag, String content, long validatedAt, boolean immutable) {
+			_etag = etag;
+			_content = content;
+			_modifiedAt = validatedAt;
+			_validatedAt = validatedAt;
+			_immutable = immutable;
+		}
+
+		/** @return ETag the content was served with */
+		public String getEtag() {
+			return _etag;
+		}
+
+		/** @return source text of the file */
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 * @return time (epoch millis) the content was downloaded; the closest
+		 * known approximation of when the file last changed
+		 */
+		public long getModifiedAt() {
+			return _modifiedAt;
+		}
+
+		/** @return time (epoch millis) the content was last confirmed current */
+		public long getValidatedAt() {
+			return _validatedAt;
+		}
+
+		/** @return true if the content can never change */
+		public boolean isImmutable() {
+			return _immutable;
+		}
+	}
+
+
+	/** Maximum number of cached files */
+	private final int _maxEntries;
+
+	/** How long, in milliseconds, an entry is used without revalidation */
+	private final long _maxAgeMillis;
+
+	/** How long, in milliseconds, an expired entry is served while it is revalidated in the background */
+	private final long _staleWhileRevalidateMillis;
+
+	/** How long, in milliseconds, an expired entry is served when DevOps fails */
+	private final long _staleIfErrorMillis;
+
+	/** Immutable entries on disk, by hash of their key; null when they are only kept in memory */
+	private final FileDiagramStore _directory;
+
+	/** Cached files in least-recently-used order */
+	private final LinkedHashMap<String, Entry> _entries;
+
+	/** Number of lookups served without contacting DevOps */
+	private final AtomicLong _freshHits = new AtomicLong();
+
+	/** Number of revalidations answered with 304 Not Modified */
+	private final AtomicLong _notModified = new AtomicLong();
+
+	/** Number of full downloads */
+	private final AtomicLong _downloads = new AtomicLong();
+
+	/** Number of expired entries served while DevOps was failing */
+	private final AtomicLong _staleOnError = new AtomicLong();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxEntries		maximum number of cached files
+	 * @param maxAgeMillis		how long an entry is used without revalidation
+	 * @since 1.0
+	 */
+	public SourceCache(final int maxEntries, long maxAgeMillis) {
+		this(maxEntries, maxAgeMillis, null);
+	}
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxEntries		maximum number of cached files
+	 * @param maxAgeMillis		how long an entry is used without revalidation
+	 * @param directory			directory for immutable entries or null to keep them in memory only
+	 * @since 1.0
+	 */
+	public SourceCache(final int maxEntries, long maxAgeMillis, Path directory) {
+		this(maxEntries, maxAgeMillis, 0, 0, directory);
+	}
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxEntries					maximum number of cached files
+	 * @param maxAgeMillis					how long an entry is used without revalidation
+	 * @param staleWhileRevalidateMillis	how long after that an entry is served while it is revalidated in the background
+	 * @param staleIfErrorMillis			how long after its last validation an entry is served when DevOps fails
+	 * @param directory						directory for immutable entries or null to keep them in memory only
+	 * @since 1.0
+	 */
+	public SourceCache(
+			final int maxEntries,
+			long maxAgeMillis,
+			long staleWhileRevalidateMillis,
+			long staleIfErrorMillis,
+			Path directory) {
+		this(maxEntries, maxAgeMillis, staleWhileRevalidateMillis, staleIfErrorMillis, directory, 0);
+	}
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param maxEntries					maximum number of cached files
+	 * @param maxAgeMillis					how long an entry is used without revalidation
+	 * @param staleWhileRevalidateMillis	how long after that an entry is served while it is revalidated in the background
+	 * @param staleIfErrorMillis			how long after its last validation an entry is served when DevOps fails
+	 * @param directory						directory for immutable entries or null to keep them in memory only
+	 * @param directoryMaxBytes				maximum number of bytes of immutable entries kept in the directory; 0 for no limit
+	 * @since 1.0
+	 */
+	public SourceCache(
+			final int maxEntries,
+			long maxAgeMillis,
+			long staleWhileRevalidateMillis,
+			long staleIfErrorMillis,
+			Path directory,
+			long directoryMaxBytes) {
+		_maxEntries = maxEntries;
+		_maxAgeMillis = maxAgeMillis;
+		_staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+		_staleIfErrorMillis = staleIfErrorMillis;
+		_directory = directory == null ? null : new FileDiagramStore(directory, directoryMaxBytes, FILE_EXTENSION);
+		_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Creates a cache configured from the environment.
+	 * <p>
+	 * {@code azuml_sourceCacheEntries} sets the number of files kept (default
+	 * 2000) and {@code azuml_sourceMaxAgeSeconds} how long a file is served
+	 * without revalidation (default 0, always revalidate).
+	 * {@code azuml_sourceStaleWhileRevalidateSeconds} (default 0) and
+	 * {@code azuml_sourceStaleIfErrorSeconds} (default 86400) set how long an
+	 * expired file may still be served. Immutable entries are kept under
+	 * {@code azuml_cacheDir} when it is set, limited to
+	 * {@code azuml_sourceCacheDirMaxBytes} (default 256 MB).
+	 *
+	 * @return a new cache instance
+	 * @since 1.0
+	 */
+	public static SourceCache fromEnvironment() {
+		String directory = EnvironmentSettings.getString(ENV_DIRECTORY, null);
+
+		return new SourceCache(
+				getDefaultMaxEntries(),
+				EnvironmentSettings.getLong(ENV_MAX_AGE, 0) * 1000,
+				EnvironmentSettings.getLong(ENV_STALE_WHILE_REVALIDATE, 0) * 1000,
+				EnvironmentSettings.getLong(ENV_STALE_IF_ERROR, 86400) * 1000,
+				directory == null ? null : Paths.get(directory, SOURCE_DIRECTORY),
+				getDirectoryMaxBytes());
+	}
+
+	/**
+	 * Creates the cache of one tenant's partition. The maximum and stale ages
+	 * come from the environment; immutable entries are kept in their own sub-directory
+	 * of {@code azuml_cacheDir}, because equal paths in different
+	 * repositories are different files. Each sub-directory is limited to
+	 * {@code azuml_sourceCacheDirMaxBytes} on its own.
+	 *
+	 * @param partition		name of the partition, e.g. the tenant name, or
+	 * 						null for the directory shared by all partitions
+	 * @param maxEntries	maximum number of cached files of the partition
+	 * @return a new cache instance
+	 * @since 1.0
+	 */
+	public static SourceCache fromEnvironment(String partition, int maxEntries) {
+		String directory = EnvironmentSettings.getString(ENV_DIRECTORY, null);
+
+		return new SourceCache(
+				maxEntries,
+				EnvironmentSettings.getLong(ENV_MAX_AGE, 0) * 1000,
+				EnvironmentSettings.getLong(ENV_STALE_WHILE_REVALIDATE, 0) * 1000,
+				EnvironmentSettings.getLong(ENV_STALE_IF_ERROR, 86400) * 1000,
+				directory == null ? null
+						: partition == null ? Paths.get(directory, SOURCE_DIRECTORY)
+						: Paths.get(directory, SOURCE_DIRECTORY, partition),
+				getDirectoryMaxBytes());
+	}
+
+	/**
+	 * Gets the configured maximum number of cached files
+	 * ({@code azuml_sourceCacheEntries}, default 2000).
+	 *
+	 * @return maximum number of cached files
+	 * @since 1.0
+	 */
+	public static int getDefaultMaxEntries() {
+		return EnvironmentSettings.getInt(ENV_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Gets the configured size limit of the immutable files on disk
+	 * ({@code azuml_sourceCacheDirMaxBytes}, default 256 MB).
+	 *
+	 * @return size limit in bytes
+	 * @since 1.0
+	 */
+	private static long getDirectoryMaxBytes() {
+		return EnvironmentSettings.getLong(ENV_DIRECTORY_MAX_BYTES, DEFAULT_DIRECTORY_MAX_BYTES);
+	}
+
+	/**
+	 * Gets the cached entry for a file.
+	 *
+	 * @param key	identifies the file
+	 * @return the cached entry or null
+	 * @since 1.0
+	 */
+	public synchronized Entry get(String key) {
+		return _entries.get(key);
+	}
+
+	/**
+	 * Determines whether an entry can be used without revalidation.
+	 *
+	 * @param entry	a cached entry
+	 * @return true if the entry is immutable or younger than the maximum age
+	 * @since 1.0
+	 */
+	public boolean isFresh(Entry entry) {
+		boolean fresh = entry != null
+				&& (entry.isImmutable() || System.currentTimeMillis() - entry.getValidatedAt() < _maxAgeMillis);
+		if (fresh) {
+			_freshHits.incrementAndGet();
+		}
+
+		return fresh;
+	}
+
+	/**
+	 * Determines whether an expired entry may be served straight away while
+	 * it is revalidated in the background. A hit counts as a lookup served
+	 * without waiting for DevOps.
+	 *
+	 * @param entry	a cached entry that is not fresh
+	 * @return true if the entry expired less than the stale-while-revalidate period ago
+	 * @since 1.0
+	 */
+	public boolean isStaleWhileRevalidate(Entry entry) {
+		boolean usable = entry != null
+				&& System.currentTimeMillis() - entry.getValidatedAt() < _maxAgeMillis + _staleWhileRevalidateMillis;
+		if (usable) {
+			_freshHits.incrementAndGet();
+		}
+
+		return usable;
+	}
+
+	/**
+	 * Determines whether an entry may be served because DevOps could not be
+	 * reached or answered with an error.
+	 *
+	 * @param entry	the cached entry or null
+	 * @return true if the entry was last validated less than the stale-if-error period ago
+	 * @since 1.0
+	 */
+	public boolean isUsableOnError(Entry entry) {
+		boolean usable = entry != null
+				&& (entry.isImmutable() || System.currentTimeMillis() - entry.getValidatedAt() < _staleIfErrorMillis);
+		if (usable) {
+			_staleOnError.incrementAndGet();
+		}
+
+		return usable;
+	}
+
+	/**
+	 * Records that DevOps confirmed a cached entry is still current.
+	 *
+	 * @param entry	the revalidated entry
+	 * @since 1.0
+	 */
+	public void markNotModified(Entry entry) {
+		entry._validatedAt = System.currentTimeMillis();
+		_notModified.incrementAndGet();
+	}
+
+	/**
+	 * Stores newly downloaded content.
+	 *
+	 * @param key		identifies the file
+	 * @param etag		ETag the content was served with; entries without one are not cached
+	 * @param content	source text of the file
+	 * @since 1.0
+	 */
+	public void put(String key, String etag, String content) {
+		_downloads.incrementAndGet();
+		if (etag == null || content == null) {
+			return;
+		}
+
+		synchronized (this) {
+			_entries.put(key, new Entry(etag, content, System.currentTimeMillis(), false));
+		}
+	}
+
+	/**
+	 * Gets an immutable entry, loading it from disk if it is no longer held in
+	 * memory. A hit counts as a lookup served without contacting DevOps.
+	 *
+	 * @param key		identifies the file and commit
+	 * @param logger	logging instance to use
+	 * @return the cached entry or null
+	 * @since 1.0
+	 */
+	public Entry getImmutable(String key, Logger logger) {
+		Entry entry = get(key);
+		if (entry != null && entry.isImmutable()) {
+			_freshHits.incrementAndGet();
+			return entry;
+		}
+
+		if (_directory != null) {
+			String file = DiagramCache.hash(key);
+			try {
+				byte[] stored = _directory.get(file);
+				if (stored != null) {
+					entry = new Entry(null, new String(stored, StandardCharsets.UTF_8), _directory.getWrittenAt(file), true);
+					synchronized (this) {
+						_entries.put(key, entry);
+					}
+					_freshHits.incrementAndGet();
+
+					return entry;
+				}
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Unable to read cached source " + key, ex);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stores content that can never change, writing it through to disk when a
+	 * directory is configured.
+	 *
+	 * @param key		identifies the file and commit
+	 * @param content	source text of the file
+	 * @param logger	logging instance to use
+	 * @since 1.0
+	 */
+	public void putImmutable(String key, String content, Logger logger) {
+		_downloads.incrementAndGet();
+		if (content == null) {
+			return;
+		}
+
+		synchronized (this) {
+			_entries.put(key, new Entry(null, content, System.currentTimeMillis(), true));
+		}
+
+		if (_directory != null) {
+			try {
+				// written to a temporary file first, which is removed again if the write fails
+				_directory.put(DiagramCache.hash(key), content.getBytes(StandardCharsets.UTF_8));
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Unable to write cached source " + key, ex);
+			}
+		}
+	}
+
+	/**
+	 * Removes a file from the cache.
+	 *
+	 * @param key	identifies the file
+	 * @since 1.0
+	 */
+	public synchronized void invalidate(String key) {
+		_entries.remove(key);
+	}
+
+	/** @return number of lookups served without contacting DevOps */
+	public long getFreshHits() {
+		return _freshHits.get();
+	}
+
+	/** @return number of revalidations answered with 304 Not Modified */
+	public long getNotModified() {
+		return _notModified.get();
+	}
+
+	/** @return number of full downloads */
+	public long getDownloads() {
+		return _downloads.get();
+	}
+
+	/** @return number of expired entries served while DevOps was failing */
+	public long getStaleOnError() {
+		return _staleOnError.get();
+	}
+
+	@Override
+	public String toString() {
+		int size;
+		synchronized (this) {
+			size = _entries.size();
+		}
+
+		return String.format(
+				"SourceCache[freshHits=%1$d, notModified=%2$d, downloads=%3$d, staleOnError=%4$d, entries=%5$d]",
+				getFreshHits(), getNotModified(), getDownloads(), getStaleOnError(), size);
+	}
+}
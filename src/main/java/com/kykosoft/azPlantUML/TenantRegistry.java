@@ -0,0 +1,411 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Maps the {@code project} and {@code repo} request parameters to the DevOps
+ * repositories (tenants) this function app serves.
+ * <p>
+ * Tenants are read from the {@code azuml_tenants} setting, a JSON array such
+ * as:
+ * <pre>
+ * [ { "name": "docs", "organization": "contoso", "project": "Docs",
+ *     "repository": "architecture", "patSetting": "azuml_pat_docs",
+ *     "maxConnections": 10, "cacheMaxBytes": 16777216, "sourceCacheEntries": 500 } ]
+ * </pre>
+ * The PAT is read from the application setting named by {@code patSetting}
+ * (so it can be a Key Vault reference) or given inline as {@code pat}. A
+ * repository configured with the single-repository variables
+ * ({@code azuml_devopsOrg} etc.) is registered as the tenant {@code default}
+ * ahead of them.
+ * <p>
+ * Every tenant gets its own {@link DevOpsDiagram} with its own connection
+ * pool, rendered image cache and source cache, each with its own limit, so a
+ * busy repository cannot exhaust another repository's connections or evict
+ * its diagrams.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class TenantRegistry {
+
+	/** Name of the environment variable that holds the JSON list of tenants */
+	private static final String ENV_TENANTS = "azuml_tenants";
+
+	/** Name of the tenant configured with the single-repository environment variables */
+	public static final String DEFAULT_TENANT = "default";
+
+	/** Default maximum number of pooled connections of a tenant */
+	private static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+	/** Format string for error messages about the tenant list */
+	private static final String TENANT_ERROR_FORMAT = "Invalid '" + ENV_TENANTS + "' setting: %1$s";
+
+
+	/**
+	 * A DevOps repository served by this function app, with its quotas.
+	 *
+	 * @since 1.0
+	 */
+	public static class Tenant {
+
+		/** Unique name of the tenant */
+		private final String _name;
+
+		/** Connection settings of the repository */
+		private final DevOpsConfig _config;
+
+		/** Maximum number of pooled connections; 0 to use the process-wide pool */
+		private final int _maxConnections;
+
+		/** Size limit of the in-memory image cache, in bytes */
+		private final long _cacheMaxBytes;
+
+		/** Maximum number of cached source files */
+		private final int _sourceCacheEntries;
+
+		/**
+		 * Initializes a new instance.
+		 *
+		 * @param name					unique name of the tenant
+		 * @param config				connection settings of the repository
+		 * @param maxConnections		maximum number of pooled connections; 0 to use the process-wide pool
+		 * @param cacheMaxBytes			size limit of the in-memory image cache, in bytes
+		 * @param sourceCacheEntries	maximum number of cached source files
+		 * @since 1.0
+		 */
+		public Tenant(String name, DevOpsConfig config, int maxConnections, long cacheMaxBytes, int sourceCacheEntries) {
+			_name = name;
+			_config = config;
+			_maxConnections = maxConnections;
+			_cacheMaxBytes = cacheMaxBytes;
+			_sourceCacheEntries = sourceCacheEntries;
+		}
+
+		/** @return unique name of the tenant */
+		public String getName() {
+			return _name;
+		}
+
+		/** @return connection settings of the repository */
+		public DevOpsConfig getConfig() {
+			return _config;
+		}
+
+		/** @return maximum number of pooled connections; 0 when the process-wide pool is used */
+		public int getMaxConnections() {
+			return _maxConnections;
+		}
+
+		/** @return size limit of the in-memory image cache, in bytes */
+		public long getCacheMaxBytes() {
+			return _cacheMaxBytes;
+		}
+
+		/** @return maximum number of cached source files */
+		public int getSourceCacheEntries() {
+			return _sourceCacheEntries;
+		}
+
+		/**
+		 * Determines whether request parameters select this tenant.
+		 *
+		 * @param project		project name or null to match any project
+		 * @param repository	tenant name, repository name or id, or null to match any repository
+		 * @return true if the tenant matches
+		 * @since 1.0
+		 */
+		public boolean matches(String project, String repository) {
+			return (project == null || project.equalsIgnoreCase(_config.getProject()))
+					&& (repository == null
+						|| repository.equalsIgnoreCase(_name)
+						|| repository.equalsIgnoreCase(_config.getRepositoryId()));
+		}
+	}
+
+
+	/** Instance shared by all functions in this host process */
+	private static volatile TenantRegistry sharedInstance = null;
+
+
+	/** Registered tenants; the first one is the default */
+	private final List<Tenant> _tenants;
+
+	/** Diagram generators created so far, by tenant name */
+	private final ConcurrentHashMap<String, DevOpsDiagram> _generators = new ConcurrentHashMap<String, DevOpsDiagram>();
+
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param tenants	tenants to register; the first one is the default
+	 * @throws IllegalArgumentException	if two tenants have the same name
+	 * @since 1.0
+	 */
+	public TenantRegistry(List<Tenant> tenants) {
+		Set<String> names = new HashSet<String>();
+		for (Tenant tenant : tenants) {
+			if (!names.add(tenant.getName().toLowerCase(Locale.ROOT))) {
+				throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "duplicate tenant '" + tenant.getName() + "'"));
+			}
+		}
+
+		_tenants = Collections.unmodifiableList(new ArrayList<Tenant>(tenants));
+	}
+
+	/**
+	 * Reads the tenants from the environment.
+	 *
+	 * @return a new registry
+	 * @throws IllegalArgumentException		if {@code azuml_tenants} is invalid
+	 * @throws ExceptionInInitializerError	if the single-repository variables are incomplete
+	 * @since 1.0
+	 */
+	public static TenantRegistry fromEnvironment() {
+		List<Tenant> tenants = new ArrayList<Tenant>();
+
+		if (DevOpsConfig.isConfiguredInEnvironment()) {
+			// the process-wide connection pool and cache settings, as before tenants existed
+			tenants.add(new Tenant(
+					DEFAULT_TENANT,
+					DevOpsConfig.fromEnvironment(),
+					0,
+					DiagramCache.getDefaultMaxBytes(),
+					SourceCache.getDefaultMaxEntries()));
+		}
+
+		String json = EnvironmentSettings.getString(ENV_TENANTS, null);
+		if (json != null) {
+			tenants.addAll(parseTenants(json, System::getenv));
+		}
+
+		return new TenantRegistry(tenants);
+	}
+
+	/**
+	 * Parses a JSON list of tenants.
+	 *
+	 * @param json			JSON array of tenant objects
+	 * @param environment	looks up the application setting named by {@code patSetting}
+	 * @return the tenants
+	 * @throws IllegalArgumentException	if the list or one of its tenants is invalid
+	 * @since 1.0
+	 */
+	static List<Tenant> parseTenants(String json, Function<String, String> environment) {
+		JsonArray array;
+		try {
+			array = JsonParser.parseString(json).getAsJsonArray();
+		} catch (JsonParseException | IllegalStateException ex) {
+			throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "expected a JSON array of tenants"), ex);
+		}
+
+		List<Tenant> tenants = new ArrayList<Tenant>();
+		for (JsonElement element : array) {
+			if (!element.isJsonObject()) {
+				throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "every tenant must be an object"));
+			}
+			JsonObject tenant = element.getAsJsonObject();
+
+			String repository = requireString(tenant, "repository");
+			String name = getString(tenant, "name", repository);
+
+			String pat = getString(tenant, "pat", null);
+			String patSetting = getString(tenant, "patSetting", null);
+			if (patSetting != null) {
+				pat = environment.apply(patSetting);
+			}
+			if (pat == null || pat.isEmpty()) {
+				throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "no PAT for tenant '" + name + "'"));
+			}
+
+			DevOpsConfig config = new DevOpsConfig(
+					getString(tenant, "baseUri", DevOpsConfig.DEFAULT_BASE_URI),
+					requireString(tenant, "organization"),
+					requireString(tenant, "project"),
+					repository,
+					pat);
+
+			tenants.add(new Tenant(
+					name,
+					config,
+					(int) getLong(tenant, "maxConnections", DEFAULT_MAX_CONNECTIONS),
+					getLong(tenant, "cacheMaxBytes", DiagramCache.getDefaultMaxBytes()),
+					(int) getLong(tenant, "sourceCacheEntries", SourceCache.getDefaultMaxEntries())));
+		}
+
+		return tenants;
+	}
+
+	/**
+	 * Finds the tenant selected by request parameters. Without parameters
+	 * the default (first) tenant is selected.
+	 *
+	 * @param project		project name or null
+	 * @param repository	tenant name, repository name or id, or null
+	 * @return the first matching tenant or null
+	 * @since 1.0
+	 */
+	public Tenant find(String project, String repository) {
+		for (Tenant tenant : _tenants) {
+			if (tenant.matches(project, repository)) {
+				return tenant;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the diagram generator selected by request parameters. Without
+	 * parameters the default tenant's generator is returned.
+	 *
+	 * @param project		project name or null
+	 * @param repository	tenant name, repository name or id, or null
+	 * @return the tenant's generator or null if no tenant matches
+	 * @throws ExceptionInInitializerError	if no parameter is given and no tenant is configured
+	 * @since 1.0
+	 */
+	public DevOpsDiagram getGenerator(String project, String repository) {
+		if (project == null && repository == null) {
+			return getDefault();
+		}
+
+		Tenant tenant = find(project, repository);
+
+		return tenant == null ? null : getGenerator(tenant);
+	}
+
+	/**
+	 * Gets the diagram generator of a tenant, creating it with the tenant's
+	 * connection pool and cache partitions on first use. Only the connection
+	 * pool depends on {@code maxConnections}; every tenant gets its own
+	 * caches and source directory, except that the default tenant keeps the
+	 * directory used before tenants existed.
+	 *
+	 * @param tenant	a registered tenant
+	 * @return the tenant's generator
+	 * @since 1.0
+	 */
+	public DevOpsDiagram getGenerator(Tenant tenant) {
+		return _generators.computeIfAbsent(tenant.getName(), name -> {
+			DevOpsConfig config = tenant.getConfig();
+			HttpWrapper httpClient = tenant.getMaxConnections() <= 0
+					? new HttpWrapper(config.getBaseUri())
+					: new HttpWrapper(
+							config.getBaseUri(),
+							HttpWrapper.createPooledClient(tenant.getMaxConnections(), tenant.getMaxConnections()),
+							HttpWrapper.createPooledAsyncClient(tenant.getMaxConnections(), tenant.getMaxConnections()));
+
+			return new DevOpsDiagram(
+					config,
+					httpClient,
+					DiagramCache.fromEnvironment(tenant.getCacheMaxBytes()),
+					SourceCache.fromEnvironment(
+							DEFAULT_TENANT.equals(name) ? null : name,
+							tenant.getSourceCacheEntries()));
+		});
+	}
+
+	/**
+	 * Gets the generator of the default tenant.
+	 *
+	 * @return the default tenant's generator
+	 * @throws ExceptionInInitializerError	if no tenant is configured
+	 * @since 1.0
+	 */
+	public DevOpsDiagram getDefault() {
+		if (_tenants.isEmpty()) {
+			throw new ExceptionInInitializerError(
+					"No DevOps repository is configured; set 'azuml_devopsOrg' etc. or '" + ENV_TENANTS + "'");
+		}
+
+		return getGenerator(_tenants.get(0));
+	}
+
+	/**
+	 * Gets the generators created so far; tenants that have not served a
+	 * request yet have none.
+	 *
+	 * @return generators by tenant name
+	 * @since 1.0
+	 */
+	public Map<String, DevOpsDiagram> getActiveGenerators() {
+		return new TreeMap<String, DevOpsDiagram>(_generators);
+	}
+
+	/** @return the registered tenants; the first one is the default */
+	public List<Tenant> getTenants() {
+		return _tenants;
+	}
+
+	/**
+	 * Gets the registry shared by all functions in this host process, reading
+	 * it from the environment on first use.
+	 *
+	 * @return the shared registry
+	 * @throws IllegalArgumentException		if {@code azuml_tenants} is invalid
+	 * @throws ExceptionInInitializerError	if the single-repository variables are incomplete
+	 * @since 1.0
+	 */
+	public static TenantRegistry getInstance() {
+		TenantRegistry registry = sharedInstance;
+		if (registry == null) {
+			synchronized (TenantRegistry.class) {
+				registry = sharedInstance;
+				if (registry == null) {
+					registry = fromEnvironment();
+					sharedInstance = registry;
+				}
+			}
+		}
+
+		return registry;
+	}
+
+	private static String requireString(JsonObject object, String name) {
+		String value = getString(object, name, null);
+		if (value == null) {
+			throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "every tenant needs '" + name + "'"));
+		}
+
+		return value;
+	}
+
+	private static String getString(JsonObject object, String name, String defaultValue) {
+		JsonElement value = object.get(name);
+		if (value == null || value.isJsonNull() || value.getAsString().trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		return value.getAsString().trim();
+	}
+
+	private static long getLong(JsonObject object, String name, long defaultValue) {
+		JsonElement value = object.get(name);
+		if (value == null || value.isJsonNull()) {
+			return defaultValue;
+		}
+
+		try {
+			return value.getAsLong();
+		} catch (NumberFormatException | UnsupportedOperationException ex) {
+			throw new IllegalArgumentException(String.format(TENANT_ERROR_FORMAT, "'" + name + "' must be a number"), ex);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker of the
+ * upstream service is open.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class UpstreamUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of milliseconds until requests are tried again */
+	private final long _retryAfterMillis;
+
+	/**
+	 * Initializes a new instance.
+	 *
+	 * @param message			description of the unavailable upstream
+	 * @param retryAfterMillis	number of milliseconds until requests are tried again
+	 * @since 1.0
+	 */
+	public UpstreamUnavailableException(String message, long retryAfterMillis) {
+		super(message);
+		_retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * @return number of milliseconds until requests are tried again
+	 * @since 1.0
+	 */
+	public long getRetryAfterMillis() {
+		return _retryAfterMillis;
+	}
+}
@@ -0,0 +1,154 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pays the one-off start-up costs of a new function host before real
+ * requests arrive: PlantUML class loading, font and AWT initialization, the
+ * render threads and the TLS connection to DevOps.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public final class WarmUp {
+
+	/** Small diagram rendered during warm-up; the same one TestDiagram renders */
+	static final String WARMUP_DIAGRAM = "@startuml\nBob -> Alice: Hello!\n@enduml\n";
+
+	/** Warm-up of this host process; null until it is first requested */
+	private static CompletableFuture<Report> started = null;
+
+
+	/**
+	 * Durations of the warm-up steps.
+	 *
+	 * @since 1.0
+	 */
+	public static class Report {
+
+		/** Time spent rendering the built-in diagram in every format, in milliseconds */
+		private final long _renderMillis;
+
+		/** Time spent opening the connection to DevOps, in milliseconds; -1 if skipped */
+		private final long _connectionMillis;
+
+		/** Total warm-up time, in milliseconds */
+		private final long _totalMillis;
+
+		Report(long renderMillis, long connectionMillis, long totalMillis) {
+			_renderMillis = renderMillis;
+			_connectionMillis = connectionMillis;
+			_totalMillis = totalMillis;
+		}
+
+		/** @return time spent rendering the built-in diagram, in milliseconds */
+		public long getRenderMillis() {
+			return _renderMillis;
+		}
+
+		/** @return time spent opening the connection to DevOps, in milliseconds; -1 if skipped */
+		public long getConnectionMillis() {
+			return _connectionMillis;
+		}
+
+		/** @return total warm-up time, in milliseconds */
+		public long getTotalMillis() {
+			return _totalMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"WarmUp[total=%1$dms, render=%2$dms, connection=%3$dms]",
+					_totalMillis, _renderMillis, _connectionMillis);
+		}
+	}
+
+
+	private WarmUp() {
+	}
+
+	/**
+	 * Starts the warm-up of this host process on a background thread, once.
+	 * Later calls return the same (possibly completed) warm-up.
+	 *
+	 * @param logger	logging instance to use
+	 * @return the warm-up of this host process
+	 * @since 1.0
+	 */
+	public static synchronized CompletableFuture<Report> start(Logger logger) {
+		if (started == null) {
+			started = new CompletableFuture<Report>();
+			CompletableFuture<Report> result = started;
+
+			Thread thread = new DaemonThreadFactory("azuml-warmup-").newThread(() -> {
+				try {
+					result.complete(run(logger));
+				} catch (RuntimeException | Error ex) {
+					result.completeExceptionally(ex);
+				}
+			});
+			thread.start();
+		}
+
+		return started;
+	}
+
+	/**
+	 * Runs the warm-up on the calling thread: renders the built-in diagram in
+	 * every format through the render scheduler and opens a pooled connection
+	 * to DevOps for every configured repository.
+	 * <p>
+	 * Failures are logged; warm-up never fails a request.
+	 *
+	 * @param logger	logging instance to use
+	 * @return durations of the warm-up steps
+	 * @since 1.0
+	 */
+	public static Report run(Logger logger) {
+		long start = System.nanoTime();
+
+		for (DiagramFormat format : DiagramFormat.values()) {
+			try {
+				DiagramGenerator.render(WARMUP_DIAGRAM, format, logger);
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Warm-up render of " + format + " failed", ex);
+			}
+		}
+		long rendered = System.nanoTime();
+
+		long connectionMillis = -1;
+		try {
+			TenantRegistry registry = TenantRegistry.getInstance();
+			if (registry.getTenants().isEmpty()) {
+				// DevOps settings are missing, e.g. when running locally
+				logger.info("Skipping the DevOps connection warm-up: no repository is configured");
+			} else {
+				// every tenant has its own connection pool
+				for (TenantRegistry.Tenant tenant : registry.getTenants()) {
+					try {
+						int status = registry.getGenerator(tenant).primeConnection(logger);
+						logger.fine("DevOps answered the warm-up request for " + tenant.getName() + " with " + status);
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, "Unable to open a connection to DevOps for " + tenant.getName() + " during warm-up", ex);
+					}
+				}
+				connectionMillis = (System.nanoTime() - rendered) / 1000000;
+			}
+		} catch (ExceptionInInitializerError | IllegalArgumentException ex) {
+			logger.log(Level.WARNING, "Skipping the DevOps connection warm-up: " + ex.getMessage());
+		}
+
+		Report report = new Report(
+				(rendered - start) / 1000000,
+				connectionMillis,
+				(System.nanoTime() - start) / 1000000);
+		logger.info("Warm-up completed: " + report);
+
+		return report;
+	}
+}
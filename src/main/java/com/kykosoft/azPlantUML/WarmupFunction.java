@@ -0,0 +1,61 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonObject;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Warms up a new function host so the first real request does not pay for
+ * class loading, font initialization and connection set-up.
+ *
+ * @author	S. Kyle Korndoerfer
+ * @version	1.0
+ * @since	1.0
+ */
+public class WarmupFunction {
+
+	/**
+	 * Runs the warm-up of this host (once) and reports how long it took.
+	 * <p>
+	 * Accessed at: /api/Warmup. Point the {@code WEBSITE_WARMUP_PATH}
+	 * application setting (Premium and Dedicated plans) or a health check at
+	 * it so new instances are warmed before they receive traffic.
+	 *
+	 * @param request	incoming HTTP request
+	 * @param context	Azure Function execution context
+	 * @return	HTTP Response with the warm-up durations as JSON
+	 * @since	1.0
+	 */
+	@FunctionName("Warmup")
+	public HttpResponseMessage run(
+			@HttpTrigger(
+				name = "req",
+				methods = {HttpMethod.GET},
+				authLevel = AuthorizationLevel.ANONYMOUS)
+				HttpRequestMessage<Optional<String>> request,
+			final ExecutionContext context ) {
+
+		Logger logger = context.getLogger();
+		WarmUp.Report report = WarmUp.start(logger).join();
+
+		JsonObject body = new JsonObject();
+		body.addProperty("totalMillis", report.getTotalMillis());
+		body.addProperty("renderMillis", report.getRenderMillis());
+		body.addProperty("connectionMillis", report.getConnectionMillis());
+
+		return request.createResponseBuilder(HttpStatus.OK)
+				.body(body.toString())
+				.header("Content-Type", "application/json")
+				.header("Cache-Control", "no-store")
+				.build();
+	}
+}
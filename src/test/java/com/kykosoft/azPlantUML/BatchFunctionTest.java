@@ -0,0 +1,57 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the paths and entry names of batch archives.
+ */
+public class BatchFunctionTest {
+
+    private static List<String> entryNames(byte[] archive) throws Exception {
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testEquivalentPathsAreRequestedOnce() {
+        assertEquals(Arrays.asList("/docs/a.puml"),
+                new ArrayList<>(BatchFunction.parsePaths("[\"/docs/a.puml\", \"docs/a.puml\", \"docs\\\\a.puml\", \"//docs/./a.puml\"]")));
+    }
+
+    @Test
+    public void testParentSegmentsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> BatchFunction.parsePaths("[\"/docs/../../etc/passwd\"]"));
+        assertThrows(IllegalArgumentException.class, () -> BatchFunction.normalizePath("..\\a.puml"));
+        assertEquals("/docs/..a.puml", BatchFunction.normalizePath("docs/..a.puml"));
+    }
+
+    @Test
+    public void testCollidingEntryNamesGetASuffix() throws Exception {
+        Map<String, CompletableFuture<byte[]>> images = new LinkedHashMap<>();
+        images.put("/docs/a.puml", CompletableFuture.completedFuture(new byte[] { 1 }));
+        images.put("/docs/a.plantuml", CompletableFuture.completedFuture(new byte[] { 2 }));
+        images.put("/docs/A.txt", CompletableFuture.completedFuture(new byte[] { 3 }));
+
+        byte[] archive = BatchFunction.buildArchive(images, Logger.getGlobal());
+
+        assertEquals(Arrays.asList("docs/a.png", "docs/a-2.png", "docs/A-3.png"), entryNames(archive));
+    }
+}
@@ -0,0 +1,116 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Verifies a single DevOpsDiagram instance can serve parallel invocations.
+ */
+public class DevOpsDiagramConcurrencyTest {
+
+    private static final int DIAGRAMS = 8;
+
+    private static final Pattern PATH = Pattern.compile("path=/docs/d(\\d+)\\.puml");
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private HttpServer server;
+
+    private DevOpsDiagram generator;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/", exchange -> {
+            Matcher matcher = PATH.matcher(exchange.getRequestURI().getQuery());
+            assertTrue(matcher.find());
+            String etag = "\"" + matcher.group(1) + "\"";
+            // the stub server does not cope well with pooled keep-alive connections under load
+            exchange.getResponseHeaders().add("Connection", "close");
+
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                downloads.incrementAndGet();
+                byte[] body = ("@startuml\nParticipant" + matcher.group(1) + " -> Server : hello\n@enduml")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        generator = new DevOpsDiagram(new DevOpsConfig(
+                "http://127.0.0.1:" + server.getAddress().getPort(),
+                "org", "project", "repo", "pat"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testParallelInvocationsShareOneInstance() throws Exception {
+        int threads = 16;
+        int invocations = 40;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            results.add(pool.submit(() -> {
+                // every invocation brings its own logger, like ExecutionContext.getLogger()
+                Logger logger = Logger.getAnonymousLogger();
+                logger.setUseParentHandlers(false);
+                start.await();
+                for (int i = 0; i < invocations; i++) {
+                    int diagram = (thread + i) % DIAGRAMS;
+                    String path = "/docs/d" + diagram + ".puml";
+
+                    String source = generator.fetchSource(path, logger);
+                    assertTrue(source.contains("Participant" + diagram + " "), source);
+
+                    byte[] svg = generator.generate(path, null, DiagramFormat.SVG, logger);
+                    assertTrue(new String(svg, StandardCharsets.UTF_8).contains("Participant" + diagram + "<"));
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        // each file was downloaded once; every later request was a conditional 304
+        assertEquals(DIAGRAMS, downloads.get());
+    }
+}
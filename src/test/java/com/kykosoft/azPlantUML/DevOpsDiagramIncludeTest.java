@@ -0,0 +1,173 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Verifies include expansion of repository files against a local stand-in for DevOps.
+ */
+public class DevOpsDiagramIncludeTest {
+
+    private final Logger logger = Logger.getGlobal();
+
+    /** Whether requests for the included file fail without an answer */
+    private volatile boolean failInclude = false;
+
+    /** Whether the main diagram includes the style file */
+    private volatile boolean mainIncludes = true;
+
+    private HttpServer server;
+
+    private DevOpsDiagram generator;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Connection", "close");
+            String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+            byte[] body;
+            if (query.contains("path=/docs/style.iuml")) {
+                if (failInclude) {
+                    // drop the connection, as an unreachable DevOps would
+                    exchange.close();
+                    return;
+                }
+                body = "skinparam monochrome true\nBob -> Alice : styled\n".getBytes(StandardCharsets.UTF_8);
+            } else {
+                body = ("@startuml\n" + (mainIncludes ? "!include style.iuml\n" : "") + "Alice -> Bob : main\n@enduml\n")
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.getResponseHeaders().add("ETag", "\"" + body.length + "\"");
+            try (OutputStream out = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(200, body.length);
+                out.write(body);
+            }
+        });
+        server.start();
+
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        generator = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), HttpWrapper.createPooledAsyncClient(4, 4),
+                        new RetryPolicy(0, 10, 100), new CircuitBreaker(100, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                new SourceCache(10, 60000, null));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testIncludesAreInlined() throws Exception {
+        String source = generator.fetchSource("/docs/main.puml", null, logger);
+
+        assertTrue(source.contains("Bob -> Alice : styled"), source);
+        assertTrue(source.contains("Alice -> Bob : main"), source);
+    }
+
+    @Test
+    public void testFailedIncludeFailsTheExpansion() throws Exception {
+        failInclude = true;
+
+        String source = generator.fetchSource("/docs/main.puml", null, logger);
+        assertTrue(source.contains("Unable to include /docs/style.iuml"), source);
+        assertFalse(source.contains("Alice -> Bob : main"), source);
+
+        String async = generator.fetchSourceAsync("/docs/main.puml", null, logger).join();
+        assertTrue(async.contains("Unable to include /docs/style.iuml"), async);
+    }
+
+    @Test
+    public void testLastModifiedCoversIncludedFiles() throws Exception {
+        generator.fetchSource("/docs/main.puml", null, logger);
+        long parent = generator.getLastModified("/docs/main.puml");
+        assertTrue(parent >= 0);
+
+        // a push changed only the included file
+        Thread.sleep(5);
+        generator.invalidateSource("/docs/style.iuml");
+        assertEquals(-1, generator.getLastModified("/docs/main.puml"));
+
+        generator.fetchSource("/docs/main.puml", null, logger);
+        assertEquals(generator.getLastModified("/docs/style.iuml"), generator.getLastModified("/docs/main.puml"));
+        assertTrue(generator.getLastModified("/docs/main.puml") > parent);
+    }
+
+    @Test
+    public void testDependentsFollowTheLatestExpansion() throws Exception {
+        generator.fetchSource("/docs/main.puml", null, logger);
+        assertEquals(Collections.singleton("/docs/main.puml"), generator.getDependents("/docs/style.iuml"));
+
+        // a push changed only the included file; its dependents are still known
+        generator.invalidateSource("/docs/style.iuml");
+        assertEquals(Collections.singleton("/docs/main.puml"), generator.getDependents("/docs/style.iuml"));
+
+        // a push removed the include from the diagram
+        mainIncludes = false;
+        generator.invalidateSource("/docs/main.puml");
+        assertTrue(generator.getDependents("/docs/style.iuml").isEmpty());
+
+        generator.fetchSource("/docs/main.puml", null, logger);
+        assertTrue(generator.getDependents("/docs/style.iuml").isEmpty());
+
+        // the include is added again
+        mainIncludes = true;
+        generator.invalidateSource("/docs/main.puml");
+        generator.fetchSource("/docs/main.puml", null, logger);
+        assertEquals(Collections.singleton("/docs/main.puml"), generator.getDependents("/docs/style.iuml"));
+    }
+
+    @Test
+    public void testPinnedSourcesAreNotStoredOnTheHttpClientThreads(@TempDir Path directory) throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        SourceCache sourceCache = new SourceCache(10, 60000, directory) {
+            @Override
+            public Entry getImmutable(String key, Logger logger) {
+                threads.add(Thread.currentThread().getName());
+                return super.getImmutable(key, logger);
+            }
+
+            @Override
+            public void putImmutable(String key, String content, Logger logger) {
+                threads.add(Thread.currentThread().getName());
+                super.putImmutable(key, content, logger);
+            }
+        };
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        DevOpsDiagram pinned = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), HttpWrapper.createPooledAsyncClient(4, 4),
+                        new RetryPolicy(0, 10, 100), new CircuitBreaker(100, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                sourceCache);
+
+        String source = pinned.fetchSourceAsync("/docs/main.puml", "0123abcd", logger).get(10, TimeUnit.SECONDS);
+
+        assertTrue(source.contains("Bob -> Alice : styled"), source);
+        assertFalse(threads.isEmpty());
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("azuml-include-"), thread);
+        }
+    }
+}
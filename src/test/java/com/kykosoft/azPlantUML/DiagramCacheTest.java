@@ -0,0 +1,101 @@
+package com.kykosoft.azPlantUML;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the rendered image cache.
+ */
+public class DiagramCacheTest {
+
+    private final Logger logger = Logger.getGlobal();
+
+    @Test
+    public void testKeyDependsOnSourceAndFormat() {
+        String key = DiagramCache.computeKey("@startuml\nA -> B\n@enduml", "PNG");
+
+        assertEquals(key, DiagramCache.computeKey("@startuml\nA -> B\n@enduml", "PNG"));
+        assertNotEquals(key, DiagramCache.computeKey("@startuml\nA -> B\n@enduml", "SVG"));
+        assertNotEquals(key, DiagramCache.computeKey("@startuml\nA -> C\n@enduml", "PNG"));
+    }
+
+    @Test
+    public void testEachPageHasItsOwnKey() {
+        String source = "@startuml\nA -> B\nnewpage\nB -> C\n@enduml";
+
+        assertEquals(DiagramCache.computeKey(source, "PNG"), DiagramCache.computeKey(source, "PNG", 0));
+        assertNotEquals(DiagramCache.computeKey(source, "PNG", 0), DiagramCache.computeKey(source, "PNG", 1));
+        assertNotEquals(DiagramCache.computeKey(source, "PNG", 1), DiagramCache.computeKey(source, "SVG", 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        DiagramCache cache = new DiagramCache(10, null);
+
+        cache.put("a", new byte[4], logger);
+        cache.put("b", new byte[4], logger);
+        assertNotNull(cache.get("a", logger));     // 'b' is now the eldest entry
+        cache.put("c", new byte[4], logger);
+
+        assertNotNull(cache.get("a", logger));
+        assertNull(cache.get("b", logger));
+        assertNotNull(cache.get("c", logger));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(8, cache.getCurrentBytes());
+    }
+
+    @Test
+    public void testDiskTierSurvivesNewInstance(@TempDir Path directory) {
+        byte[] image = new byte[] { 1, 2, 3 };
+        new DiagramCache(1024, directory).put("key", image, logger);
+
+        DiagramCache restarted = new DiagramCache(1024, directory);
+
+        assertArrayEquals(image, restarted.get("key", logger));
+        assertEquals(1, restarted.getDiskHits());
+        assertArrayEquals(image, restarted.get("key", logger));
+        assertEquals(1, restarted.getDiskHits());
+    }
+
+    @Test
+    public void testAsyncLookupDoesNotWaitForTheStore() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DiagramCache cache = new DiagramCache(new DiagramStore() {
+            @Override
+            public byte[] get(String key) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new byte[] { 1 };
+            }
+
+            @Override
+            public void put(String key, byte[] image) {
+            }
+        }, 1024);
+
+        // a slow persistent tier does not hold up the caller
+        CompletableFuture<byte[]> stored = cache.getAsync("stored", logger);
+        assertFalse(stored.isDone());
+        release.countDown();
+        assertArrayEquals(new byte[] { 1 }, stored.get(5, TimeUnit.SECONDS));
+        assertEquals(1, cache.getDiskHits());
+
+        // memory hits are answered on the calling thread
+        CompletableFuture<byte[]> remembered = cache.getAsync("stored", logger);
+        assertTrue(remembered.isDone());
+        assertEquals(2, cache.getHits());
+    }
+}
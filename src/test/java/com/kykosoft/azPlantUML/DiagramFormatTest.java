@@ -0,0 +1,58 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the DiagramFormat enum and format-aware rendering.
+ */
+public class DiagramFormatTest {
+
+    private static final String SOURCE = "@startuml\nAlice -> Bob : hello\n@enduml";
+
+    @Test
+    public void parsesFormatParameter() {
+        assertEquals(DiagramFormat.PNG, DiagramFormat.fromParameter(null));
+        assertEquals(DiagramFormat.PNG, DiagramFormat.fromParameter(""));
+        assertEquals(DiagramFormat.SVG, DiagramFormat.fromParameter("svg"));
+        assertEquals(DiagramFormat.SVGZ, DiagramFormat.fromParameter(" SvgZ "));
+        assertThrows(IllegalArgumentException.class, () -> DiagramFormat.fromParameter("gif"));
+    }
+
+    @Test
+    public void rendersSvgAndCompressedSvg() throws Exception {
+        byte[] svg = DiagramGenerator.renderImage(SOURCE, DiagramFormat.SVG);
+        String text = new String(svg, StandardCharsets.UTF_8);
+        assertTrue(text.contains("<svg"));
+        assertTrue(text.contains("Alice"));
+
+        byte[] svgz = DiagramGenerator.renderImage(SOURCE, DiagramFormat.SVGZ);
+        assertTrue(svgz.length < svg.length);
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(svgz))) {
+            byte[] chunk = new byte[4096];
+            for (int read; (read = in.read(chunk)) != -1; ) {
+                inflated.write(chunk, 0, read);
+            }
+        }
+        // element ids differ between renders, so compare content loosely
+        String inflatedText = new String(inflated.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(inflatedText.contains("<svg"));
+        assertTrue(inflatedText.contains("Alice"));
+    }
+
+    @Test
+    public void cacheKeysDifferByFormat() {
+        assertNotEquals(
+                DiagramCache.computeKey(SOURCE, DiagramFormat.PNG.name()),
+                DiagramCache.computeKey(SOURCE, DiagramFormat.SVG.name()));
+    }
+}
@@ -0,0 +1,193 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Verifies the persistent image stores; the blob store runs against a local
+ * stand-in for the Blob service.
+ */
+public class DiagramStoreTest {
+
+    private final Logger logger = Logger.getGlobal();
+
+    /** Blobs held by the stand-in, by path */
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+    /** Status answered to every request instead of serving blobs; 0 to serve them */
+    private volatile int failureStatus;
+
+    private HttpServer server;
+
+    private String containerUrl;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Connection", "close");
+            String path = exchange.getRequestURI().getPath();
+            boolean authorized = "sv=test&sig=abc".equals(exchange.getRequestURI().getQuery())
+                    && exchange.getRequestHeaders().getFirst("x-ms-version") != null;
+
+            if (failureStatus != 0) {
+                exchange.sendResponseHeaders(failureStatus, -1);
+            } else if (!authorized) {
+                exchange.sendResponseHeaders(403, -1);
+            } else if ("PUT".equals(exchange.getRequestMethod())) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] buffer = new byte[4096];
+                    for (int count; (count = in.read(buffer)) > 0; ) {
+                        body.write(buffer, 0, count);
+                    }
+                }
+                boolean created = blobs.putIfAbsent(path, body.toByteArray()) == null;
+                exchange.sendResponseHeaders(created ? 201 : 409, -1);
+            } else if (blobs.containsKey(path)) {
+                byte[] blob = blobs.get(path);
+                exchange.sendResponseHeaders(200, blob.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(blob);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        containerUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/devstoreaccount1/diagrams/";
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private BlobDiagramStore blobStore(CircuitBreaker breaker) {
+        // uploads run on the calling thread so the test can check them straight away
+        return new BlobDiagramStore(containerUrl, "?sv=test&sig=abc", HttpClients.createDefault(), breaker, Runnable::run);
+    }
+
+    @Test
+    public void testBlobStoreIsSharedBetweenInstances() {
+        byte[] image = new byte[] { 1, 2, 3 };
+        new DiagramCache(blobStore(new CircuitBreaker(5, 60000)), 1024).put("key", image, logger);
+
+        assertArrayEquals(image, blobs.get("/devstoreaccount1/diagrams/key.img"));
+
+        // another instance finds the image without rendering it
+        DiagramCache other = new DiagramCache(blobStore(new CircuitBreaker(5, 60000)), 1024);
+        assertArrayEquals(image, other.get("key", logger));
+        assertEquals(1, other.getDiskHits());
+        assertNull(other.get("missing", logger));
+
+        // uploading an image that exists already is not an error
+        other.put("key", image, logger);
+    }
+
+    @Test
+    public void testFailingBlobStoreIsSkipped() {
+        failureStatus = 503;
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        DiagramCache cache = new DiagramCache(blobStore(breaker), 1024);
+
+        assertNull(cache.get("a", logger));
+        assertNull(cache.get("b", logger));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // the open circuit answers misses without asking the storage account
+        assertNull(cache.get("c", logger));
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void testFileStoreEvictsLeastRecentlyUsed(@TempDir Path directory) throws Exception {
+        FileDiagramStore store = new FileDiagramStore(directory, 250);
+        store.put("a", new byte[100]);
+        store.put("b", new byte[100]);
+        assertNotNull(store.get("a"));     // 'b' is now the eldest image
+        store.put("c", new byte[100]);
+
+        assertNotNull(store.get("a"));
+        assertNull(store.get("b"));
+        assertFalse(Files.exists(directory.resolve("b.img")));
+        assertEquals(200, store.getCurrentBytes());
+        assertEquals(1, store.getEvictions());
+
+        // a new instance picks up the images written before the restart
+        assertEquals(200, new FileDiagramStore(directory, 250).getCurrentBytes());
+    }
+
+    @Test
+    public void testFileStoreReadsLargeImages(@TempDir Path directory) throws Exception {
+        byte[] image = new byte[256 * 1024];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+
+        new FileDiagramStore(directory, 0).put("large", image);
+
+        assertArrayEquals(image, new FileDiagramStore(directory, 0).get("large"));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());     // no temporary files are left behind
+        }
+    }
+
+    @Test
+    public void testEvictionNeverDeletesAFreshImage(@TempDir Path directory) throws Exception {
+        FileDiagramStore store = new FileDiagramStore(directory, 300);
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> puts = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                puts.add(writers.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        store.put("k" + (i % 5), new byte[100]);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> put : puts) {
+                put.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        // every image counted by the index is still on disk
+        long onDisk = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                assertTrue(file.toString().endsWith(".img"), file.toString());
+                onDisk += Files.size(file);
+            }
+        }
+        assertEquals(onDisk, store.getCurrentBytes());
+        assertTrue(store.getCurrentBytes() <= 300);
+    }
+}
@@ -0,0 +1,68 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.logging.Logger;
+
+import com.google.gson.JsonObject;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the histogram and pipeline metrics.
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(Histogram.upperBound(bucket) >= value, Long.toString(value));
+            if (bucket > 0) {
+                assertTrue(Histogram.upperBound(bucket - 1) < value, Long.toString(value));
+            }
+        }
+
+        // a bucket is never wider than an eighth of its values
+        int bucket = Histogram.bucketOf(1000);
+        assertTrue(Histogram.upperBound(bucket) - Histogram.upperBound(bucket - 1) <= 1000 / 8);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125, Long.toString(p50));
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000, Long.toString(p99));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testTraceRecordsStages() {
+        long before = PipelineMetrics.getStage(PipelineMetrics.Stage.TOTAL).getCount();
+
+        PipelineMetrics.startTrace("Test")
+                .put("path", "/a.puml")
+                .mark(PipelineMetrics.Stage.FETCH)
+                .mark(PipelineMetrics.Stage.RENDER)
+                .finish(200, Logger.getGlobal());
+
+        assertEquals(before + 1, PipelineMetrics.getStage(PipelineMetrics.Stage.TOTAL).getCount());
+
+        JsonObject metrics = PipelineMetrics.toJson();
+        assertTrue(metrics.getAsJsonObject("stages").getAsJsonObject("fetch").get("count").getAsLong() >= 1);
+        assertTrue(metrics.getAsJsonObject("responseStatus").get("200").getAsLong() >= 1);
+    }
+}
@@ -0,0 +1,45 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the HttpCaching helpers.
+ */
+public class HttpCachingTest {
+
+    private static final String ETAG = HttpCaching.entityTag("abc123");
+
+    @Test
+    public void ifNoneMatchUsesWeakComparison() {
+        assertTrue(HttpCaching.matches("\"abc123\"", ETAG));
+        assertTrue(HttpCaching.matches("W/\"abc123\"", ETAG));
+        assertTrue(HttpCaching.matches("\"old\", \"abc123\"", ETAG));
+        assertTrue(HttpCaching.matches("*", ETAG));
+        assertFalse(HttpCaching.matches("\"old\"", ETAG));
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+        long lastModified = 1600000000000L;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-modified-since", HttpCaching.formatHttpDate(lastModified));
+        assertTrue(HttpCaching.isNotModified(headers, ETAG, lastModified));
+        assertFalse(HttpCaching.isNotModified(headers, ETAG, lastModified + 5000));
+        assertFalse(HttpCaching.isNotModified(headers, ETAG, -1));
+
+        headers.put("If-None-Match", "\"old\"");
+        assertFalse(HttpCaching.isNotModified(headers, ETAG, lastModified));
+    }
+
+    @Test
+    public void httpDatesRoundTrip() {
+        assertEquals("Sun, 13 Sep 2020 12:26:40 GMT", HttpCaching.formatHttpDate(1600000000000L));
+        assertEquals(1600000000000L, HttpCaching.parseHttpDate("Sun, 13 Sep 2020 12:26:40 GMT"));
+        assertEquals(-1, HttpCaching.parseHttpDate("yesterday"));
+    }
+}
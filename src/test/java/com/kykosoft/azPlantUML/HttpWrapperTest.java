@@ -0,0 +1,269 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Verifies retries, the circuit breaker and serving stale sources against a
+ * local stand-in for DevOps.
+ */
+public class HttpWrapperTest {
+
+    private static final String SOURCE = "@startuml\nAlice -> Bob : hello\n@enduml";
+
+    private final Logger logger = Logger.getGlobal();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /** Status codes answered before the stub starts answering 200 */
+    private volatile int failures;
+
+    /** Status code answered while failing */
+    private volatile int failureStatus = 503;
+
+    /** Holds every request until released, when set */
+    private volatile CountDownLatch hold;
+
+    private HttpServer server;
+
+    private CloseableHttpAsyncClient asyncClient;
+
+    private String baseUrl;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Connection", "close");
+            if (hold != null) {
+                try {
+                    hold.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (requests.incrementAndGet() <= failures) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.sendResponseHeaders(failureStatus, -1);
+            } else {
+                byte[] body = SOURCE.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", "\"1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (hold != null) {
+            hold.countDown();
+        }
+        server.stop(0);
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+    }
+
+    private HttpWrapper wrapper(int retries, CircuitBreaker breaker) {
+        return new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), new RetryPolicy(retries, 10, 100), breaker);
+    }
+
+    private HttpWrapper asyncWrapper(int retries, CircuitBreaker breaker) {
+        asyncClient = HttpWrapper.createPooledAsyncClient(4, 4);
+        return new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), asyncClient, new RetryPolicy(retries, 10, 100), breaker);
+    }
+
+    @Test
+    public void testTransientFailuresAreRetried() throws Exception {
+        failures = 2;
+        HttpContent response = wrapper(2, new CircuitBreaker(5, 60000)).GetContent("items", null, null);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(SOURCE, response.getContent());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testCircuitOpensAfterRepeatedFailures() throws Exception {
+        failures = Integer.MAX_VALUE;
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        HttpWrapper wrapper = wrapper(1, breaker);
+
+        assertEquals(503, wrapper.GetContent("items", null, null).getStatusCode());
+        assertEquals(503, wrapper.GetContent("items", null, null).getStatusCode());
+        assertEquals(4, requests.get());
+
+        // no further request reaches the upstream while the circuit is open
+        assertThrows(UpstreamUnavailableException.class, () -> wrapper.GetContent("items", null, null));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void testNotFoundIsNotRetried() throws Exception {
+        failures = 1;
+        failureStatus = 404;
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+
+        assertEquals(404, wrapper(2, breaker).GetContent("items", null, null).getStatusCode());
+        assertEquals(1, requests.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testLastGoodSourceIsServedWhileDevOpsFails() throws Exception {
+        DevOpsDiagram generator = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                wrapper(1, new CircuitBreaker(1, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                new SourceCache(10, 0, 0, 60000, null));
+
+        assertEquals(SOURCE, generator.fetchSource("/a.puml", logger));
+
+        // DevOps starts failing; the first failure opens the circuit, the next request is not even sent
+        failures = Integer.MAX_VALUE;
+        assertEquals(SOURCE, generator.fetchSource("/a.puml", logger));
+        assertEquals(SOURCE, generator.fetchSource("/a.puml", logger));
+        assertEquals(3, requests.get());
+        assertEquals(2, generator.getSourceCache().getStaleOnError());
+
+        // a file that was never downloaded cannot be served stale
+        assertTrue(generator.fetchSource("/b.puml", logger).contains("participant Error"));
+    }
+
+    @Test
+    public void testExpiredSourceIsRevalidatedInBackground() throws Exception {
+        DevOpsDiagram generator = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                wrapper(0, new CircuitBreaker(5, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                new SourceCache(10, 0, 60000, 0, null));
+
+        assertEquals(SOURCE, generator.fetchSource("/a.puml", logger));
+        assertEquals(1, requests.get());
+
+        // served from the cache straight away; DevOps is asked in the background
+        assertEquals(SOURCE, generator.fetchSource("/a.puml", logger));
+        for (int i = 0; i < 100 && requests.get() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testAsyncTransientFailuresAreRetried() throws Exception {
+        failures = 2;
+        HttpContent response = asyncWrapper(2, new CircuitBreaker(5, 60000))
+                .GetContentAsync("items", null, null, logger)
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(SOURCE, response.getContent());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testAsyncRequestFailsWhileCircuitIsOpen() throws Exception {
+        failures = Integer.MAX_VALUE;
+        HttpWrapper wrapper = asyncWrapper(0, new CircuitBreaker(1, 60000));
+
+        assertEquals(503, wrapper.GetContentAsync("items", null, null, logger).get(10, TimeUnit.SECONDS).getStatusCode());
+
+        CompletableFuture<HttpContent> rejected = wrapper.GetContentAsync("items", null, null, logger);
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testCancelledTrialRequestDoesNotKeepCircuitHalfOpen() throws Exception {
+        failures = 1;
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        HttpWrapper wrapper = asyncWrapper(0, breaker);
+
+        assertEquals(503, wrapper.GetContentAsync("items", null, null, logger).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(60);
+
+        // the trial request hangs and its caller gives up on it
+        hold = new CountDownLatch(1);
+        CompletableFuture<HttpContent> trial = wrapper.GetContentAsync("items", null, null, logger);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        trial.cancel(true);
+
+        for (int i = 0; i < 100 && breaker.getState() == CircuitBreaker.State.HALF_OPEN; i++) {
+            Thread.sleep(20);
+        }
+        hold.countDown();
+
+        // the next request becomes the trial and closes the circuit
+        assertEquals(200, wrapper.GetContentAsync("items", null, null, logger).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testInterruptedTrialRequestDoesNotKeepCircuitHalfOpen() throws Exception {
+        failures = Integer.MAX_VALUE;
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        HttpWrapper wrapper = new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), new RetryPolicy(1, 5000, 5000), breaker);
+
+        breaker.recordFailure();
+        Thread.sleep(60);
+
+        // the trial is interrupted while waiting to retry
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedIOException.class, () -> wrapper.GetContent("items", null, null));
+        assertTrue(Thread.interrupted());
+
+        assertNotEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testGenerateAsyncSharesDownloadsAndRenders() throws Exception {
+        DevOpsDiagram generator = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                asyncWrapper(0, new CircuitBreaker(5, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                new SourceCache(10, 60000, null));
+
+        List<CompletableFuture<byte[]>> images = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            images.add(generator.generateAsync("/a.puml", DiagramFormat.SVG, logger));
+        }
+
+        byte[] first = images.get(0).get(30, TimeUnit.SECONDS);
+        assertTrue(new String(first, StandardCharsets.UTF_8).contains("<svg"));
+        for (CompletableFuture<byte[]> image : images) {
+            assertArrayEquals(first, image.get(30, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, requests.get());
+        assertEquals(1, generator.getImageCache().getEntryCount());
+    }
+}
@@ -0,0 +1,101 @@
+package com.kykosoft.azPlantUML;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for expanding !include directives.
+ */
+public class IncludeResolverTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private final Map<String, String> files = new HashMap<>();
+
+    private final IncludeResolver resolver = new IncludeResolver(files::get, executor, 10, 1000);
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testNestedRelativeIncludesAreInlined() throws Exception {
+        files.put("/shared/style.iuml", "@startuml\nskinparam monochrome true\n!include colors.iuml\n@enduml");
+        files.put("/shared/colors.iuml", "skinparam backgroundColor white");
+
+        IncludeResolver.Result result = resolver.resolve(
+                "@startuml\n!include ../shared/style.iuml\nA -> B\n@enduml", "/docs/a.puml");
+
+        assertEquals("@startuml\nskinparam monochrome true\nskinparam backgroundColor white\nA -> B\n@enduml\n", result.getSource());
+        assertEquals(2, result.getIncludes().size());
+        assertTrue(result.getIncludes().contains("/shared/colors.iuml"));
+    }
+
+    @Test
+    public void testIncludeOnceAndLibraryIncludes() throws Exception {
+        files.put("/docs/common.iuml", "A -> B");
+
+        String source = "@startuml\n!include <C4/C4_Context>\n!include_once common.iuml\n!include_once /docs/common.iuml\n@enduml";
+        IncludeResolver.Result result = resolver.resolve(source, "/docs/a.puml");
+
+        assertEquals("@startuml\n!include <C4/C4_Context>\nA -> B\n@enduml\n", result.getSource());
+    }
+
+    @Test
+    public void testSourceWithoutIncludesIsUnchanged() throws Exception {
+        String source = "@startuml\nA -> B\n@enduml";
+
+        assertSame(source, resolver.resolve(source, "/docs/a.puml").getSource());
+    }
+
+    @Test
+    public void testMissingAndCyclicIncludesFail() {
+        assertThrows(IncludeException.class,
+                () -> resolver.resolve("!include missing.iuml", "/docs/a.puml"));
+
+        files.put("/docs/x.iuml", "!include y.iuml");
+        files.put("/docs/y.iuml", "!include x.iuml");
+        assertThrows(IncludeException.class,
+                () -> resolver.resolve("!include x.iuml", "/docs/a.puml"));
+    }
+
+    @Test
+    public void testTargetsResolveAgainstTheIncludingFile() {
+        assertEquals("/docs/b.puml", IncludeResolver.resolveTarget("b.puml", "/docs/a.puml"));
+        assertEquals("/lib/b.puml", IncludeResolver.resolveTarget("\"../lib/./b.puml\"", "/docs/a.puml"));
+        assertEquals("/b.puml", IncludeResolver.resolveTarget("/b.puml", "/docs/a.puml"));
+        assertNull(IncludeResolver.resolveTarget("https://example.com/b.puml", "/docs/a.puml"));
+        assertNull(IncludeResolver.resolveTarget("b.puml!2", "/docs/a.puml"));
+    }
+
+    @Test
+    public void testPlainIncludeInlinesAFileOnce() throws Exception {
+        files.put("/docs/common.iuml", "A -> B");
+
+        String source = "@startuml\n!include common.iuml\n!include /docs/common.iuml\n!include_many common.iuml\n@enduml";
+        IncludeResolver.Result result = resolver.resolve(source, "/docs/a.puml");
+
+        assertEquals("@startuml\nA -> B\nA -> B\n@enduml\n", result.getSource());
+    }
+
+    @Test
+    public void testExpandedLengthIsLimited() {
+        // each file includes the next one twice, doubling the expanded text at every level
+        for (int i = 0; i < 8; i++) {
+            files.put("/docs/f" + i + ".iuml", "A -> B : " + i + "\n!include_many f" + (i + 1) + ".iuml\n!include_many f" + (i + 1) + ".iuml");
+        }
+        files.put("/docs/f8.iuml", "A -> B : last");
+
+        IncludeException ex = assertThrows(IncludeException.class,
+                () -> resolver.resolve("@startuml\n!include f0.iuml\n@enduml", "/docs/a.puml"));
+        assertTrue(ex.getMessage().contains("1000 characters"), ex.getMessage());
+    }
+}
@@ -0,0 +1,126 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for reusing parsed diagrams.
+ */
+public class ParseCacheTest {
+
+    private static String export(ParsedDiagram diagram, FileFormat format) throws Exception {
+        return export(diagram, 0, format);
+    }
+
+    private static String export(ParsedDiagram diagram, int page, FileFormat format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diagram.export(page, new FileFormatOption(format), out);
+        // PlantUML picks a random id for the shadow filter of every SVG
+        return new String(out.toByteArray(), StandardCharsets.UTF_8).replaceAll("id=\"\\w+\"|url\\(#\\w+\\)", "");
+    }
+
+    @Test
+    public void testParsedDiagramExportsRepeatedly() throws Exception {
+        ParsedDiagram diagram = ParsedDiagram.parse("@startuml\nBob -> Alice : hello\n@enduml\n");
+
+        String first = export(diagram, FileFormat.SVG);
+        assertTrue(first.contains("Alice"), first);
+        assertEquals(first, export(diagram, FileFormat.SVG));
+        assertEquals(first, export(ParsedDiagram.parse("@startuml\nBob -> Alice : hello\n@enduml\n"), FileFormat.SVG));
+        assertEquals(1, diagram.getPageCount());
+
+        // a source without a diagram still renders PlantUML's explanation
+        assertTrue(export(ParsedDiagram.parse("Bob -> Alice"), FileFormat.SVG).contains("<svg"));
+    }
+
+    @Test
+    public void testCacheParsesEachSourceOnce() {
+        ParseCache cache = new ParseCache(2);
+        String a = "@startuml\nA -> B\n@enduml\n";
+
+        ParsedDiagram parsed = cache.get(a);
+        assertSame(parsed, cache.get(a));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        cache.get("@startuml\nB -> C\n@enduml\n");
+        cache.get("@startuml\nC -> D\n@enduml\n");
+        assertEquals(2, cache.size());
+        assertNotSame(parsed, cache.get(a));
+
+        ParseCache disabled = new ParseCache(0);
+        assertNotSame(disabled.get(a), disabled.get(a));
+        assertEquals(0, disabled.size());
+    }
+
+    @Test
+    public void testRendersNeverShareAParsedDiagram() {
+        ParseCache cache = new ParseCache(2);
+        String a = "@startuml\nA -> B\n@enduml\n";
+
+        // a second render while the first still holds the diagram parses its own copy
+        ParsedDiagram first = cache.take(a);
+        ParsedDiagram second = cache.take(a);
+        assertNotSame(first, second);
+        assertEquals(2, cache.getMisses());
+
+        cache.release(a, first);
+        assertSame(first, cache.take(a));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testFormatsOfOneSourceShareAParse() throws Exception {
+        String source = "@startuml\nFormats -> Parse : " + UUID.randomUUID() + "\n@enduml\n";
+        long misses = DiagramGenerator.getParseCache().getMisses();
+
+        DiagramGenerator.renderImage(source, DiagramFormat.SVG);
+        DiagramGenerator.renderImage(source, DiagramFormat.SVGZ);
+
+        assertEquals(misses + 1, DiagramGenerator.getParseCache().getMisses());
+    }
+
+    @Test
+    public void testPagesAreExportedSeparately() throws Exception {
+        ParsedDiagram diagram = ParsedDiagram.parse(
+                "@startuml\nBob -> Alice : first\nnewpage\nAlice -> Carol : second\n@enduml\n"
+                + "@startuml\nCarol -> Dave : third\n@enduml\n");
+
+        assertEquals(3, diagram.getPageCount());
+        assertTrue(export(diagram, 0, FileFormat.SVG).contains("first"));
+        assertFalse(export(diagram, 0, FileFormat.SVG).contains("second"));
+        assertTrue(export(diagram, 1, FileFormat.SVG).contains("second"));
+        assertTrue(export(diagram, 2, FileFormat.SVG).contains("third"));
+
+        PageNotFoundException ex = assertThrows(PageNotFoundException.class, () -> export(diagram, 3, FileFormat.SVG));
+        assertEquals(3, ex.getPageCount());
+        assertThrows(PageNotFoundException.class, () -> export(diagram, -1, FileFormat.SVG));
+    }
+
+    @Test
+    public void testOnlyTheRequestedPageIsRendered() throws Exception {
+        String source = "@startuml\nPages -> Page : one " + UUID.randomUUID() + "\nnewpage\nPages -> Page : two\n@enduml\n";
+
+        assertEquals(2, DiagramGenerator.countPages(source));
+        long misses = DiagramGenerator.getParseCache().getMisses();
+
+        String second = new String(DiagramGenerator.renderImage(source, DiagramFormat.SVG, 1), StandardCharsets.UTF_8);
+        assertTrue(second.contains(">two<"), second);
+        assertFalse(second.contains(">one "), second);
+        assertThrows(PageNotFoundException.class,
+                () -> DiagramGenerator.render(source, DiagramFormat.SVG, 2, Logger.getGlobal()));
+
+        // counting the pages already parsed the source
+        assertEquals(misses, DiagramGenerator.getParseCache().getMisses());
+    }
+}
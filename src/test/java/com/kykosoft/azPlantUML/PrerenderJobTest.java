@@ -0,0 +1,113 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Verifies pre-rendering a whole repository against a local stand-in for DevOps.
+ */
+public class PrerenderJobTest {
+
+    private final Logger logger = Logger.getGlobal();
+
+    /** Status answered to the items listing */
+    private volatile int listingStatus = 200;
+
+    private HttpServer server;
+
+    private DevOpsDiagram generator;
+
+    private static String fixture(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(PrerenderJobTest.class.getResource("/" + name).toURI())), StandardCharsets.UTF_8);
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        byte[] listing = fixture("items-recursive.json").getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Connection", "close");
+            String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+            byte[] body;
+            int status = 200;
+            if (query.contains("recursionLevel=Full")) {
+                body = listing;
+                status = listingStatus;
+            } else {
+                String path = query.replaceAll(".*path=([^&]*).*", "$1");
+                body = ("@startuml\nReader -> Diagram : " + path + "\n@enduml\n").getBytes(StandardCharsets.UTF_8);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(status, body.length);
+                out.write(body);
+            }
+        });
+        server.start();
+
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        generator = new DevOpsDiagram(
+                new DevOpsConfig(baseUrl, "org", "project", "repo", "pat"),
+                new HttpWrapper(logger, baseUrl, HttpClients.createDefault(), HttpWrapper.createPooledAsyncClient(4, 4),
+                        new RetryPolicy(0, 10, 100), new CircuitBreaker(5, 60000)),
+                new DiagramCache(1024 * 1024, null),
+                new SourceCache(10, 60000, null));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testParseItemsSkipsFolders() throws Exception {
+        List<String> paths = DevOpsDiagram.parseItems(fixture("items-recursive.json"));
+
+        assertEquals(Arrays.asList("/docs/deployment.puml", "/docs/login.puml", "/docs/style.iuml", "/README.md"), paths);
+    }
+
+    @Test
+    public void testRendersEveryDiagramIntoTheCache() {
+        PrerenderJob job = new PrerenderJob(generator, Arrays.asList(DiagramFormat.SVG, DiagramFormat.SVGZ), 2).run(logger);
+
+        // include files and other files are not rendered on their own
+        assertEquals(PrerenderJob.State.COMPLETED, job.getState());
+        assertEquals(2, job.getTotal());
+        assertEquals(2, job.getRendered());
+        assertEquals(0, job.getFailed());
+        assertEquals(4, generator.getImageCache().getEntryCount());
+        assertEquals(2, job.toJson().get("rendered").getAsInt());
+
+        // readers are now served from the cache
+        long hits = generator.getImageCache().getHits();
+        generator.generateAsync("/docs/login.puml", DiagramFormat.SVG, logger).join();
+        assertEquals(hits + 1, generator.getImageCache().getHits());
+    }
+
+    @Test
+    public void testListingFailureFailsTheJob() {
+        listingStatus = 401;
+        PrerenderJob job = new PrerenderJob(generator, Collections.singletonList(DiagramFormat.SVG), 2).run(logger);
+
+        assertEquals(PrerenderJob.State.FAILED, job.getState());
+        assertFalse(job.isRunning());
+        assertTrue(job.toJson().get("error").getAsString().contains("401"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for handling DevOps push service hooks.
+ */
+public class PushFunctionTest {
+
+    private static String fixture(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(PushFunctionTest.class.getResource("/" + name).toURI())), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParsePushEvent() throws Exception {
+        PushEvent event = PushEvent.parse(fixture("push-event.json"));
+
+        assertEquals("278d5cd2-584d-4b63-824a-2ba458937249", event.getRepositoryId());
+        assertEquals(2, event.getRefUpdates().size());
+
+        // the new feature branch is ignored; only the default branch matters
+        PushEvent.RefUpdate update = event.getDefaultBranchUpdate();
+        assertEquals("refs/heads/main", update.getName());
+        assertEquals("aad331d8d3b131fa9ae03cf5e53965b51942618a", update.getOldObjectId());
+        assertEquals("33b55f7cb7e7e245323987634f960cf4a6e6bc74", update.getNewObjectId());
+
+        assertThrows(IllegalArgumentException.class, () -> PushEvent.parse("{\"eventType\":\"build.complete\"}"));
+    }
+
+    @Test
+    public void testParseChanges() throws Exception {
+        List<DevOpsDiagram.Change> changes = new ArrayList<>();
+        assertTrue(DevOpsDiagram.parseChanges(fixture("push-diff.json"), changes));
+
+        // the folder entry is skipped
+        assertEquals(5, changes.size());
+        assertEquals("/docs/deployment.puml", changes.get(0).getPath());
+        assertTrue(changes.get(2).isDelete());
+
+        DevOpsDiagram.Change rename = changes.get(3);
+        assertFalse(rename.isDelete());
+        assertEquals(2, rename.getPaths().size());
+        assertEquals("/docs/login.puml", rename.getOriginalPath());
+    }
+
+    @Test
+    public void testDiagramPaths() {
+        assertTrue(PushFunction.isDiagramPath("/docs/deployment.puml"));
+        assertTrue(PushFunction.isDiagramPath("/docs/network.PlantUML"));
+        assertFalse(PushFunction.isDiagramPath("/README.md"));
+        assertFalse(PushFunction.isDiagramPath(null));
+    }
+
+    @Test
+    public void testGetChangesQueriesTheDiffApi() throws Exception {
+        byte[] body = fixture("push-diff.json").getBytes(StandardCharsets.UTF_8);
+        List<String> queries = new ArrayList<>();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            queries.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getQuery());
+            try (OutputStream out = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(200, body.length);
+                out.write(body);
+            }
+        });
+        server.start();
+
+        try {
+            DevOpsDiagram generator = new DevOpsDiagram(new DevOpsConfig(
+                    "http://127.0.0.1:" + server.getAddress().getPort(),
+                    "org", "project", "repo", "pat"));
+
+            List<DevOpsDiagram.Change> changes = generator.getChanges("aad331d", "33b55f7", Logger.getGlobal());
+
+            assertEquals(5, changes.size());
+            assertEquals(1, queries.size());
+            assertTrue(queries.get(0).startsWith("/org/project/_apis/git/repositories/repo/diffs/commits?"));
+            assertTrue(queries.get(0).contains("baseVersion=aad331d"));
+            assertTrue(queries.get(0).contains("targetVersion=33b55f7"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
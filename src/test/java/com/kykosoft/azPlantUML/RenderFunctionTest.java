@@ -0,0 +1,76 @@
+package com.kykosoft.azPlantUML;
+
+import com.microsoft.azure.functions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+
+/**
+ * Unit tests for rendering diagram source sent with the request.
+ */
+public class RenderFunctionTest {
+
+    private HttpResponseMessage invoke(String body, String encoded) {
+        @SuppressWarnings("unchecked")
+        final HttpRequestMessage<Optional<String>> req = mock(HttpRequestMessage.class);
+
+        final Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("format", "svg");
+        doReturn(queryParams).when(req).getQueryParameters();
+        doReturn(new HashMap<String, String>()).when(req).getHeaders();
+        doReturn(Optional.ofNullable(body)).when(req).getBody();
+        doAnswer(invocation -> new HttpResponseMessageMock.HttpResponseMessageBuilderMock()
+                .status((HttpStatus) invocation.getArguments()[0]))
+            .when(req).createResponseBuilder(any(HttpStatus.class));
+
+        final ExecutionContext context = mock(ExecutionContext.class);
+        doReturn(Logger.getGlobal()).when(context).getLogger();
+
+        return new RenderFunction().run(req, encoded, context);
+    }
+
+    @Test
+    public void testDecodesPlantUmlServerUrls() throws Exception {
+        String source = "@startuml\nBob -> Alice : hello\n@enduml\n";
+        assertEquals(source, RenderFunction.wrapSource(RenderFunction.decodeSource("SyfFKj2rKt3CoKnELR1Io4ZDoSa70000")));
+        assertEquals(source, RenderFunction.wrapSource(RenderFunction.decodeSource(RenderFunction.encodeSource(source))));
+
+        // sources without a start line are wrapped as the PlantUML server does
+        assertEquals(source, RenderFunction.wrapSource("  Bob -> Alice : hello\n"));
+    }
+
+    @Test
+    public void testBodyAndUrlShareOneCachedImage() throws Exception {
+        String source = "@startuml\nShared -> Render : " + UUID.randomUUID() + "\n@enduml\n";
+        DiagramCache cache = CachedRenderer.getShared().getImageCache();
+
+        HttpResponseMessage posted = invoke(source, null);
+        assertEquals(HttpStatus.OK, posted.getStatus());
+        assertEquals("image/svg+xml", posted.getHeader("Content-Type"));
+        assertEquals("no-store", posted.getHeader("Cache-Control"));
+        String svg = new String((byte[]) posted.getBody(), StandardCharsets.UTF_8);
+        assertTrue(svg.contains("Shared"), svg);
+
+        long hits = cache.getHits();
+        HttpResponseMessage linked = invoke(null, RenderFunction.encodeSource(source));
+        assertEquals(HttpStatus.OK, linked.getStatus());
+        assertEquals(posted.getHeader("ETag"), linked.getHeader("ETag"));
+        assertTrue(linked.getHeader("Cache-Control").contains("immutable"));
+        assertArrayEquals((byte[]) posted.getBody(), (byte[]) linked.getBody());
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void testInvalidRequestsAreRejected() {
+        assertEquals(HttpStatus.BAD_REQUEST, invoke(null, null).getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, invoke(null, "not-a-diagram!").getStatus());
+        assertEquals(HttpStatus.BAD_REQUEST, invoke("@startuml\n!include /etc/passwd\n@enduml\n", null).getStatus());
+    }
+}
@@ -0,0 +1,139 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for render admission control.
+ */
+public class RenderSchedulerTest {
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler(1, 1, 10000, 10000, 7);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // occupies the only worker
+        CompletableFuture<String> running = CompletableFuture.supplyAsync(() -> execute(scheduler, () -> {
+            started.countDown();
+            await(release);
+            return "first";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // occupies the only queue slot
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> execute(scheduler, () -> "second"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueued() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        RenderRejectedException ex = assertThrows(RenderRejectedException.class,
+                () -> scheduler.execute(() -> "third"));
+        assertEquals(7, ex.getRetryAfterSeconds());
+        assertEquals(1, scheduler.getRejected());
+
+        release.countDown();
+        assertEquals("first", running.get(5, TimeUnit.SECONDS));
+        assertEquals("second", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRenderDeadline() {
+        RenderScheduler scheduler = new RenderScheduler(1, 1, 50, 50, 1);
+
+        assertThrows(RenderTimeoutException.class, () -> scheduler.execute(() -> {
+            await(new CountDownLatch(1));
+            return "never";
+        }));
+        assertEquals(1, scheduler.getTimedOut());
+    }
+
+    @Test
+    public void testRenderDeadlineStartsWhenTheRenderStarts() throws Exception {
+        // a long queue deadline does not extend the render deadline
+        RenderScheduler scheduler = new RenderScheduler(1, 1, 5000, 100, 1);
+        long startedAt = System.nanoTime();
+
+        assertThrows(RenderTimeoutException.class, () -> scheduler.execute(() -> {
+            await(new CountDownLatch(1));
+            return "never";
+        }));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) < 2000);
+
+        // a render that waited in the queue still gets its whole render deadline
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> first = scheduler.executeAsync(() -> {
+            started.countDown();
+            sleep(70);
+            return "first";
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> second = scheduler.executeAsync(() -> {
+            sleep(70);
+            return "second";
+        });
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getTimedOut());
+    }
+
+    @Test
+    public void testQueueDeadlineDoesNotWaitForTheRenderDeadline() throws Exception {
+        RenderScheduler scheduler = new RenderScheduler(1, 1, 50, 5000, 3);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = scheduler.executeAsync(() -> {
+            started.countDown();
+            await(release);
+            return "first";
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // rejected once the queue deadline passes, while the first render is still running
+        long queuedAt = System.nanoTime();
+        RenderRejectedException ex = assertThrows(RenderRejectedException.class,
+                () -> scheduler.execute(() -> "second"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt) < 2000);
+        assertEquals(3, ex.getRetryAfterSeconds());
+        assertEquals(1, scheduler.getExpired());
+        assertEquals(0, scheduler.getQueued());
+
+        // the render that had started is unaffected by the queue deadline
+        release.countDown();
+        assertEquals("first", running.get(5, TimeUnit.SECONDS));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static <V> V execute(RenderScheduler scheduler, RenderScheduler.Task<V> task) {
+        try {
+            return scheduler.execute(task);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedIOException {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+}
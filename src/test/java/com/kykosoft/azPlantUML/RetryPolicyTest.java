@@ -0,0 +1,90 @@
+package com.kykosoft.azPlantUML;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the retry policy and circuit breaker.
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void testBackoffIsBoundedAndJittered() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 300);
+
+        for (int i = 0; i < 50; i++) {
+            long first = policy.getDelayMillis(1, null);
+            assertTrue(first >= 50 && first <= 100, Long.toString(first));
+
+            long third = policy.getDelayMillis(3, null);
+            assertTrue(third >= 150 && third <= 300, Long.toString(third));
+        }
+
+        assertEquals(-1, policy.getDelayMillis(4, null));
+    }
+
+    @Test
+    public void testRetryAfterIsHonored() {
+        RetryPolicy policy = new RetryPolicy(2, 100, 5000);
+
+        assertEquals(2000, policy.getDelayMillis(1, "2"));
+        // asked to wait longer than allowed; give up rather than retry early
+        assertEquals(-1, policy.getDelayMillis(1, "120"));
+        assertTrue(policy.getDelayMillis(1, "soon") <= 100);
+
+        assertTrue(RetryPolicy.isRetryableStatus(429));
+        assertTrue(RetryPolicy.isRetryableStatus(503));
+        assertFalse(RetryPolicy.isRetryableStatus(404));
+        assertFalse(RetryPolicy.isRetryableStatus(304));
+    }
+
+    @Test
+    public void testCircuitOpensAndRecovers() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50);
+
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(60);
+
+        // a single trial request is let through
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(60);
+
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(2, breaker.getRejected());
+    }
+
+    @Test
+    public void testTrialWithoutOutcomeReopensCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, 50);
+
+        breaker.recordFailure();
+        Thread.sleep(30);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        // the trial never reports; after the trial timeout the circuit opens again
+        Thread.sleep(60);
+        assertFalse(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // an abandoned trial lets the next request through at once
+        Thread.sleep(30);
+        assertTrue(breaker.allowRequest());
+        breaker.recordAbandoned();
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+}
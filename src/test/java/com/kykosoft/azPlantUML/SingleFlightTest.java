@@ -0,0 +1,96 @@
+package com.kykosoft.azPlantUML;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for request coalescing.
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallersShareOneExecution() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        int callers = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> flights.execute("diagram.puml", () -> {
+                    executions.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                    return "image";
+                })));
+            }
+
+            // wait until every caller has either started or joined the flight
+            long deadline = System.currentTimeMillis() + 5000;
+            while (flights.getExecutions() + flights.getCoalesced() < callers
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("image", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, executions.get());
+        assertEquals(1, flights.getExecutions());
+        assertEquals(callers - 1, flights.getCoalesced());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    public void testFailureIsNotRemembered() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+
+        assertThrows(IOException.class, () -> flights.execute("key", () -> {
+            throw new IOException("upstream failed");
+        }));
+
+        assertEquals("ok", flights.execute("key", () -> "ok"));
+        assertEquals(2, flights.getExecutions());
+    }
+
+    @Test
+    public void testAsyncCallersShareOneExecution() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CompletableFuture<String> download = new CompletableFuture<>();
+
+        CompletableFuture<String> first = flights.executeAsync("key", () -> download);
+        CompletableFuture<String> second = flights.executeAsync("key", () -> CompletableFuture.completedFuture("other"));
+        assertFalse(first.isDone());
+        assertEquals(1, flights.getInFlight());
+
+        download.complete("shared");
+        assertEquals("shared", first.get(1, TimeUnit.SECONDS));
+        assertEquals("shared", second.get(1, TimeUnit.SECONDS));
+        assertEquals(1, flights.getExecutions());
+        assertEquals(1, flights.getCoalesced());
+        assertEquals(0, flights.getInFlight());
+    }
+}
@@ -0,0 +1,64 @@
+package com.kykosoft.azPlantUML;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for the downloaded source cache.
+ */
+public class SourceCacheTest {
+
+    private final Logger logger = Logger.getGlobal();
+
+    @Test
+    public void testMutableEntriesNeedRevalidation() {
+        SourceCache cache = new SourceCache(10, 0);
+
+        cache.put("/a.puml", "\"etag\"", "A -> B");
+        SourceCache.Entry entry = cache.get("/a.puml");
+
+        assertEquals("A -> B", entry.getContent());
+        assertFalse(cache.isFresh(entry));
+    }
+
+    @Test
+    public void testImmutableEntriesSurviveRestart(@TempDir Path directory) {
+        SourceCache cache = new SourceCache(10, 0, directory);
+        cache.putImmutable("/a.puml@abc1234", "A -> B", logger);
+
+        assertTrue(cache.isFresh(cache.getImmutable("/a.puml@abc1234", logger)));
+
+        // a new instance, e.g. after a host restart, reads the entry from disk
+        SourceCache restarted = new SourceCache(10, 0, directory);
+        SourceCache.Entry entry = restarted.getImmutable("/a.puml@abc1234", logger);
+
+        assertNotNull(entry);
+        assertEquals("A -> B", entry.getContent());
+        assertTrue(entry.isImmutable());
+        assertNull(restarted.getImmutable("/a.puml@def5678", logger));
+    }
+
+    @Test
+    public void testImmutableEntriesOnDiskAreLimited(@TempDir Path directory) throws Exception {
+        SourceCache cache = new SourceCache(10, 0, 0, 0, directory, 250);
+        cache.putImmutable("/a.puml@abc1234", new String(new char[100]).replace('\0', 'a'), logger);
+        cache.putImmutable("/b.puml@abc1234", new String(new char[100]).replace('\0', 'b'), logger);
+        cache.putImmutable("/c.puml@abc1234", new String(new char[100]).replace('\0', 'c'), logger);
+
+        // the least recently written file was deleted; no temporary files are left behind
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+
+        SourceCache restarted = new SourceCache(10, 0, 0, 0, directory, 250);
+        assertNull(restarted.getImmutable("/a.puml@abc1234", logger));
+        assertNotNull(restarted.getImmutable("/c.puml@abc1234", logger));
+    }
+}
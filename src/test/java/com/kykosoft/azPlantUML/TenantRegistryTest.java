@@ -0,0 +1,128 @@
+package com.kykosoft.azPlantUML;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Unit tests for mapping request parameters to configured repositories.
+ */
+public class TenantRegistryTest {
+
+    private static final String TENANTS = "["
+            + "{ \"name\": \"docs\", \"organization\": \"contoso\", \"project\": \"Docs\", \"repository\": \"architecture\","
+            + "  \"patSetting\": \"azuml_pat_docs\", \"maxConnections\": 4, \"cacheMaxBytes\": 1000, \"sourceCacheEntries\": 5 },"
+            + "{ \"organization\": \"fabrikam\", \"project\": \"Fabrikam\", \"repository\": \"278d5cd2-584d-4b63-824a-2ba458937249\","
+            + "  \"pat\": \"inline\" }"
+            + "]";
+
+    private final Logger logger = Logger.getGlobal();
+
+    private static TenantRegistry registry() {
+        return new TenantRegistry(TenantRegistry.parseTenants(TENANTS, name -> name.equals("azuml_pat_docs") ? "secret" : null));
+    }
+
+    @Test
+    public void testParseTenants() {
+        List<TenantRegistry.Tenant> tenants = registry().getTenants();
+        assertEquals(2, tenants.size());
+
+        TenantRegistry.Tenant docs = tenants.get(0);
+        assertEquals("docs", docs.getName());
+        assertEquals("contoso", docs.getConfig().getOrganization());
+        assertEquals(DevOpsConfig.DEFAULT_BASE_URI, docs.getConfig().getBaseUri());
+        assertEquals(4, docs.getMaxConnections());
+        assertEquals(1000, docs.getCacheMaxBytes());
+        assertEquals(5, docs.getSourceCacheEntries());
+
+        // the name defaults to the repository and the quotas to the process-wide settings
+        TenantRegistry.Tenant fabrikam = tenants.get(1);
+        assertEquals("278d5cd2-584d-4b63-824a-2ba458937249", fabrikam.getName());
+        assertEquals(SourceCache.getDefaultMaxEntries(), fabrikam.getSourceCacheEntries());
+    }
+
+    @Test
+    public void testInvalidTenants() {
+        assertThrows(IllegalArgumentException.class, () -> TenantRegistry.parseTenants("{}", name -> null));
+        assertThrows(IllegalArgumentException.class, () -> TenantRegistry.parseTenants(
+                "[{ \"organization\": \"o\", \"project\": \"p\", \"repository\": \"r\", \"patSetting\": \"missing\" }]",
+                name -> null));
+        assertThrows(IllegalArgumentException.class, () -> TenantRegistry.parseTenants(
+                "[{ \"organization\": \"o\", \"project\": \"p\", \"pat\": \"x\" }]",
+                name -> null));
+        assertThrows(IllegalArgumentException.class, () -> new TenantRegistry(TenantRegistry.parseTenants(
+                "[{ \"organization\": \"o\", \"project\": \"p\", \"repository\": \"r\", \"pat\": \"x\" },"
+                        + " { \"organization\": \"o\", \"project\": \"q\", \"repository\": \"R\", \"pat\": \"x\" }]",
+                name -> null)));
+    }
+
+    @Test
+    public void testFindTenant() {
+        TenantRegistry registry = registry();
+
+        assertEquals("docs", registry.find(null, null).getName());
+        assertEquals("docs", registry.find("docs", "ARCHITECTURE").getName());
+        assertEquals("docs", registry.find(null, "docs").getName());
+        assertEquals("278d5cd2-584d-4b63-824a-2ba458937249", registry.find("Fabrikam", null).getName());
+        assertNull(registry.find("Fabrikam", "architecture"));
+        assertNull(registry.getGenerator(null, "unknown"));
+    }
+
+    @Test
+    public void testTenantsHaveSeparateCaches() {
+        TenantRegistry registry = registry();
+        DevOpsDiagram docs = registry.getGenerator(null, "docs");
+        DevOpsDiagram fabrikam = registry.getGenerator("Fabrikam", null);
+
+        assertSame(docs, registry.getGenerator(null, "architecture"));
+        assertNotSame(docs.getImageCache(), fabrikam.getImageCache());
+        assertNotSame(docs.getSourceCache(), fabrikam.getSourceCache());
+
+        // filling one tenant's cache beyond its quota does not evict the other tenant's images
+        fabrikam.getImageCache().put("kept", new byte[100], logger);
+        for (int i = 0; i < 20; i++) {
+            docs.getImageCache().put("image" + i, new byte[100], logger);
+        }
+
+        assertTrue(docs.getImageCache().getCurrentBytes() <= 1000);
+        assertNotNull(fabrikam.getImageCache().get("kept", logger));
+    }
+
+    @Test
+    public void testSharedConnectionPoolKeepsTenantQuotas() {
+        TenantRegistry registry = new TenantRegistry(TenantRegistry.parseTenants("[{ \"name\": \"shared\","
+                + " \"organization\": \"contoso\", \"project\": \"Docs\", \"repository\": \"architecture\","
+                + " \"pat\": \"inline\", \"maxConnections\": 0, \"cacheMaxBytes\": 1000 }]", name -> null));
+        DevOpsDiagram shared = registry.getGenerator(null, "shared");
+
+        for (int i = 0; i < 20; i++) {
+            shared.getImageCache().put("image" + i, new byte[100], logger);
+        }
+
+        assertTrue(shared.getImageCache().getCurrentBytes() <= 1000);
+    }
+
+    @Test
+    public void testPushSelectsTenant() throws Exception {
+        PushEvent event = PushEvent.parse(new String(
+                Files.readAllBytes(Paths.get(getClass().getResource("/push-event.json").toURI())), StandardCharsets.UTF_8));
+        TenantRegistry registry = registry();
+
+        assertSame(registry.getGenerator("Fabrikam", null), PushFunction.findGenerator(registry, event));
+
+        // a tenant configured with the repository name instead of its id
+        TenantRegistry byName = new TenantRegistry(TenantRegistry.parseTenants(
+                "[{ \"organization\": \"fabrikam\", \"project\": \"Fabrikam\", \"repository\": \"AzPlantUML\", \"pat\": \"x\" }]",
+                name -> null));
+        assertNotNull(PushFunction.findGenerator(byName, event));
+
+        assertNull(PushFunction.findGenerator(new TenantRegistry(Collections.<TenantRegistry.Tenant>emptyList()), event));
+    }
+}